@@ -0,0 +1,33 @@
+package com.example;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Non-blocking access to a BlobStore. Operations are admitted in the order they are submitted,
+ * as long as the store's limits on concurrent operations and in-flight bytes allow;
+ * an operation larger than the byte limit runs alone.
+ * Dependent stages of the returned futures run on the store's I/O threads unless an executor is given.
+ */
+public interface AsyncBlobStore {
+
+	public CompletableFuture<Void> putAsync(String bucket, String key, File data);
+
+	/**
+	 * the buffer must not be modified until the future completes.
+	 */
+	public CompletableFuture<Void> putAsync(String bucket, String key, ByteBuffer data);
+
+	public CompletableFuture<File> getAsync(String bucket, String key);
+
+	public CompletableFuture<ByteBuffer> getByteBufferAsync(String bucket, String key);
+
+	public CompletableFuture<Void> deleteAsync(String bucket, String key);
+
+	/**
+	 * @param maxConcurrency - operations running at the same time, which is also the number of I/O threads
+	 * @param maxInFlightBytes - bytes of the running operations
+	 */
+	public void setAsyncLimits(int maxConcurrency, long maxInFlightBytes);
+}
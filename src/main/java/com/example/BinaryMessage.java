@@ -0,0 +1,81 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import com.amazonaws.services.sqs.model.Message;
+
+/**
+ * A message with a binary body, as pulled after <code>push(queue, ByteBuffer)</code>.
+ * getBodyAsByteBuffer() returns the bytes as they were pushed; getBody() returns them in Base64,
+ * the way SQS carries them, for code which only knows text bodies, and encodes them only when it is called.
+ */
+public class BinaryMessage extends Message {
+
+	private static final long serialVersionUID = 1L;
+
+	private ByteBuffer binaryBody;
+
+	/**
+	 * @param binaryBody - its remaining bytes are the body; they are not copied
+	 */
+	public BinaryMessage(ByteBuffer binaryBody) {
+		setBodyAsByteBuffer(binaryBody);
+	}
+
+	/**
+	 * for messages whose body is set later, or loaded on first use.
+	 */
+	protected BinaryMessage() {
+	}
+
+	/**
+	 * @return a read-only view of the body, from its first byte
+	 */
+	public synchronized ByteBuffer getBodyAsByteBuffer() {
+		return (binaryBody == null) ? null : binaryBody.duplicate();
+	}
+
+	/**
+	 * @param binaryBody - its remaining bytes are the body; they are not copied
+	 */
+	public synchronized void setBodyAsByteBuffer(ByteBuffer binaryBody) {
+		this.binaryBody = (binaryBody == null) ? null : binaryBody.slice().asReadOnlyBuffer();
+		super.setBody(null);
+	}
+
+	/**
+	 * @return the body in Base64
+	 */
+	@Override
+	public synchronized String getBody() {
+		if (super.getBody() == null) {
+			ByteBuffer binaryBody = getBodyAsByteBuffer();
+			if (binaryBody != null) {
+				super.setBody(StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(binaryBody)).toString());
+			}
+		}
+		return super.getBody();
+	}
+
+	/**
+	 * @param body - the body in Base64
+	 */
+	@Override
+	public synchronized void setBody(String body) {
+		setBodyAsByteBuffer((body == null) ? null : ByteBuffer.wrap(Base64.getDecoder().decode(body)));
+		super.setBody(body);
+	}
+
+	/**
+	 * @return the body of any message as a read-only buffer, a text body in UTF-8
+	 */
+	public static ByteBuffer toByteBuffer(Message message) {
+		if (message instanceof BinaryMessage) {
+			return ((BinaryMessage) message).getBodyAsByteBuffer();
+		}
+		String body = message.getBody();
+		return (body == null) ? null : ByteBuffer.wrap(body.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,25 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An object read together with the metadata of the version read.
+ */
+public class Blob {
+
+	private final BlobMetadata metadata;
+	private final ByteBuffer data;
+
+	public Blob(BlobMetadata metadata, ByteBuffer data) {
+		this.metadata = metadata;
+		this.data = data;
+	}
+
+	public BlobMetadata getMetadata() {
+		return metadata;
+	}
+
+	public ByteBuffer getData() {
+		return data;
+	}
+}
@@ -0,0 +1,38 @@
+package com.example;
+
+/**
+ * What a BlobStore knows about an object without reading it.
+ * The ETag changes whenever the content may have changed; how it is made depends on the store.
+ */
+public class BlobMetadata {
+
+	private final long size;
+	private final String etag;
+	private final long lastModified;
+
+	public BlobMetadata(long size, String etag, long lastModified) {
+		this.size = size;
+		this.etag = etag;
+		this.lastModified = lastModified;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public String getEtag() {
+		return etag;
+	}
+
+	/**
+	 * @return milliseconds since the epoch
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public String toString() {
+		return "BlobMetadata [size=" + size + ", etag=" + etag + ", lastModified=" + lastModified + "]";
+	}
+}
@@ -1,9 +1,73 @@
 package com.example;
 
 import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
 
 public interface BlobStore {
 
 	public void put(String bucket, String key, File data);
 	public File get(String bucket, String key);
-}
\ No newline at end of file
+	
+	/**
+	 * stores exactly <code>length</code> bytes read from the stream; the stream is not closed.
+	 */
+	public void put(String bucket, String key, InputStream data, long length);
+	
+	/**
+	 * stores exactly <code>length</code> bytes read from the channel; the channel is not closed.
+	 */
+	public void put(String bucket, String key, ReadableByteChannel data, long length);
+	
+	/**
+	 * stores the remaining bytes of the buffer; its position is left unchanged.
+	 */
+	public void put(String bucket, String key, ByteBuffer data);
+	
+	/**
+	 * opens the object for reading; the caller has to close the stream.
+	 */
+	public InputStream getInputStream(String bucket, String key);
+	
+	/**
+	 * opens the object for reading; the caller has to close the channel.
+	 */
+	public ReadableByteChannel getChannel(String bucket, String key);
+	
+	/**
+	 * reads the whole object into a buffer flipped for reading.
+	 */
+	public ByteBuffer getByteBuffer(String bucket, String key);
+	
+	/**
+	 * reads up to <code>length</code> bytes starting at <code>offset</code>, fewer at the end of the object,
+	 * without transferring the rest of it.
+	 */
+	public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length);
+	
+	/**
+	 * deletes the object; deleting a missing key does nothing.
+	 */
+	public void delete(String bucket, String key);
+	
+	/**
+	 * lists, in order, up to <code>limit</code> keys starting with <code>prefix</code> and sorting after <code>startAfter</code>;
+	 * pass null to start from the beginning and the last key of a page to get the next one.
+	 */
+	public List<String> list(String bucket, String prefix, String startAfter, int limit);
+	
+	/**
+	 * @return the metadata of the object, null if it does not exist
+	 */
+	public BlobMetadata head(String bucket, String key);
+	
+	/**
+	 * reads the object unless its ETag is still <code>knownEtag</code>; pass null to always read it.
+	 * A missing object fails with a RuntimeException, as a read does.
+	 * @return null if the object did not change
+	 */
+	public Blob getIfChanged(String bucket, String key, String knownEtag);
+}
+
@@ -0,0 +1,55 @@
+package com.example;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/*
+ * Streams a buffer without copying it into an array first.
+ * Mark and reset are supported, so an S3 client can retry a failed request.
+ */
+class ByteBufferInputStream extends InputStream {
+	
+	private final ByteBuffer buffer;
+	
+	ByteBufferInputStream(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+	
+	@Override
+	public int read() {
+		return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+	}
+	
+	@Override
+	public int read(byte[] bytes, int offset, int length) {
+		if (length == 0) {
+			return 0;
+		}
+		if (!buffer.hasRemaining()) {
+			return -1;
+		}
+		int count = Math.min(length, buffer.remaining());
+		buffer.get(bytes, offset, count);
+		return count;
+	}
+	
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+	
+	@Override
+	public synchronized void mark(int readLimit) {
+		buffer.mark();
+	}
+	
+	@Override
+	public synchronized void reset() {
+		buffer.reset();
+	}
+}
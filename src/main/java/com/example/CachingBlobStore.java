@@ -0,0 +1,478 @@
+package com.example;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Read-through, write-through cache of another BlobStore in a local directory.
+ * Once the cached bytes exceed the budget the least recently used entries are evicted;
+ * the most recently admitted entry is always kept, so a single object larger than the budget still fits.
+ * Concurrent misses of the same key are served by one fetch from the backend.
+ * Admissions and evictions are journaled, so a restarted cache starts warm;
+ * close() also saves the recency order of the hits.
+ */
+public class CachingBlobStore implements BlobStore, Closeable {
+
+	private static final String INDEX = ".index";
+	private static final String COPY_INDEX = ".copy_index";
+	private static final String ADD = "+";
+	private static final String REMOVE = "-";
+	private static final String SEPARATOR = "|";
+	private static final int LOCK_STRIPES = 1024;
+	private static final int MIN_JOURNAL_COMPACTION = 1024;
+
+	private final BlobStore backend;
+	private final FileBlobStore cache;
+	private final long maxBytes;
+	private final File indexFile;
+	private final File copyIndexFile;
+	/*bucket/key->Entry, least recently used first; guards the fields below*/
+	private final LinkedHashMap<String, Entry> index = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long cachedBytes;
+	private PrintWriter journal;
+	private int journalLines;
+	/*loads, writes and evictions of one key never overlap, which is also what makes concurrent misses fetch once*/
+	private final Striped<Lock> keyLocks = Striped.lock(LOCK_STRIPES);
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param path - directory of the cached objects, laid out like a FileBlobStore
+	 * @param maxBytes - budget of the cached objects
+	 */
+	public CachingBlobStore(BlobStore backend, String path, long maxBytes) {
+		if ((backend == null) || Strings.isNullOrEmpty(path) || (maxBytes <= 0L)) {
+			throw new IllegalArgumentException();
+		}
+
+		this.backend = backend;
+		this.cache = new FileBlobStore(path);
+		this.maxBytes = maxBytes;
+		this.indexFile = new File(path, INDEX);
+		this.copyIndexFile = new File(path, COPY_INDEX);
+
+		List<Entry> victims;
+		synchronized (index) {
+			loadIndex();
+			compactIndex();
+			victims = evictOverBudget();
+		}
+		evict(victims);
+	}
+
+	@Override
+	public void put(String bucket, String key, File data) {
+		write(bucket, key, () -> {
+			backend.put(bucket, key, data);
+			cache.put(bucket, key, data);
+			return cache.get(bucket, key).length();
+		});
+	}
+
+	/*
+	 * A stream can only be read once, so it is stored in the cache first
+	 * and uploaded from the cached file.
+	 */
+	@Override
+	public void put(String bucket, String key, InputStream data, long length) {
+		write(bucket, key, () -> {
+			cache.put(bucket, key, data, length);
+			backend.put(bucket, key, cache.get(bucket, key));
+			return length;
+		});
+	}
+
+	@Override
+	public void put(String bucket, String key, ReadableByteChannel data, long length) {
+		write(bucket, key, () -> {
+			cache.put(bucket, key, data, length);
+			backend.put(bucket, key, cache.get(bucket, key));
+			return length;
+		});
+	}
+
+	@Override
+	public void put(String bucket, String key, ByteBuffer data) {
+		write(bucket, key, () -> {
+			backend.put(bucket, key, data);
+			cache.put(bucket, key, data);
+			return data.remaining();
+		});
+	}
+
+	/**
+	 * The returned file stays valid until its entry is evicted;
+	 * prefer getInputStream() or getChannel() when the cache is under pressure.
+	 */
+	@Override
+	public File get(String bucket, String key) {
+		load(bucket, key);
+		return cache.get(bucket, key);
+	}
+
+	@Override
+	public InputStream getInputStream(String bucket, String key) {
+		return Channels.newInputStream(open(bucket, key));
+	}
+
+	@Override
+	public ReadableByteChannel getChannel(String bucket, String key) {
+		return open(bucket, key);
+	}
+
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key) {
+		try (FileChannel in = open(bucket, key)) {
+			long size = in.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IllegalStateException(bucket + "/" + key + " is too large for a ByteBuffer: " + size);
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (in.read(buffer) < 0) {
+					throw new EOFException("expected " + size + " bytes, got " + buffer.position());
+				}
+			}
+			buffer.flip();
+			return buffer;
+		} catch (IOException e) {
+			throw new RuntimeException("getByteBuffer(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * A cached object is read from the cache; a miss reads only the range from the backend and is not admitted.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length) {
+		if (!touch(getId(bucket, key))) {
+			misses.incrementAndGet();
+			return backend.getByteBuffer(bucket, key, offset, length);
+		}
+
+		FileBlobStore.checkRange(offset, length);
+		//open() counts the hit
+		try (FileChannel in = open(bucket, key)) {
+			return FileBlobStore.read(in, offset, length);
+		} catch (IOException e) {
+			throw new RuntimeException("getByteBuffer(String bucket, String key, long offset, int length): " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void delete(String bucket, String key) {
+		Lock lock = keyLocks.get(getId(bucket, key));
+		lock.lock();
+		try {
+			backend.delete(bucket, key);
+		} finally {
+			discard(bucket, key);
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public List<String> list(String bucket, String prefix, String startAfter, int limit) {
+		return backend.list(bucket, prefix, startAfter, limit);
+	}
+
+	@Override
+	public BlobMetadata head(String bucket, String key) {
+		return backend.head(bucket, key);
+	}
+
+	@Override
+	public Blob getIfChanged(String bucket, String key, String knownEtag) {
+		return backend.getIfChanged(bucket, key, knownEtag);
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	public long getCachedBytes() {
+		synchronized (index) {
+			return cachedBytes;
+		}
+	}
+
+	/**
+	 * saves the index in its current recency order and closes the cache directory.
+	 */
+	@Override
+	public void close() {
+		synchronized (index) {
+			compactIndex();
+			journal.close();
+		}
+		cache.close();
+	}
+
+	/*
+	 * An open file survives the deletion of its entry, so the channel is opened
+	 * while the entry is known to be in the index; if it was evicted in between, it is loaded again.
+	 */
+	private FileChannel open(String bucket, String key) {
+		String id = getId(bucket, key);
+		while (true) {
+			load(bucket, key);
+			synchronized (index) {
+				if (index.containsKey(id)) {
+					try {
+						return FileChannel.open(cache.get(bucket, key).toPath(), StandardOpenOption.READ);
+					} catch (IOException e) {
+						throw new RuntimeException("open(String bucket, String key): " + e.getMessage(), e);
+					}
+				}
+			}
+		}
+	}
+
+	private void load(String bucket, String key) {
+		String id = getId(bucket, key);
+		if (touch(id)) {
+			hits.incrementAndGet();
+			return;
+		}
+
+		List<Entry> victims;
+		Lock lock = keyLocks.get(id);
+		lock.lock();
+		try {
+			//another thread may have fetched it while this one was waiting
+			if (touch(id)) {
+				hits.incrementAndGet();
+				return;
+			}
+
+			misses.incrementAndGet();
+			long size;
+			try (InputStream in = backend.getInputStream(bucket, key)) {
+				size = cache.put(bucket, key, in);
+			} catch (IOException e) {
+				throw new RuntimeException("load(String bucket, String key): " + e.getMessage(), e);
+			}
+			victims = admit(new Entry(bucket, key, size));
+		} finally {
+			lock.unlock();
+		}
+		evict(victims);
+	}
+
+	private void write(String bucket, String key, LongSupplier store) {
+		String id = getId(bucket, key);
+
+		List<Entry> victims;
+		Lock lock = keyLocks.get(id);
+		lock.lock();
+		try {
+			long size;
+			try {
+				size = store.getAsLong();
+			} catch (RuntimeException e) {
+				//the cached copy may already have been replaced, it cannot be trusted any more
+				discard(bucket, key);
+				throw e;
+			}
+			victims = admit(new Entry(bucket, key, size));
+		} finally {
+			lock.unlock();
+		}
+		evict(victims);
+	}
+
+	private boolean touch(String id) {
+		synchronized (index) {
+			return index.get(id) != null;
+		}
+	}
+
+	/*
+	 * Victims leave the index here, but their files are only deleted by evict(),
+	 * which takes their key lock and must not be called while another key lock is held.
+	 */
+	private List<Entry> admit(Entry entry) {
+		synchronized (index) {
+			Entry old = index.put(entry.getId(), entry);
+			if (old != null) {
+				cachedBytes -= old.size;
+			}
+			cachedBytes += entry.size;
+			log(ADD + SEPARATOR + entry.size + SEPARATOR + entry.bucket + SEPARATOR + entry.key);
+			return evictOverBudget();
+		}
+	}
+
+	private List<Entry> evictOverBudget() {
+		List<Entry> victims = new ArrayList<Entry>();
+		Iterator<Entry> iterator = index.values().iterator();
+		while ((cachedBytes > maxBytes) && (index.size() > 1)) {
+			Entry victim = iterator.next();
+			iterator.remove();
+			cachedBytes -= victim.size;
+			log(REMOVE + SEPARATOR + victim.bucket + SEPARATOR + victim.key);
+			victims.add(victim);
+		}
+		return victims;
+	}
+
+	private void evict(List<Entry> victims) {
+		for (Entry victim : victims) {
+			Lock lock = keyLocks.get(victim.getId());
+			lock.lock();
+			try {
+				synchronized (index) {
+					if (index.containsKey(victim.getId())) {
+						//loaded again since it was chosen
+						continue;
+					}
+				}
+				//through the cache, so its key index forgets the key too
+				cache.delete(victim.bucket, victim.key);
+				evictions.incrementAndGet();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private void discard(String bucket, String key) {
+		synchronized (index) {
+			Entry old = index.remove(getId(bucket, key));
+			if (old != null) {
+				cachedBytes -= old.size;
+				log(REMOVE + SEPARATOR + bucket + SEPARATOR + key);
+			}
+		}
+		try {
+			cache.delete(bucket, key);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void log(String line) {
+		journal.println(line);
+		journal.flush();
+
+		if ((++journalLines > MIN_JOURNAL_COMPACTION) && (journalLines > 2 * index.size())) {
+			compactIndex();
+		}
+	}
+
+	/*
+	 * Replays the journal, dropping the entries whose file is gone or was left half written.
+	 */
+	private void loadIndex() {
+		if (!indexFile.exists()) {
+			return;
+		}
+
+		try (BufferedReader reader = new BufferedReader(new FileReader(indexFile))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(ADD + SEPARATOR)) {
+					String[] strings = line.split(Pattern.quote(SEPARATOR), 4);
+					Entry entry = new Entry(strings[2], strings[3], Long.parseLong(strings[1]));
+					index.remove(entry.getId());
+					index.put(entry.getId(), entry);
+				} else if (line.startsWith(REMOVE + SEPARATOR)) {
+					String[] strings = line.split(Pattern.quote(SEPARATOR), 3);
+					index.remove(getId(strings[1], strings[2]));
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			//a torn last line is expected after a crash, everything before it is still good
+			e.printStackTrace();
+		}
+
+		for (Iterator<Entry> iterator = index.values().iterator(); iterator.hasNext(); ) {
+			Entry entry = iterator.next();
+			File file = cache.get(entry.bucket, entry.key);
+			if (file.isFile() && (file.length() == entry.size)) {
+				cachedBytes += entry.size;
+			} else {
+				iterator.remove();
+			}
+		}
+	}
+
+	private void compactIndex() {
+		if (journal != null) {
+			journal.close();
+		}
+
+		try {
+			try (PrintWriter writer = new PrintWriter(new FileWriter(copyIndexFile))) {
+				for (Entry entry : index.values()) {
+					writer.println(ADD + SEPARATOR + entry.size + SEPARATOR + entry.bucket + SEPARATOR + entry.key);
+				}
+			}
+			Files.move(copyIndexFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			journal = new PrintWriter(new FileWriter(indexFile, true));
+			journalLines = index.size();
+		} catch (IOException e) {
+			throw new RuntimeException("compactIndex(): " + e.getMessage(), e);
+		}
+	}
+
+	//a bucket name cannot contain "/", so the id is unambiguous
+	private static String getId(String bucket, String key) {
+		return bucket + "/" + key;
+	}
+
+	private static class Entry {
+		final String bucket;
+		final String key;
+		final long size;
+
+		Entry(String bucket, String key, long size) {
+			this.bucket = bucket;
+			this.key = key;
+			this.size = size;
+		}
+
+		String getId() {
+			return CachingBlobStore.getId(bucket, key);
+		}
+	}
+}
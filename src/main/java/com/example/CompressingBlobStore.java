@@ -0,0 +1,455 @@
+package com.example;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Compresses the objects of another BlobStore, with a codec chosen per bucket.
+ * Every object gets a header of [magic:int][version:byte][codec:byte][uncompressed length:long][crc32 of the fields before:int];
+ * objects without it, written around this store, are read as they are. The checksum keeps a raw object
+ * that happens to start with the magic from being taken for an encoded one.
+ * The first 64 KB of an object are compressed as a sample and objects that do not shrink enough are stored uncompressed.
+ */
+public class CompressingBlobStore implements BlobStore {
+
+	public enum Codec {
+		NONE(Deflater.NO_COMPRESSION), DEFLATE(Deflater.DEFAULT_COMPRESSION), DEFLATE_FAST(Deflater.BEST_SPEED);
+
+		private final int level;
+
+		private Codec(int level) {
+			this.level = level;
+		}
+	}
+
+	private static final int MAGIC = 0x5a424c42;
+	private static final byte VERSION = 1;
+	private static final int CHECKED_SIZE = 4 + 1 + 1 + 8;
+	private static final int HEADER_SIZE = CHECKED_SIZE + 4;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	/*a sample compressed to more than this part of its size is not worth the cpu*/
+	private static final double MAX_RATIO = 0.9;
+	private static final int MAX_KNOWN_SIZES = 10000;
+
+	private final BlobStore backend;
+	private final Codec defaultCodec;
+	/*bucket->codec, if not the default one*/
+	private final Map<String, Codec> codecs = new ConcurrentHashMap<String, Codec>();
+	/*bucket/key->metadata with the uncompressed size, valid while the etag of the backend is the same*/
+	private final Cache<String, BlobMetadata> knownSizes = CacheBuilder.newBuilder().maximumSize(MAX_KNOWN_SIZES).build();
+
+	private final AtomicLong uncompressedBytes = new AtomicLong();
+	private final AtomicLong storedBytes = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+
+	public CompressingBlobStore(BlobStore backend) {
+		this(backend, Codec.DEFLATE_FAST);
+	}
+
+	public CompressingBlobStore(BlobStore backend, Codec defaultCodec) {
+		if ((backend == null) || (defaultCodec == null)) {
+			throw new IllegalArgumentException();
+		}
+
+		this.backend = backend;
+		this.defaultCodec = defaultCodec;
+	}
+
+	/**
+	 * applies to the objects put from now on; the stored ones keep their codec.
+	 */
+	public void setCodec(String bucket, Codec codec) {
+		if ((bucket == null) || (codec == null)) {
+			throw new IllegalArgumentException();
+		}
+		codecs.put(bucket, codec);
+	}
+
+	public Codec getCodec(String bucket) {
+		return codecs.getOrDefault(bucket, defaultCodec);
+	}
+
+	@Override
+	public void put(String bucket, String key, File data) {
+		try (InputStream in = new FileInputStream(data)) {
+			put(bucket, key, in, data.length());
+		} catch (IOException e) {
+			throw new RuntimeException("put(String bucket, String key, File data): " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * The compressed length is only known at the end, so the object is encoded into a temporary file first.
+	 */
+	@Override
+	public void put(String bucket, String key, InputStream data, long length) {
+		File temp = null;
+		try {
+			temp = File.createTempFile("compressed-", null);
+			try (OutputStream out = new FileOutputStream(temp)) {
+				encode(getCodec(bucket), data, length, out);
+			}
+			backend.put(bucket, key, temp);
+			storedBytes.addAndGet(temp.length());
+		} catch (IOException e) {
+			throw new RuntimeException("put(String bucket, String key, InputStream data, long length): " + e.getMessage(), e);
+		} finally {
+			if (temp != null) {
+				temp.delete();
+			}
+		}
+	}
+
+	@Override
+	public void put(String bucket, String key, ReadableByteChannel data, long length) {
+		//not closed, the channel belongs to the caller
+		put(bucket, key, Channels.newInputStream(data), length);
+	}
+
+	@Override
+	public void put(String bucket, String key, ByteBuffer data) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(HEADER_SIZE + data.remaining() / 2);
+		try {
+			encode(getCodec(bucket), new ByteBufferInputStream(data.duplicate()), data.remaining(), out);
+		} catch (IOException e) {
+			throw new RuntimeException("put(String bucket, String key, ByteBuffer data): " + e.getMessage(), e);
+		}
+		backend.put(bucket, key, ByteBuffer.wrap(out.toByteArray()));
+		storedBytes.addAndGet(out.size());
+	}
+
+	/**
+	 * @return a temporary file with the uncompressed object, which the caller owns
+	 */
+	@Override
+	public File get(String bucket, String key) {
+		File file = null;
+		boolean copied = false;
+		try {
+			file = File.createTempFile("uncompressed-", null);
+			try (InputStream in = getInputStream(bucket, key)) {
+				Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			copied = true;
+			return file;
+		} catch (IOException e) {
+			throw new RuntimeException("get(String bucket, String key): " + e.getMessage(), e);
+		} finally {
+			if (!copied && (file != null)) {
+				file.delete();
+			}
+		}
+	}
+
+	@Override
+	public InputStream getInputStream(String bucket, String key) {
+		InputStream in = new BufferedInputStream(backend.getInputStream(bucket, key), BUFFER_SIZE);
+		try {
+			in.mark(HEADER_SIZE);
+			byte[] bytes = new byte[HEADER_SIZE];
+			Header header = readHeader(ByteBuffer.wrap(bytes, 0, ByteStreams.read(in, bytes, 0, HEADER_SIZE)));
+			if (header == null) {
+				in.reset();
+				return in;
+			}
+			if (header.codec == Codec.NONE) {
+				return in;
+			}
+			return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					super.close();
+					inf.end();
+				}
+			};
+		} catch (IOException | RuntimeException e) {
+			try {
+				in.close();
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw new RuntimeException("getInputStream(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public ReadableByteChannel getChannel(String bucket, String key) {
+		return Channels.newChannel(getInputStream(bucket, key));
+	}
+
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key) {
+		return decode(backend.getByteBuffer(bucket, key));
+	}
+
+	/**
+	 * A range of an uncompressed object is read from the backend as a range;
+	 * a compressed object is inflated from its beginning up to the end of the range.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length) {
+		FileBlobStore.checkRange(offset, length);
+		Header header = readHeader(backend.getByteBuffer(bucket, key, 0L, HEADER_SIZE));
+		if (header == null) {
+			return backend.getByteBuffer(bucket, key, offset, length);
+		}
+		if (header.codec == Codec.NONE) {
+			return backend.getByteBuffer(bucket, key, HEADER_SIZE + offset, length);
+		}
+
+		long uncompressedLength = header.length;
+		int clipped = (int) Math.max(0L, Math.min(length, uncompressedLength - offset));
+		try (InputStream in = getInputStream(bucket, key)) {
+			ByteStreams.skipFully(in, Math.min(offset, uncompressedLength));
+			byte[] range = new byte[clipped];
+			ByteStreams.readFully(in, range);
+			return ByteBuffer.wrap(range);
+		} catch (IOException e) {
+			throw new RuntimeException("getByteBuffer(String bucket, String key, long offset, int length): " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void delete(String bucket, String key) {
+		backend.delete(bucket, key);
+		knownSizes.invalidate(getId(bucket, key));
+	}
+
+	@Override
+	public List<String> list(String bucket, String prefix, String startAfter, int limit) {
+		return backend.list(bucket, prefix, startAfter, limit);
+	}
+
+	/**
+	 * The uncompressed size is in the header of the object, not in the metadata of the backend,
+	 * so the first head() of a version of an object also reads its header, a second round trip;
+	 * later ones are answered from the sizes seen, as long as the etag is the same.
+	 * Callers that do not need the size can ask the backend.
+	 * @return the metadata of the backend, with the uncompressed size
+	 */
+	@Override
+	public BlobMetadata head(String bucket, String key) {
+		BlobMetadata stored = backend.head(bucket, key);
+		if ((stored == null) || (stored.getSize() < HEADER_SIZE)) {
+			return stored;
+		}
+		String id = getId(bucket, key);
+		BlobMetadata known = knownSizes.getIfPresent(id);
+		if ((known != null) && known.getEtag().equals(stored.getEtag())) {
+			return known;
+		}
+
+		Header header = readHeader(backend.getByteBuffer(bucket, key, 0L, HEADER_SIZE));
+		BlobMetadata metadata = (header == null) ? stored : new BlobMetadata(header.length, stored.getEtag(), stored.getLastModified());
+		knownSizes.put(id, metadata);
+		return metadata;
+	}
+
+	@Override
+	public Blob getIfChanged(String bucket, String key, String knownEtag) {
+		Blob stored = backend.getIfChanged(bucket, key, knownEtag);
+		if (stored == null) {
+			return null;
+		}
+
+		ByteBuffer data = decode(stored.getData());
+		BlobMetadata metadata = stored.getMetadata();
+		metadata = new BlobMetadata(data.remaining(), metadata.getEtag(), metadata.getLastModified());
+		knownSizes.put(getId(bucket, key), metadata);
+		return new Blob(metadata, data);
+	}
+
+	public long getUncompressedBytes() {
+		return uncompressedBytes.get();
+	}
+
+	/**
+	 * @return bytes handed to the backend, headers included
+	 */
+	public long getStoredBytes() {
+		return storedBytes.get();
+	}
+
+	/**
+	 * @return objects stored uncompressed because their sample did not compress well
+	 */
+	public long getSkippedCount() {
+		return skipped.get();
+	}
+
+	private ByteBuffer decode(ByteBuffer stored) {
+		Header header = readHeader(stored);
+		if (header == null) {
+			return stored;
+		}
+
+		ByteBuffer body = stored.duplicate();
+		body.get(new byte[HEADER_SIZE]);
+		body = body.slice();
+		if (header.codec == Codec.NONE) {
+			return body;
+		}
+		long length = header.length;
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalStateException("the uncompressed object is too large for a ByteBuffer: " + length);
+		}
+
+		byte[] compressed;
+		int offset;
+		int compressedLength = body.remaining();
+		if (body.hasArray()) {
+			compressed = body.array();
+			offset = body.arrayOffset() + body.position();
+		} else {
+			compressed = new byte[compressedLength];
+			body.get(compressed);
+			offset = 0;
+		}
+		byte[] uncompressed = new byte[(int) length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed, offset, compressedLength);
+			int inflated = 0;
+			while (inflated < uncompressed.length) {
+				int n = inflater.inflate(uncompressed, inflated, uncompressed.length - inflated);
+				if ((n == 0) && (inflater.finished() || inflater.needsInput())) {
+					throw new EOFException("expected " + length + " bytes, got " + inflated);
+				}
+				inflated += n;
+			}
+		} catch (DataFormatException | EOFException e) {
+			throw new RuntimeException("decode(ByteBuffer stored): " + e.getMessage(), e);
+		} finally {
+			inflater.end();
+		}
+		return ByteBuffer.wrap(uncompressed);
+	}
+
+	private void encode(Codec codec, InputStream in, long length, OutputStream out) throws IOException {
+		byte[] sample = new byte[(int) Math.min(length, SAMPLE_SIZE)];
+		ByteStreams.readFully(in, sample);
+		if (sample.length == 0) {
+			codec = Codec.NONE;
+		} else if ((codec != Codec.NONE) && !compresses(codec, sample)) {
+			codec = Codec.NONE;
+			skipped.incrementAndGet();
+		}
+
+		out.write(writeHeader(codec, length));
+
+		Deflater deflater = codec == Codec.NONE ? null : new Deflater(codec.level);
+		try {
+			OutputStream body = deflater == null ? out : new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+			body.write(sample);
+			long copied = sample.length + ByteStreams.copy(ByteStreams.limit(in, length - sample.length), body);
+			if (copied < length) {
+				throw new EOFException("expected " + length + " bytes, got " + copied);
+			}
+			if (body instanceof DeflaterOutputStream) {
+				((DeflaterOutputStream) body).finish();
+			}
+			body.flush();
+		} finally {
+			if (deflater != null) {
+				deflater.end();
+			}
+		}
+		uncompressedBytes.addAndGet(length);
+	}
+
+	//a bucket name cannot contain "/", so the id is unambiguous
+	private static String getId(String bucket, String key) {
+		return bucket + "/" + key;
+	}
+
+	private static byte[] writeHeader(Codec codec, long length) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).put(VERSION).put((byte) codec.ordinal()).putLong(length);
+		CRC32 crc = new CRC32();
+		crc.update(header.array(), 0, CHECKED_SIZE);
+		header.putInt((int) crc.getValue());
+		return header.array();
+	}
+
+	/**
+	 * @return the header the buffer starts with, null if it does not start with one
+	 */
+	private static Header readHeader(ByteBuffer buffer) {
+		int position = buffer.position();
+		if ((buffer.remaining() < HEADER_SIZE) || (buffer.getInt(position) != MAGIC)) {
+			return null;
+		}
+		byte[] checked = new byte[CHECKED_SIZE];
+		for (int i = 0; i < CHECKED_SIZE; ++i) {
+			checked[i] = buffer.get(position + i);
+		}
+		CRC32 crc = new CRC32();
+		crc.update(checked, 0, CHECKED_SIZE);
+		if (buffer.getInt(position + CHECKED_SIZE) != (int) crc.getValue()) {
+			return null;
+		}
+
+		//a valid header this version cannot read was written by a later one
+		byte version = buffer.get(position + 4);
+		byte codec = buffer.get(position + 5);
+		long length = buffer.getLong(position + 6);
+		if ((version != VERSION) || (codec < 0) || (codec >= Codec.values().length) || (length < 0L)) {
+			throw new IllegalStateException("unsupported header: version " + version + ", codec " + codec + ", length " + length);
+		}
+		return new Header(Codec.values()[codec], length);
+	}
+
+	private static boolean compresses(Codec codec, byte[] sample) {
+		Deflater deflater = new Deflater(codec.level);
+		try {
+			deflater.setInput(sample);
+			deflater.finish();
+			byte[] output = new byte[BUFFER_SIZE];
+			long compressed = 0L;
+			long limit = (long) (sample.length * MAX_RATIO);
+			while (!deflater.finished() && (compressed <= limit)) {
+				compressed += deflater.deflate(output);
+			}
+			return compressed <= limit;
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private static class Header {
+		private final Codec codec;
+		private final long length;
+
+		Header(Codec codec, long length) {
+			this.codec = codec;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The memory-mapped control file of a FileImpl queue, shared by every process using the queue:
+ * a lock word, the counters of the queue, its priority policy and the head offset of each of its priority levels.
+ * <p>
+ * The lock word is taken by an atomic compare-and-swap on the mapped memory, through <code>sun.misc.Unsafe</code>,
+ * so taking a free lock costs no system call; a waiter spins, then yields, then parks for growing intervals.
+ * Unsafe is only reached reflectively, its methods through method handles, so that the code compiles without it.
+ * Where Unsafe cannot be had, the lock is a FileLock on the lock word, taken after a lock within the JVM,
+ * since a FileLock is held by the process rather than by a thread.
+ * Everything but the lock word is only read and written with the lock held.
+ * <p>
+ * As with the '.lock' directory it replaces, a process dying with the lock held leaves the queue locked.
+ */
+class ControlBlock {
+
+	/*"QCB1", written once the block has been initialized*/
+	private static final int MAGIC = 0x51434231;
+	private static final int MAGIC_OFFSET = 0;
+	private static final int LOCK_OFFSET = 8;
+	private static final int VISIBLE_OFFSET = 16;
+	private static final int NOT_VISIBLE_OFFSET = 24;
+	private static final int DELAYED_OFFSET = 32;
+	/*ordinal of the Priority.Policy + 1, 0 until it is known*/
+	private static final int POLICY_OFFSET = 40;
+	/*one long per Priority, by ordinal*/
+	private static final int HEADS_OFFSET = 64;
+	private static final int SIZE = 128;
+	private static final int SPINS = 100;
+	private static final int YIELDS = 100;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10L);
+
+	/*Unsafe.compareAndSwapInt and Unsafe.putIntVolatile bound to the Unsafe instance, null without it*/
+	private static final MethodHandle COMPARE_AND_SWAP_INT;
+	private static final MethodHandle PUT_INT_VOLATILE;
+	/*Unsafe.getLong(buffer, offset of Buffer.address)*/
+	private static final MethodHandle GET_ADDRESS;
+	/*control file->lock of this JVM, for the FileLock fallback*/
+	private static final ConcurrentMap<String, ReentrantLock> JVM_LOCKS = new ConcurrentHashMap<String, ReentrantLock>();
+
+	static {
+		MethodHandle compareAndSwapInt = null;
+		MethodHandle putIntVolatile = null;
+		MethodHandle getAddress = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			Object unsafe = theUnsafe.get(null);
+			long addressOffset = (Long) unsafeClass.getMethod("objectFieldOffset", Field.class).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			compareAndSwapInt = lookup.findVirtual(unsafeClass, "compareAndSwapInt",
+					MethodType.methodType(boolean.class, Object.class, long.class, int.class, int.class)).bindTo(unsafe);
+			putIntVolatile = lookup.findVirtual(unsafeClass, "putIntVolatile",
+					MethodType.methodType(void.class, Object.class, long.class, int.class)).bindTo(unsafe);
+			getAddress = MethodHandles.insertArguments(lookup.findVirtual(unsafeClass, "getLong",
+					MethodType.methodType(long.class, Object.class, long.class)).bindTo(unsafe), 1, addressOffset);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			compareAndSwapInt = null;
+			putIntVolatile = null;
+			getAddress = null;
+		}
+		COMPARE_AND_SWAP_INT = compareAndSwapInt;
+		PUT_INT_VOLATILE = putIntVolatile;
+		GET_ADDRESS = getAddress;
+	}
+
+	private final File file;
+	/*identity of the mapped file, null where the file system has none*/
+	private final Object fileKey;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	/*address of the mapped block, 0 without Unsafe*/
+	private final long address;
+	private final ReentrantLock jvmLock;
+	private FileLock fileLock;
+
+	/**
+	 * maps the control file, creating it if needed.
+	 */
+	ControlBlock(File file) throws IOException {
+		this.file = file;
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		//mapping past the end grows the file with zeros, which is a free lock and a block not initialized yet
+		this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0L, SIZE);
+		this.fileKey = getFileKey(file);
+		this.address = (GET_ADDRESS == null) ? 0L : getAddress(buffer);
+		this.jvmLock = (address == 0L) ? JVM_LOCKS.computeIfAbsent(file.getCanonicalPath(), path -> new ReentrantLock()) : null;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return false once the control file has been deleted or replaced, e.g. by another process
+	 * deleting the queue and creating it again; the block then no longer maps the file of the queue
+	 */
+	boolean isCurrent() {
+		if (fileKey == null) {
+			return file.exists();
+		}
+		try {
+			return fileKey.equals(getFileKey(file));
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			throw new RuntimeException("isCurrent(): " + e.getMessage(), e);
+		}
+	}
+
+	void lock() {
+		long start = Tracing.start();
+		if (address == 0L) {
+			lockFile();
+		} else {
+			long parkNanos = 1000L;
+			for (int attempt = 0; !compareAndSwapInt(address + LOCK_OFFSET, 0, 1); ++attempt) {
+				if (attempt < SPINS) {
+					continue;
+				} else if (attempt < SPINS + YIELDS) {
+					Thread.yield();
+				} else {
+					LockSupport.parkNanos(parkNanos);
+					parkNanos = Math.min(parkNanos * 2L, MAX_PARK_NANOS);
+				}
+			}
+		}
+		Tracing.end(Tracing.Event.LOCK_WAIT, file.getPath(), start, 0L, 0L);
+	}
+
+	void unlock() {
+		if (address == 0L) {
+			unlockFile();
+		} else {
+			putIntVolatile(address + LOCK_OFFSET, 0);
+		}
+	}
+
+	/**
+	 * The lock must be held.
+	 * @return false the first time, when the block is still all zeros
+	 */
+	boolean isInitialized() {
+		return buffer.getInt(MAGIC_OFFSET) == MAGIC;
+	}
+
+	/**
+	 * The lock must be held.
+	 */
+	void initialize(long visible, long notVisible, long delayed) {
+		buffer.putLong(VISIBLE_OFFSET, visible);
+		buffer.putLong(NOT_VISIBLE_OFFSET, notVisible);
+		buffer.putLong(DELAYED_OFFSET, delayed);
+		for (Priority priority : Priority.values()) {
+			setHead(priority, 0L);
+		}
+		buffer.putInt(MAGIC_OFFSET, MAGIC);
+	}
+
+	/**
+	 * The lock must be held.
+	 */
+	void addToCounters(long visible, long notVisible, long delayed) {
+		buffer.putLong(VISIBLE_OFFSET, buffer.getLong(VISIBLE_OFFSET) + visible);
+		buffer.putLong(NOT_VISIBLE_OFFSET, buffer.getLong(NOT_VISIBLE_OFFSET) + notVisible);
+		buffer.putLong(DELAYED_OFFSET, buffer.getLong(DELAYED_OFFSET) + delayed);
+	}
+
+	/**
+	 * The lock must be held. Counters are never reported below 0.
+	 */
+	long getVisible() {
+		return Math.max(0L, buffer.getLong(VISIBLE_OFFSET));
+	}
+
+	long getNotVisible() {
+		return Math.max(0L, buffer.getLong(NOT_VISIBLE_OFFSET));
+	}
+
+	long getDelayed() {
+		return Math.max(0L, buffer.getLong(DELAYED_OFFSET));
+	}
+
+	/**
+	 * The lock must be held.
+	 * @return null until setPriorityPolicy(), e.g. for a block from before the policy was kept in it
+	 */
+	Priority.Policy getPriorityPolicy() {
+		int policy = buffer.getInt(POLICY_OFFSET);
+		return (policy == 0) ? null : Priority.Policy.values()[policy - 1];
+	}
+
+	void setPriorityPolicy(Priority.Policy policy) {
+		buffer.putInt(POLICY_OFFSET, policy.ordinal() + 1);
+	}
+
+	/**
+	 * The lock must be held.
+	 * @return the offset of the first record of the level's file which has not been pulled yet
+	 */
+	long getHead(Priority priority) {
+		return buffer.getLong(HEADS_OFFSET + 8 * priority.ordinal());
+	}
+
+	void setHead(Priority priority, long head) {
+		buffer.putLong(HEADS_OFFSET + 8 * priority.ordinal(), head);
+	}
+
+	private static Object getFileKey(File file) throws IOException {
+		return Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+	}
+
+	//the handles are static final and invoked exactly, so the JIT compiles them down to the Unsafe intrinsics
+	private static long getAddress(MappedByteBuffer buffer) {
+		try {
+			return (long) GET_ADDRESS.invokeExact((Object) buffer);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static boolean compareAndSwapInt(long address, int expected, int value) {
+		try {
+			return (boolean) COMPARE_AND_SWAP_INT.invokeExact((Object) null, address, expected, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void putIntVolatile(long address, int value) {
+		try {
+			PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+		} catch (RuntimeException | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void lockFile() {
+		jvmLock.lock();
+		try {
+			fileLock = channel.lock(LOCK_OFFSET, 4L, false);
+		} catch (IOException | RuntimeException e) {
+			jvmLock.unlock();
+			throw new RuntimeException("lock(): " + e.getMessage(), e);
+		}
+	}
+
+	private void unlockFile() {
+		try {
+			fileLock.release();
+		} catch (IOException e) {
+			throw new RuntimeException("unlock(): " + e.getMessage(), e);
+		} finally {
+			fileLock = null;
+			jvmLock.unlock();
+		}
+	}
+}
@@ -1,15 +1,41 @@
 package com.example;
 
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Stream;
+
+import com.google.common.base.Strings;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /*
  * For example,
@@ -18,17 +44,98 @@ import java.nio.file.Paths;
  * "2006-03-01/AmazonS3.wsdl" is the key
 */
 
-public class FileBlobStore implements BlobStore {
+public class FileBlobStore implements BlobStore, AsyncBlobStore, Closeable {
+	
+	/**
+	 * FILES keeps every key as a file of its own.
+	 * CONTENT_ADDRESSED keeps every distinct content once, named by its SHA-256 under <code>.objects</code>,
+	 * and every key as a small file holding that name; a content is deleted with its last key.
+	 * Keys are locked inside this process only, so a directory must not be shared by two processes in this mode.
+	 * PACKED appends objects up to 64 KB to large pack files under <code>.packs</code> and keeps larger ones as files;
+	 * a background repacker rewrites packs that are mostly dead. It is also meant for a single process.
+	 */
+	public enum StorageMode {
+		FILES, CONTENT_ADDRESSED, PACKED
+	}
 	
-	private static final String LOCK = ".lock";
+	private static final String TEMP_PREFIX = ".tmp-";
+	private static final String OBJECTS = ".objects";
+	private static final String KEYS = ".keys";
+	private static final String PACKS = ".packs";
+	private static final String REFERENCES = ".refs";
+	private static final String SHA_256 = "SHA-256";
+	private static final long BUFFER_SIZE = 64L * 1024;
+	private static final int DEFAULT_LOCK_STRIPES = 64;
+	private static final int PACK_THRESHOLD = 64 * 1024;
+	private static final long PACK_SIZE = 256L * 1024 * 1024;
+	private static final long REPACK_INTERVAL_MILLIS = 60L * 1000;
+	/*a sealed pack is rewritten once less than this part of it is alive*/
+	private static final double MIN_LIVE_RATIO = 0.5;
+	private static final int DEFAULT_ASYNC_CONCURRENCY = 16;
+	private static final int MIN_MAPPED_RANGE = 1024 * 1024;
+	private static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * 1024 * 1024;
+	/*reads of an object rewritten meanwhile, before getIfChanged gives up*/
+	private static final int MAX_READ_ATTEMPTS = 3;
 	
 	private String path;
+	private final StorageMode mode;
+	private final Striped<Lock> writeLocks;
+	/*sha-256->lock, guards the content and its reference count*/
+	private final Striped<Lock> contentLocks;
+	/*bucket/key->lock, makes the change of a key and of its index entry one step even when writers race*/
+	private final Striped<Lock> indexLocks = Striped.lock(DEFAULT_LOCK_STRIPES);
+	/*bucket->sorted index of its keys, opened on first use*/
+	private final Map<String, KeyIndex> keyIndexes = new ConcurrentHashMap<String, KeyIndex>();
+	/*bucket->its packed objects, opened on first use*/
+	private final Map<String, PackedBucket> packedBuckets = new ConcurrentHashMap<String, PackedBucket>();
+	private final IoScheduler io = new IoScheduler("file-io", DEFAULT_ASYNC_CONCURRENCY, DEFAULT_MAX_IN_FLIGHT_BYTES);
+	/*rewrites the packs in PACKED mode, null otherwise*/
+	private final ScheduledExecutorService repacker;
 	
 	public FileBlobStore(String path) {
+		this(path, 0);
+	}
+	
+	/**
+	 * @param writeLockStripes - when positive, writers of the same key inside this process
+	 * are serialised on one of that many locks; 0 lets them race, the last rename wins
+	 */
+	public FileBlobStore(String path, int writeLockStripes) {
+		this(path, writeLockStripes, StorageMode.FILES);
+	}
+	
+	/**
+	 * @param writeLockStripes - as above; CONTENT_ADDRESSED always serialises the writers of a key
+	 */
+	public FileBlobStore(String path, int writeLockStripes, StorageMode mode) {
+		if (writeLockStripes < 0) {
+			throw new IllegalArgumentException("writeLockStripes must not be negative: " + writeLockStripes);
+		}
+		if (mode == null) {
+			throw new IllegalArgumentException("mode must not be null");
+		}
+		
 		this.path = path;
+		this.mode = mode;
+		if (mode == StorageMode.CONTENT_ADDRESSED) {
+			int stripes = Math.max(writeLockStripes, DEFAULT_LOCK_STRIPES);
+			this.writeLocks = Striped.lock(stripes);
+			this.contentLocks = Striped.lock(stripes);
+		} else {
+			this.writeLocks = writeLockStripes == 0 ? null : Striped.lock(writeLockStripes);
+			this.contentLocks = null;
+		}
 		
 		File file = new File(this.path);
 		file.mkdirs();
+		
+		if (mode == StorageMode.PACKED) {
+			this.repacker = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("repacker-%d").setDaemon(true).build());
+			this.repacker.scheduleWithFixedDelay(this::repack, REPACK_INTERVAL_MILLIS, REPACK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+		} else {
+			this.repacker = null;
+		}
 	}
 	
 	public void createBucket(String bucket) {
@@ -38,72 +145,920 @@ public class FileBlobStore implements BlobStore {
 		System.out.println("createBucket: " + file.getAbsolutePath());
 	}
 	
+	/**
+	 * The data is copied into a temporary file next to the target with <code>FileChannel.transferTo</code>,
+	 * which lets the kernel move the bytes, and then renamed over the target in one step:
+	 * readers never see a partial object and need no lock.
+	 */
 	@Override
 	public void put(String bucket, String key, File data) {
+		long start = Tracing.start();
+		try {
+			Content content = out -> {
+				try (FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+					long size = in.size();
+					long position = 0L;
+					while (position < size) {
+						position += in.transferTo(position, size - position, out);
+					}
+				}
+			};
+		
+			if (mode == StorageMode.CONTENT_ADDRESSED) {
+				//hashing the source first means a known content is never copied
+				putContent(bucket, key, hash(data), content);
+			} else if ((mode == StorageMode.PACKED) && (data.length() <= PACK_THRESHOLD)) {
+				putPacked(bucket, key, packed -> {
+					try (FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+						packed.put(key, in, in.size());
+					}
+				});
+			} else {
+				put(bucket, key, content);
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, data.length(), 1L);
+		}
+	}
+	
+	@Override
+	public void put(String bucket, String key, InputStream data, long length) {
+		put(bucket, key, Channels.newChannel(data), length);
+	}
+	
+	@Override
+	public void put(String bucket, String key, ReadableByteChannel data, long length) {
+		long start = Tracing.start();
+		try {
+			if (length < 0) {
+				throw new IllegalArgumentException("length must not be negative: " + length);
+			}
 		
-		File lock = getLockFile(bucket);
+			if (mode == StorageMode.CONTENT_ADDRESSED) {
+				putContent(bucket, key, new DigestingContent(data, length));
+				return;
+			}
+			if ((mode == StorageMode.PACKED) && (length <= PACK_THRESHOLD)) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) length);
+				putPacked(bucket, key, packed -> {
+					if (readUpTo(data, buffer) < length) {
+						throw new EOFException("expected " + length + " bytes, got " + buffer.position());
+					}
+					buffer.flip();
+					packed.put(key, buffer);
+				});
+				return;
+			}
 		
-		Path to = Paths.get(path + File.separator + bucket + File.separator + key);
+			put(bucket, key, out -> {
+				long position = 0L;
+				while (position < length) {
+					long transferred = out.transferFrom(data, position, length - position);
+					if (transferred == 0L) {
+						throw new EOFException("expected " + length + " bytes, got " + position);
+					}
+					position += transferred;
+				}
+			});
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, length, 1L);
+		}
+	}
+	
+	/**
+	 * stores the stream up to its end.
+	 * @return the number of bytes stored
+	 */
+	public long put(String bucket, String key, InputStream data) {
+		long start = Tracing.start();
+		long stored = 0L;
+		try {
+			ReadableByteChannel in = Channels.newChannel(data);
+			if (mode == StorageMode.CONTENT_ADDRESSED) {
+				stored = putContent(bucket, key, new DigestingContent(in, -1L));
+				return stored;
+			}
 		
-		if(Files.notExists(to)) {
+			//in PACKED mode, the head of the stream tells whether it is small enough for a pack
+			ByteBuffer head = ByteBuffer.allocate(mode == StorageMode.PACKED ? PACK_THRESHOLD + 1 : 0);
 			try {
-				Files.createDirectories(to.getParent());
-				Files.createFile(to);
-			} catch (IOException e1) {
-				e1.printStackTrace();
+				readUpTo(in, head);
+			} catch (IOException e) {
+				throw new RuntimeException("put(String bucket, String key, InputStream data): " + e.getMessage(), e);
+			}
+			head.flip();
+			if ((mode == StorageMode.PACKED) && (head.remaining() <= PACK_THRESHOLD)) {
+				stored = head.remaining();
+				putPacked(bucket, key, packed -> packed.put(key, head));
+				return stored;
 			}
+		
+			stored = put(bucket, key, out -> {
+				while (head.hasRemaining()) {
+					out.write(head);
+				}
+				long position = out.position();
+				long transferred;
+				while ((transferred = out.transferFrom(in, position, BUFFER_SIZE)) > 0L) {
+					position += transferred;
+				}
+			});
+			return stored;
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, stored, 1L);
 		}
+	}
+	
+	@Override
+	public void put(String bucket, String key, ByteBuffer data) {
+		long start = Tracing.start();
+		long length = data.remaining();
+		try {
+			ByteBuffer source = data.duplicate();
+			Content content = out -> {
+				while (source.hasRemaining()) {
+					out.write(source);
+				}
+			};
+		
+			if (mode == StorageMode.CONTENT_ADDRESSED) {
+				MessageDigest digest = newDigest();
+				digest.update(data.duplicate());
+				putContent(bucket, key, toHex(digest.digest()), content);
+			} else if ((mode == StorageMode.PACKED) && (data.remaining() <= PACK_THRESHOLD)) {
+				putPacked(bucket, key, packed -> packed.put(key, data));
+			} else {
+				put(bucket, key, content);
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, length, 1L);
+		}
+	}
+	
+	/**
+	 * deletes the key; in CONTENT_ADDRESSED mode the content goes with its last key.
+	 */
+	@Override
+	public void delete(String bucket, String key) {
+		long start = Tracing.start();
+		try {
+			Lock lock = writeLocks == null ? null : writeLocks.get(bucket + File.separator + key);
+			if (lock != null) {
+				lock.lock();
+			}
+			try {
+				String hash = (mode == StorageMode.CONTENT_ADDRESSED) ? readReference(bucket, key) : null;
+				Lock indexLock = indexLocks.get(bucket + File.separator + key);
+				indexLock.lock();
+				try {
+					boolean deleted = Files.deleteIfExists(getKeyFile(bucket, key).toPath());
+					if (mode == StorageMode.PACKED) {
+						deleted |= getPackedBucket(bucket).delete(key);
+					}
+					if (deleted) {
+						getKeyIndex(bucket).remove(key);
+					}
+				} finally {
+					indexLock.unlock();
+				}
+				if (hash != null) {
+					release(hash);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("delete(String bucket, String key): " + e.getMessage(), e);
+			} finally {
+				if (lock != null) {
+					lock.unlock();
+				}
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, 0L, 1L);
+		}
+	}
+	
+	private long put(String bucket, String key, Content content) {
 		
-		lock(lock);
-		try (InputStream inputStream = new FileInputStream(data);
-			OutputStream outputStream = new FileOutputStream(to.toFile())) {
+		Lock lock = writeLocks == null ? null : writeLocks.get(bucket + File.separator + key);
+		if (lock != null) {
+			lock.lock();
+		}
+		
+		Path to = Paths.get(path + File.separator + bucket + File.separator + key);
+		Path temp = null;
+		try {
+			Files.createDirectories(to.getParent());
+			temp = createTempFile(to.getParent());
 			
-			byte[] buffer = new byte[4 * 1024];
-            int bytesRead;
-            while( (bytesRead = inputStream.read(buffer)) > 0 ) {
-            	outputStream.write(buffer, 0, bytesRead);
-            }
+			long size;
+			try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+				content.writeTo(out);
+				size = out.size();
+			}
 			
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
+			Lock indexLock = indexLocks.get(bucket + File.separator + key);
+			indexLock.lock();
+			try {
+				Files.move(temp, to, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				if (mode == StorageMode.PACKED) {
+					//a smaller version may have been packed before
+					getPackedBucket(bucket).delete(key);
+				}
+				getKeyIndex(bucket).add(key);
+			} finally {
+				indexLock.unlock();
+			}
+			return size;
 		} catch (IOException e) {
-			e.printStackTrace();
+			throw new RuntimeException("put(String bucket, String key): " + e.getMessage(), e);
 		} finally {
-			unlock(lock);
+			deleteQuietly(temp);
+			if (lock != null) {
+				lock.unlock();
+			}
 		}
 	}
 
-	@Override
-	public File get(String bucket, String key) {
-		File lock = getLockFile(bucket);
-		lock(lock);
+	private void putPacked(String bucket, String key, PackedWrite write) {
+		Lock lock = writeLocks == null ? null : writeLocks.get(bucket + File.separator + key);
+		if (lock != null) {
+			lock.lock();
+		}
+		Lock indexLock = indexLocks.get(bucket + File.separator + key);
+		indexLock.lock();
 		try {
-			return getKeyFile(bucket, key);
+			write.writeTo(getPackedBucket(bucket));
+			//a larger version may have been kept as a file before
+			Files.deleteIfExists(getKeyFile(bucket, key).toPath());
+			getKeyIndex(bucket).add(key);
+		} catch (IOException e) {
+			throw new RuntimeException("put(String bucket, String key): " + e.getMessage(), e);
 		} finally {
-			unlock(lock);
+			indexLock.unlock();
+			if (lock != null) {
+				lock.unlock();
+			}
 		}
 	}
-
-	private void lock(File lock) {
-		while (!lock.mkdir()) {
+	
+	/**
+	 * stops the repacks and closes the packs and key indexes; another instance may then open the same path.
+	 */
+	@Override
+	public void close() {
+		if (repacker != null) {
+			repacker.shutdown();
 			try {
-				Thread.sleep(50);
+				//a repack still running could write to a closed pack
+				repacker.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		try {
+			for (PackedBucket packed : packedBuckets.values()) {
+				packed.close();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("close(): " + e.getMessage(), e);
+		} finally {
+			for (KeyIndex keyIndex : keyIndexes.values()) {
+				keyIndex.close();
+			}
+		}
+	}
+	
+	/**
+	 * rewrites the packs that are mostly dead; runs in the background every minute in PACKED mode.
+	 */
+	public void repack() {
+		for (PackedBucket packed : packedBuckets.values()) {
+			try {
+				packed.repack(MIN_LIVE_RATIO);
+			} catch (IOException | RuntimeException e) {
 				e.printStackTrace();
-				throw new RuntimeException(e);
 			}
 		}
 	}
+	
+	/*
+	 * The content is stored under its hash, unless it already is, and counted before the key points to it;
+	 * a crash in between leaves a count too high, never a key pointing at nothing.
+	 */
+	private void putContent(String bucket, String key, String hash, Content content) {
+		Lock lock = writeLocks.get(bucket + File.separator + key);
+		lock.lock();
+		try {
+			Lock contentLock = contentLocks.get(hash);
+			contentLock.lock();
+			try {
+				if (!retain(hash)) {
+					Path temp = writeTemp(content);
+					try {
+						publish(temp, hash);
+					} finally {
+						deleteQuietly(temp);
+					}
+				}
+			} finally {
+				contentLock.unlock();
+			}
+			link(bucket, key, hash);
+		} catch (IOException e) {
+			throw new RuntimeException("put(String bucket, String key): " + e.getMessage(), e);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	 * A stream has to be written out to learn its hash; the copy is dropped if the content is known.
+	 */
+	private long putContent(String bucket, String key, DigestingContent content) {
+		Lock lock = writeLocks.get(bucket + File.separator + key);
+		Path temp = null;
+		try {
+			temp = writeTemp(content);
+			long size = Files.size(temp);
+			String hash = content.getHash();
+			
+			lock.lock();
+			try {
+				Lock contentLock = contentLocks.get(hash);
+				contentLock.lock();
+				try {
+					if (!retain(hash)) {
+						publish(temp, hash);
+					}
+				} finally {
+					contentLock.unlock();
+				}
+				link(bucket, key, hash);
+			} finally {
+				lock.unlock();
+			}
+			return size;
+		} catch (IOException e) {
+			throw new RuntimeException("put(String bucket, String key): " + e.getMessage(), e);
+		} finally {
+			deleteQuietly(temp);
+		}
+	}
+	
+	private Path writeTemp(Content content) throws IOException {
+		Path objects = Paths.get(path, OBJECTS);
+		Files.createDirectories(objects);
+		Path temp = createTempFile(objects);
+		try (FileChannel out = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+			content.writeTo(out);
+		}
+		return temp;
+	}
+	
+	/**
+	 * Files.createTempFile would make the file owner-only, and the rename would publish it so;
+	 * created like this it gets the default mode of the umask, as the objects written by FileOutputStream did.
+	 */
+	private static Path createTempFile(Path directory) throws IOException {
+		Path temp = directory.resolve(TEMP_PREFIX + UUID.randomUUID());
+		Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+		return temp;
+	}
+	
+	/*
+	 * A count left by keys whose object file went missing is kept, those keys point at the content again.
+	 */
+	private void publish(Path temp, String hash) throws IOException {
+		Lock contentLock = contentLocks.get(hash);
+		contentLock.lock();
+		try {
+			Path object = getObjectFile(hash).toPath();
+			Files.createDirectories(object.getParent());
+			Files.move(temp, object, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			writeReferenceCount(hash, readReferenceCount(hash) + 1L);
+		} finally {
+			contentLock.unlock();
+		}
+	}
+	
+	//points the key at the content, releasing the content it pointed at before
+	private void link(String bucket, String key, String hash) throws IOException {
+		String old = readReference(bucket, key);
+		put(bucket, key, out -> out.write(ByteBuffer.wrap(hash.getBytes(StandardCharsets.US_ASCII))));
+		if (old != null) {
+			release(old);
+		}
+	}
+	
+	/**
+	 * @return false if the content is not stored
+	 */
+	private boolean retain(String hash) throws IOException {
+		Lock contentLock = contentLocks.get(hash);
+		contentLock.lock();
+		try {
+			long count = readReferenceCount(hash);
+			if ((count == 0L) || !getObjectFile(hash).isFile()) {
+				return false;
+			}
+			writeReferenceCount(hash, count + 1L);
+			return true;
+		} finally {
+			contentLock.unlock();
+		}
+	}
+	
+	private void release(String hash) throws IOException {
+		Lock contentLock = contentLocks.get(hash);
+		contentLock.lock();
+		try {
+			long count = readReferenceCount(hash) - 1L;
+			if (count > 0L) {
+				writeReferenceCount(hash, count);
+			} else {
+				Files.deleteIfExists(getObjectFile(hash).toPath());
+				Files.deleteIfExists(getReferenceCountFile(hash).toPath());
+			}
+		} finally {
+			contentLock.unlock();
+		}
+	}
+	
+	private long readReferenceCount(String hash) throws IOException {
+		File file = getReferenceCountFile(hash);
+		if (!file.isFile()) {
+			return 0L;
+		}
+		return Long.parseLong(new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim());
+	}
+	
+	private void writeReferenceCount(String hash, long count) throws IOException {
+		Path file = getReferenceCountFile(hash).toPath();
+		Path temp = createTempFile(file.getParent());
+		try {
+			Files.write(temp, Long.toString(count).getBytes(StandardCharsets.US_ASCII));
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			deleteQuietly(temp);
+		}
+	}
+	
+	/**
+	 * @return the hash the key points at, null if there is no such key
+	 */
+	private String readReference(String bucket, String key) throws IOException {
+		File file = getKeyFile(bucket, key);
+		if (!file.isFile()) {
+			return null;
+		}
+		return new String(Files.readAllBytes(file.toPath()), StandardCharsets.US_ASCII).trim();
+	}
+	
+	private String hash(File data) {
+		MessageDigest digest = newDigest();
+		try (FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) BUFFER_SIZE);
+			while (in.read(buffer) >= 0) {
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("hash(File data): " + e.getMessage(), e);
+		}
+		return toHex(digest.digest());
+	}
+	
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(SHA_256);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private static String toHex(byte[] bytes) {
+		return BaseEncoding.base16().lowerCase().encode(bytes);
+	}
 
-	private void unlock(File lock) {
-		lock.delete();
+	/**
+	 * In CONTENT_ADDRESSED mode the file is shared by every key with the same content and must not be modified;
+	 * in PACKED mode a packed object is copied into a temporary file, which the caller owns.
+	 */
+	@Override
+	public File get(String bucket, String key) {
+		ByteBuffer packed = getPacked(bucket, key);
+		if (packed == null) {
+			return resolve(bucket, key);
+		}
+		
+		try {
+			File file = File.createTempFile("packed-", null);
+			try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+				while (packed.hasRemaining()) {
+					out.write(packed);
+				}
+			}
+			return file;
+		} catch (IOException e) {
+			throw new RuntimeException("get(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * A published object is never written in place, only replaced by a rename,
+	 * so readers open it without any lock and keep the version they opened.
+	 */
+	@Override
+	public InputStream getInputStream(String bucket, String key) {
+		return Channels.newInputStream(getChannel(bucket, key));
+	}
+	
+	@Override
+	public ReadableByteChannel getChannel(String bucket, String key) {
+		ByteBuffer packed = getPacked(bucket, key);
+		if (packed != null) {
+			return Channels.newChannel(new ByteBufferInputStream(packed));
+		}
+		
+		try {
+			return FileChannel.open(resolve(bucket, key).toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			throw new RuntimeException("getChannel(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+	
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key) {
+		long start = Tracing.start();
+		ByteBuffer result = null;
+		try {
+			ByteBuffer packed = getPacked(bucket, key);
+			if (packed != null) {
+				result = packed;
+				return result;
+			}
+		
+			try (FileChannel in = FileChannel.open(resolve(bucket, key).toPath(), StandardOpenOption.READ)) {
+				long size = in.size();
+				if (size > Integer.MAX_VALUE) {
+					throw new IllegalStateException(bucket + "/" + key + " is too large for a ByteBuffer: " + size);
+				}
+			
+				ByteBuffer buffer = ByteBuffer.allocate((int) size);
+				while (buffer.hasRemaining()) {
+					if (in.read(buffer) < 0) {
+						throw new EOFException("expected " + size + " bytes, got " + buffer.position());
+					}
+				}
+				buffer.flip();
+				result = buffer;
+				return result;
+			} catch (IOException e) {
+				throw new RuntimeException("getByteBuffer(String bucket, String key): " + e.getMessage(), e);
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_READ, bucket, start, (result == null) ? 0L : result.remaining(), 1L);
+		}
+	}
+	
+	/**
+	 * A range of at least 1 MB is memory-mapped, a smaller one is read into a buffer of its own.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length) {
+		long start = Tracing.start();
+		ByteBuffer result = null;
+		try {
+			checkRange(offset, length);
+			ByteBuffer packed = getPacked(bucket, key);
+			if (packed != null) {
+				packed.position((int) Math.min(offset, packed.limit()));
+				packed.limit((int) Math.min(offset + length, packed.limit()));
+				result = packed.slice();
+				return result;
+			}
+		
+			try (FileChannel in = FileChannel.open(resolve(bucket, key).toPath(), StandardOpenOption.READ)) {
+				result = read(in, offset, length);
+				return result;
+			} catch (IOException e) {
+				throw new RuntimeException("getByteBuffer(String bucket, String key, long offset, int length): " + e.getMessage(), e);
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_READ, bucket, start, (result == null) ? 0L : result.remaining(), 1L);
+		}
+	}
+
+	/**
+	 * Served from a sorted key index kept next to the buckets, in <code>.keys</code>;
+	 * it is built from the directory tree the first time a bucket is used.
+	 */
+	@Override
+	public List<String> list(String bucket, String prefix, String startAfter, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
+		}
+		
+		return getKeyIndex(bucket).list(Strings.nullToEmpty(prefix), startAfter, limit);
+	}
+	
+	/**
+	 * In CONTENT_ADDRESSED mode the ETag is the SHA-256 of the content. Otherwise every put changes it:
+	 * it is made of the size, the modification time and the file key of a file, or of the position of a packed record.
+	 */
+	@Override
+	public BlobMetadata head(String bucket, String key) {
+		BlobMetadata packed = (mode == StorageMode.PACKED) ? getPackedBucket(bucket).head(key) : null;
+		if (packed != null) {
+			return packed;
+		}
+		
+		try {
+			if (mode == StorageMode.CONTENT_ADDRESSED) {
+				String hash = readReference(bucket, key);
+				if (hash == null) {
+					return null;
+				}
+				long lastModified = Files.getLastModifiedTime(getKeyFile(bucket, key).toPath()).toMillis();
+				return new BlobMetadata(Files.size(getObjectFile(hash).toPath()), hash, lastModified);
+			}
+			
+			BasicFileAttributes attributes = Files.readAttributes(getKeyFile(bucket, key).toPath(), BasicFileAttributes.class);
+			StringBuilder etag = new StringBuilder()
+					.append(Long.toHexString(attributes.size())).append('-')
+					.append(Long.toHexString(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)));
+			if (attributes.fileKey() != null) {
+				//every put renames a new file into place, so the file key changes even within the clock's resolution
+				etag.append('-').append(Integer.toHexString(attributes.fileKey().hashCode()));
+			}
+			return new BlobMetadata(attributes.size(), etag.toString(), attributes.lastModifiedTime().toMillis());
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			throw new RuntimeException("head(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+	
+	/*
+	 * Reads are not locked, so the object is read between two heads and read again if they differ,
+	 * up to MAX_READ_ATTEMPTS times; then it fails with a ConcurrentModificationException.
+	 */
+	@Override
+	public Blob getIfChanged(String bucket, String key, String knownEtag) {
+		for (int attempt = 1; ; ++attempt) {
+			BlobMetadata metadata = head(bucket, key);
+			if (metadata == null) {
+				throw new RuntimeException("getIfChanged(String bucket, String key, String knownEtag): " + bucket + "/" + key + " does not exist");
+			}
+			if (metadata.getEtag().equals(knownEtag)) {
+				return null;
+			}
+			
+			ByteBuffer data = null;
+			try {
+				data = getByteBuffer(bucket, key);
+			} catch (RuntimeException e) {
+				//deleted after the head, which the next head tells
+				if (head(bucket, key) != null) {
+					throw e;
+				}
+			}
+			BlobMetadata after = head(bucket, key);
+			if (after == null) {
+				throw new RuntimeException("getIfChanged(String bucket, String key, String knownEtag): " + bucket + "/" + key + " does not exist");
+			}
+			if ((data != null) && metadata.getEtag().equals(after.getEtag())) {
+				return new Blob(metadata, data);
+			}
+			if (attempt == MAX_READ_ATTEMPTS) {
+				throw new ConcurrentModificationException(bucket + "/" + key + " changed during every read");
+			}
+		}
+	}
+	
+	@Override
+	public CompletableFuture<Void> putAsync(String bucket, String key, File data) {
+		return io.submit(data.length(), () -> {
+			put(bucket, key, data);
+			return null;
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> putAsync(String bucket, String key, ByteBuffer data) {
+		return io.submit(data.remaining(), () -> {
+			put(bucket, key, data);
+			return null;
+		});
+	}
+	
+	@Override
+	public CompletableFuture<File> getAsync(String bucket, String key) {
+		return io.submit(sizeOf(bucket, key), () -> get(bucket, key));
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> getByteBufferAsync(String bucket, String key) {
+		return io.submit(sizeOf(bucket, key), () -> getByteBuffer(bucket, key));
+	}
+	
+	@Override
+	public CompletableFuture<Void> deleteAsync(String bucket, String key) {
+		return io.submit(0L, () -> {
+			delete(bucket, key);
+			return null;
+		});
+	}
+	
+	@Override
+	public void setAsyncLimits(int maxConcurrency, long maxInFlightBytes) {
+		io.setLimits(maxConcurrency, maxInFlightBytes);
+	}
+	
+	private KeyIndex getKeyIndex(String bucket) {
+		return keyIndexes.computeIfAbsent(bucket, name -> {
+			try {
+				return new KeyIndex(new File(path + File.separator + KEYS + File.separator + name), walk(name));
+			} catch (IOException e) {
+				throw new RuntimeException("getKeyIndex(String bucket): " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	//the keys of a bucket without an index yet
+	private List<String> walk(String bucket) throws IOException {
+		Path root = Paths.get(path, bucket);
+		List<String> keys = new ArrayList<String>();
+		if (Files.isDirectory(root)) {
+			try (Stream<Path> files = Files.walk(root)) {
+				files.filter(file -> Files.isRegularFile(file) && !file.getFileName().toString().startsWith(TEMP_PREFIX))
+						.forEach(file -> keys.add(root.relativize(file).toString().replace(File.separatorChar, '/')));
+			}
+		}
+		if (mode == StorageMode.PACKED) {
+			keys.addAll(getPackedBucket(bucket).keys());
+		}
+		return keys;
+	}
+	
+	//what an async operation on the object is weighed by, 0 if it does not exist
+	private long sizeOf(String bucket, String key) {
+		long packed = (mode == StorageMode.PACKED) ? getPackedBucket(bucket).size(key) : -1L;
+		return packed >= 0L ? packed : resolve(bucket, key).length();
+	}
+	
+	private PackedBucket getPackedBucket(String bucket) {
+		return packedBuckets.computeIfAbsent(bucket, name -> {
+			try {
+				return new PackedBucket(new File(path + File.separator + PACKS + File.separator + name), PACK_SIZE);
+			} catch (IOException e) {
+				throw new RuntimeException("getPackedBucket(String bucket): " + e.getMessage(), e);
+			}
+		});
+	}
+	
+	/**
+	 * @return the packed object, null if it is not packed
+	 */
+	private ByteBuffer getPacked(String bucket, String key) {
+		if (mode != StorageMode.PACKED) {
+			return null;
+		}
+		try {
+			return getPackedBucket(bucket).get(key);
+		} catch (IOException e) {
+			throw new RuntimeException("getPacked(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+	
+	static void checkRange(long offset, int length) {
+		if ((offset < 0L) || (length < 0)) {
+			throw new IllegalArgumentException("offset and length must not be negative: " + offset + ", " + length);
+		}
+	}
+	
+	/**
+	 * @return the range clipped to the end of the file, flipped for reading
+	 */
+	static ByteBuffer read(FileChannel in, long offset, int length) throws IOException {
+		long size = in.size();
+		int clipped = (int) Math.max(0L, Math.min(length, size - offset));
+		if (clipped >= MIN_MAPPED_RANGE) {
+			return in.map(FileChannel.MapMode.READ_ONLY, offset, clipped);
+		}
+		
+		ByteBuffer buffer = ByteBuffer.allocate(clipped);
+		long position = offset;
+		while (buffer.hasRemaining()) {
+			int read = in.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("expected " + clipped + " bytes, got " + buffer.position());
+			}
+			position += read;
+		}
+		buffer.flip();
+		return buffer;
+	}
+	
+	/**
+	 * @return the number of bytes read, less than the buffer holds only at the end of the channel
+	 */
+	private static int readUpTo(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) {
+				break;
+			}
+		}
+		return buffer.position();
+	}
+	
+	private static void deleteQuietly(Path temp) {
+		if (temp != null) {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 	}
 	
 	private File getKeyFile(String bucketName, String key) {
 		return new File(path + File.separator + bucketName + File.separator + key);
 	}
 	
-	private File getLockFile(String bucketName) {
-		return new File(path + File.separator + bucketName + File.separator + LOCK);
+	//the file holding the object's bytes
+	private File resolve(String bucket, String key) {
+		if (mode != StorageMode.CONTENT_ADDRESSED) {
+			return getKeyFile(bucket, key);
+		}
+		
+		try {
+			String hash = readReference(bucket, key);
+			return hash == null ? getKeyFile(bucket, key) : getObjectFile(hash);
+		} catch (IOException e) {
+			throw new RuntimeException("resolve(String bucket, String key): " + e.getMessage(), e);
+		}
+	}
+	
+	//objects are spread over 256 directories by the first byte of their hash
+	private File getObjectFile(String hash) {
+		return new File(path + File.separator + OBJECTS + File.separator + hash.substring(0, 2) + File.separator + hash);
+	}
+	
+	private File getReferenceCountFile(String hash) {
+		return new File(getObjectFile(hash).getPath() + REFERENCES);
+	}
+	
+	private interface Content {
+		void writeTo(FileChannel out) throws IOException;
+	}
+	
+	private interface PackedWrite {
+		void writeTo(PackedBucket packed) throws IOException;
+	}
+	
+	/*
+	 * Copies a channel, up to a length or to its end when the length is negative, hashing what it copies.
+	 */
+	private static class DigestingContent implements Content {
+		
+		private final ReadableByteChannel in;
+		private final long length;
+		private final MessageDigest digest = newDigest();
+		
+		DigestingContent(ReadableByteChannel in, long length) {
+			this.in = in;
+			this.length = length;
+		}
+		
+		@Override
+		public void writeTo(FileChannel out) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int) BUFFER_SIZE);
+			long position = 0L;
+			while ((length < 0L) || (position < length)) {
+				if (length >= 0L) {
+					buffer.limit((int) Math.min(buffer.capacity(), length - position));
+				}
+				int read = in.read(buffer);
+				if (read < 0) {
+					if (length < 0L) {
+						break;
+					}
+					throw new EOFException("expected " + length + " bytes, got " + position);
+				}
+				position += read;
+				
+				buffer.flip();
+				digest.update(buffer.duplicate());
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+		
+		String getHash() {
+			return toHex(digest.digest());
+		}
 	}
-}
\ No newline at end of file
+}
@@ -1,29 +1,80 @@
 package com.example;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.amazonaws.services.sqs.model.Message;
 import com.google.common.base.Strings;
+import com.google.common.io.ByteStreams;
 
 public class FileImpl implements QueueServiceAbstract {
 	
-	private static final String LOCK = ".lock";
+	private static final String CONTROL = "control";
 	private static final String MESSAGES = "messages";
 	private static final String COPY_MESSAGES = "copy_messages";
 	private static final String INVISIBLE_MESSAGES = "invisible_messages";
 	private static final String COPY_INVISIBLE_MESSAGES = "copy_invisible_messages";
+	private static final String VISIBILITY_CHANGES = "visibility_changes";
+	private static final String COPY_VISIBILITY_CHANGES = "copy_visibility_changes";
+	private static final String DELAYED = "delayed";
+	private static final String ATTRIBUTES = "attributes";
+	private static final String COPY_ATTRIBUTES = "copy_attributes";
+	private static final String DEAD_LETTER_QUEUE = "deadLetterQueue";
+	private static final String MAX_RECEIVE_COUNT = "maxReceiveCount";
+	private static final String PRIORITY_POLICY = "priorityPolicy";
+	private static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+	private static final String NUMBER_OF_MESSAGES = "approximateNumberOfMessages";
+	private static final String NUMBER_OF_MESSAGES_NOT_VISIBLE = "approximateNumberOfMessagesNotVisible";
+	private static final String NUMBER_OF_MESSAGES_DELAYED = "approximateNumberOfMessagesDelayed";
+	private static final String SEPARATOR = "|";
+	/*the receipt handle of a message of a level other than NORMAL ends with "#<level>", so it can go back there*/
+	private static final String PRIORITY_SEPARATOR = "#";
+	/*delayed messages are kept in one file per bucket and become visible when their bucket ends*/
+	private static final long DELAY_BUCKET_MILLIS = 1000L;
+	/*a file is rewritten without its pulled records once they are at least this long and at least half of it*/
+	private static final long COMPACTION_BYTES = 64 * 1024;
+	private static final int LINE_BUFFER_SIZE = 8 * 1024;
 	
 	private VisibilityCollaborator visibilityCollaborator = new VisibilityCollaborator();
+	/*receiptHandle->Task, for the messages pulled by this instance*/
+	private final Map<String, VisibilityTask> visibilityTasks = new ConcurrentHashMap<String, VisibilityTask>();
+	/*queue/bucket, for the delay buckets this instance has scheduled a DelayTask for*/
+	private final Set<String> delayTasks = ConcurrentHashMap.<String>newKeySet();
+	/*queue->credits of its levels for Priority.Policy.WEIGHTED, guarded by the lock of the queue*/
+	private final Map<String, Map<Priority, Integer>> priorityCredits = new ConcurrentHashMap<String, Map<Priority, Integer>>();
+	/*queue->its mapped control file*/
+	private final Map<String, ControlBlock> controlBlocks = new ConcurrentHashMap<String, ControlBlock>();
 	private long visibilityTimeoutMillis;
 	private String path;
+	private volatile boolean syncPulls;
 
 	public FileImpl(long visibilityTimeoutMillis, String path) {
 		if ((visibilityTimeoutMillis <= 0L) || Strings.isNullOrEmpty(path)) {
@@ -44,6 +95,8 @@ public class FileImpl implements QueueServiceAbstract {
 		//create directory
 		File file = new File(path + File.separator + queue);
 		if (file.mkdir()) {
+			//a queue deleted and created again has a new control file
+			controlBlocks.remove(queue);
 
 			//create queues(files)
 			File messages = getMessagesFile(queue);
@@ -51,27 +104,150 @@ public class FileImpl implements QueueServiceAbstract {
 
 			messages.createNewFile();
 			invisibleMessages.createNewFile();
+		} else {
+			//pick up the delayed messages left by a previous run
+			String[] buckets = getDelayedDirectory(queue).list();
+			if (buckets != null) {
+				for (String bucket : buckets) {
+					scheduleDelayTask(queue, Long.parseLong(bucket));
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Messages received <code>maxReceiveCount</code> times without being deleted
+	 * are moved to <code>deadLetterQueue</code> instead of becoming visible again.
+	 */
+	public void setRedrivePolicy(String queue, String deadLetterQueue, int maxReceiveCount) {
+		if (Strings.isNullOrEmpty(queue) || Strings.isNullOrEmpty(deadLetterQueue) || queue.equals(deadLetterQueue) || maxReceiveCount <= 0)
+			throw new IllegalArgumentException();
+		
+		if ( !getMessagesFile(queue).exists())
+		    throw new IllegalArgumentException("Queue '" + queue + "' doesn't exist.");
+		if ( !getMessagesFile(deadLetterQueue).exists())
+		    throw new IllegalArgumentException("Queue '" + deadLetterQueue + "' doesn't exist.");
+		
+		ControlBlock lock = getControlBlock(queue);
+		lock(lock);
+		try {
+			Properties attributes = readAttributes(queue);
+			attributes.setProperty(DEAD_LETTER_QUEUE, deadLetterQueue);
+			attributes.setProperty(MAX_RECEIVE_COUNT, String.valueOf(maxReceiveCount));
+			writeAttributes(queue, attributes);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			unlock(lock);
+		}
+	}
+	
+	/**
+	 * Queues pull with Priority.Policy.STRICT unless set otherwise.
+	 * Each instance keeps its own credits for Priority.Policy.WEIGHTED, so processes sharing a queue are each weighted fair.
+	 */
+	public void setPriorityPolicy(String queue, Priority.Policy policy) {
+		if (Strings.isNullOrEmpty(queue) || policy == null)
+			throw new IllegalArgumentException();
+		
+		if ( !getMessagesFile(queue).exists())
+		    throw new IllegalArgumentException("Queue '" + queue + "' doesn't exist.");
+		
+		ControlBlock lock = getControlBlock(queue);
+		lock(lock);
+		try {
+			Properties attributes = readAttributes(queue);
+			attributes.setProperty(PRIORITY_POLICY, policy.name());
+			writeAttributes(queue, attributes);
+			lock.setPriorityPolicy(policy);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			unlock(lock);
 		}
 	}
 	
 	@Override
 	public void push(String queue, String messageBody) {
-		if (Strings.isNullOrEmpty(queue) || Strings.isNullOrEmpty(messageBody))
+		push(queue, messageBody, Priority.NORMAL);
+	}
+	
+	/**
+	 * Appends the message to the file of its level; 'messages' is the one of Priority.NORMAL.
+	 */
+	public void push(String queue, String messageBody, Priority priority) {
+		//as in SQS, a body can't contain \0, which starts a binary one here
+		if (Strings.isNullOrEmpty(queue) || Strings.isNullOrEmpty(messageBody) || (messageBody.charAt(0) == Record.BINARY) || priority == null)
+			throw new IllegalArgumentException();
+		
+		push(queue, new Record(System.currentTimeMillis(), " ", messageBody), priority);
+	}
+	
+	/**
+	 * The bytes are written to 'messages' as they are, with their length before them.
+	 */
+	@Override
+	public void push(String queue, ByteBuffer messageBody) {
+		if (Strings.isNullOrEmpty(queue) || (messageBody == null))
 			throw new IllegalArgumentException();
 		
+		byte[] binaryBody = new byte[messageBody.remaining()];
+		messageBody.duplicate().get(binaryBody);
+		long now = System.currentTimeMillis();
+		push(queue, new Record(now, " ", 0, now, binaryBody), Priority.NORMAL);
+	}
+	
+	private void push(String queue, Record record, Priority priority) {
+		if ( !getMessagesFile(queue).exists())
+		    throw new IllegalArgumentException("Queue '" + queue + "' doesn't exist.");
+		
+		File messages = getMessagesFile(queue, priority);
+		ControlBlock lock = getControlBlock(queue);
+		lock(lock);
+		try {
+			append(messages, record);
+			addToCounters(queue, 1L, 0L, 0L);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			unlock(lock);
+		}
+	}
+	
+	/**
+	 * Appends the message to the file of the bucket it becomes visible in,
+	 * so a delayed message costs an append both when it is pushed and when it gets due.
+	 */
+	@Override
+	public void push(String queue, String messageBody, long delayMillis) {
+		if (Strings.isNullOrEmpty(queue) || Strings.isNullOrEmpty(messageBody) || (messageBody.charAt(0) == Record.BINARY) || delayMillis < 0L)
+			throw new IllegalArgumentException();
+		if (delayMillis == 0L) {
+			push(queue, messageBody);
+			return;
+		}
+		
 		File messages = getMessagesFile(queue);
 		if ( !messages.exists())
 		    throw new IllegalArgumentException("Queue '" + queue + "' doesn't exist.");
 		
-		File lock = getLockFile(queue);
+		long visibleFrom = System.currentTimeMillis() + delayMillis;
+		long bucket = visibleFrom - (visibleFrom % DELAY_BUCKET_MILLIS) + DELAY_BUCKET_MILLIS;
+		File delayed = getDelayedDirectory(queue);
+		
+		ControlBlock lock = getControlBlock(queue);
 		lock(lock);
-		try (PrintWriter pw = new PrintWriter(new FileWriter(messages, true))){
-			pw.println(new Record(System.currentTimeMillis()," ",messageBody));
+		try {
+			delayed.mkdir();
+			append(new File(delayed, String.valueOf(bucket)), new Record(visibleFrom, " ", 0, System.currentTimeMillis(), messageBody));
+			addToCounters(queue, 0L, 0L, 1L);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		} finally {
 			unlock(lock);
 		}
+		
+		scheduleDelayTask(queue, bucket);
 	}
 	
 	@Override
@@ -83,57 +259,156 @@ public class FileImpl implements QueueServiceAbstract {
 		if ( !messages.exists()) 
 		    throw new IllegalArgumentException("Queue '" + queue + "' doesn't exist.");
 		
-		File copyMessages = getCopyMessagesFile(queue);
-		File invisibleMessages = getInvisibleMessagesFile(queue);
-		File lock = getLockFile(queue);
+		ControlBlock lock = getControlBlock(queue);
 		
 		lock(lock);
 		Record record = null;
-		String recordStr = null;
-		try (BufferedReader reader = new BufferedReader(new FileReader(messages));
-				PrintWriter copyWriter = new PrintWriter(new FileWriter(copyMessages, false));
-				PrintWriter invisibleWriter = new PrintWriter(new FileWriter(invisibleMessages, true))) {
+		try {
+			Priority priority = nextPriority(queue);
+			if (priority == null) //empty queue
+				return null;
+			record = pollRecord(queue, priority);
+			if (record == null)
+				return null;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			unlock(lock);
+		}
+		
+		Message message;
+		if (record.getBinaryBody() == null) {
+			message = new Message();
+			message.setBody(record.getMessageBody());
+		} else {
+			message = new BinaryMessage(ByteBuffer.wrap(record.getBinaryBody()));
+		}
+		message.setReceiptHandle(record.getReceiptHandle());
+		message.addAttributesEntry(APPROXIMATE_RECEIVE_COUNT, String.valueOf(record.getReceiveCount()));
+		
+		VisibilityTask task = new VisibilityTask(queue, message, record.getVisibileFrom());
+		visibilityTasks.put(message.getReceiptHandle(), task);
+		visibilityCollaborator.makeMessageVisibleAsynchronously(task, visibilityTimeoutMillis);
+		
+		return message;
+	}
+	
+	/**
+	 * The lock must be held.
+	 * @return the level to pull from, null if all of them are empty
+	 */
+	private Priority nextPriority(String queue) throws IOException {
+		ControlBlock control = getMappedControlBlock(queue);
+		Set<Priority> waiting = EnumSet.noneOf(Priority.class);
+		for (Priority priority : Priority.values()) {
+			if (getMessagesFile(queue, priority).length() > control.getHead(priority))
+				waiting.add(priority);
+		}
+		//the policy only matters when there is a choice
+		if (waiting.size() <= 1)
+			return waiting.isEmpty() ? null : waiting.iterator().next();
+		
+		//kept in the control block, so a pull does not read 'attributes' for it
+		Priority.Policy policy = control.getPriorityPolicy();
+		if (policy == null) {
+			policy = Priority.Policy.WEIGHTED.name().equals(readAttributes(queue).getProperty(PRIORITY_POLICY)) ? Priority.Policy.WEIGHTED : Priority.Policy.STRICT;
+			control.setPriorityPolicy(policy);
+		}
+		if (policy != Priority.Policy.WEIGHTED)
+			return waiting.iterator().next();
+		Map<Priority, Integer> credits = priorityCredits.computeIfAbsent(queue, q -> new EnumMap<Priority, Integer>(Priority.class));
+		return Priority.pickWeighted(waiting, credits);
+	}
+	
+	/**
+	 * The lock must be held. Copies the record at the head of the level to 'invisibleMessages' and moves the head past it;
+	 * the file is only rewritten once most of it has been pulled, and emptied once all of it has.
+	 * @return the record, null if the level is empty
+	 */
+	private Record pollRecord(String queue, Priority priority) throws IOException {
+		File messages = getMessagesFile(queue, priority);
+		File copyMessages = getCopyMessagesFile(queue, priority);
+		File invisibleMessages = getInvisibleMessagesFile(queue);
+		ControlBlock control = getMappedControlBlock(queue);
+		
+		long start = Tracing.start();
+		byte[] line = null;
+		try (FileChannel channel = FileChannel.open(messages.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
 
-			recordStr = reader.readLine();
-			if (recordStr == null) { //empty queue
-				copyMessages.delete();
+			long head = control.getHead(priority);
+			line = readRecord(channel, head);
+			if (line == null) {
 				return null; 
 			}
 			
-			//read first record and save it
-			record = Record.createRecord(recordStr);
-			//copy the rest records into a new copy of the file 'copyMessages'
-			String line = reader.readLine();
-			while (line != null) {
-				copyWriter.println(line);
-				line = reader.readLine();
-			}
-			//rename a new copy of the file back to 'messages'
-			reader.close();
-			copyWriter.close();
-			messages.delete();
-			copyMessages.renameTo(messages);
+			Record record = Record.createRecord(line);
+			long next = head + line.length;
+			long size = channel.size();
 
-			//save this message into an invisible queue 'invisibleMessages'
+			//the record is in 'invisibleMessages' before the head moves past it: a process dying in between
+			//delivers it twice rather than losing it, and so does the machine with syncPulls
 			String receiptHandle = UUID.randomUUID().toString();
+			if (priority != Priority.NORMAL) {
+				receiptHandle += PRIORITY_SEPARATOR + priority.name();
+			}
 			record.setReceiptHandle(receiptHandle);
+			record.setReceiveCount(record.getReceiveCount() + 1);
 			record.setVisibileFrom(System.currentTimeMillis() + this.visibilityTimeoutMillis);
-			invisibleWriter.println(record);
-
+			if (syncPulls) {
+				appendAndForce(invisibleMessages, record);
+			} else {
+				append(invisibleMessages, record);
+			}
 
-		} catch (IOException e) {
-			throw new RuntimeException(e);
+			//the head only moves once the file has changed, a failure leaves both as they were
+			if (next >= size) {
+				channel.truncate(0L);
+				control.setHead(priority, 0L);
+			} else if ((next >= COMPACTION_BYTES) && (next >= size - next)) {
+				try (FileChannel copy = FileChannel.open(copyMessages.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+					for (long position = next; position < size; ) {
+						position += channel.transferTo(position, size - position, copy);
+					}
+				}
+				replace(copyMessages, messages);
+				control.setHead(priority, 0L);
+			} else {
+				control.setHead(priority, next);
+			}
+			addToCounters(queue, -1L, 1L, 0L);
+			return record;
 		} finally {
-			unlock(lock);
+			long length = (line == null) ? 0L : line.length;
+			Tracing.end(Tracing.Event.QUEUE_IO, queue, start, length, (length == 0L) ? 0L : 1L);
+		}
+	}
+	
+	/**
+	 * @return the bytes of the record at <code>position</code>, null at the end of the file
+	 */
+	private static byte[] readRecord(FileChannel channel, long position) throws IOException {
+		channel.position(position);
+		//not closed, that would close the channel
+		return Record.read(new BufferedInputStream(Channels.newInputStream(channel), LINE_BUFFER_SIZE));
+	}
+	
+	/**
+	 * The lock must be held.
+	 */
+	private static void append(File file, Record record) throws IOException {
+		try (OutputStream out = new FileOutputStream(file, true)) {
+			out.write(record.toBytes());
+		}
+	}
+
+	/**
+	 * The lock must be held. Returns once the record has reached the disk.
+	 */
+	private static void appendAndForce(File file, Record record) throws IOException {
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write(record.toBytes());
+			out.getChannel().force(false);
 		}
-		
-		Message message = new Message();
-		message.setReceiptHandle(record.getReceiptHandle());
-		message.setBody(record.getMessageBody());
-		
-		visibilityCollaborator.makeMessageVisibleAsynchronously(new VisibilityTask(queue, message), visibilityTimeoutMillis);
-		
-		return message;
 	}
 
 	@Override
@@ -145,28 +420,112 @@ public class FileImpl implements QueueServiceAbstract {
 		if ( !invisibleMessages.exists())
 		    return;
 		
-		File lock = getLockFile(queue);
+		ControlBlock lock = getControlBlock(queue);
 		File copyInvisibleMessages = getCopyInvisibleMessagesFile(queue);
 		
 		lock(lock);
-		try (BufferedReader invisibleMessagesReader = new BufferedReader(new FileReader(invisibleMessages));
-			 PrintWriter copyInvisibleMessagesWriter = new PrintWriter(new FileWriter(copyInvisibleMessages, false));) {
+		long start = Tracing.start();
+		long bytes = 0L;
+		long records = 0L;
+		try (InputStream invisibleMessagesIn = new BufferedInputStream(new FileInputStream(invisibleMessages));
+			 OutputStream copyInvisibleMessagesOut = new BufferedOutputStream(new FileOutputStream(copyInvisibleMessages, false));) {
 
-			String line = invisibleMessagesReader.readLine(); 
+			long deleted = 0L;
+			byte[] line = Record.read(invisibleMessagesIn); 
 	        while (line != null) {
+	        	bytes += line.length;
+	        	++records;
 	        	if ( !Record.createRecord(line).getReceiptHandle().equals(receiptHandle)) {
-	        		copyInvisibleMessagesWriter.println(line);
+	        		copyInvisibleMessagesOut.write(line);
+	        	} else {
+	        		++deleted;
 	        	}
-	        	line = invisibleMessagesReader.readLine(); 
+	        	line = Record.read(invisibleMessagesIn); 
 	        }
 	        
 	        //rename a new copy of the file back to 'invisibleMessages'
-	        invisibleMessagesReader.close();
-			copyInvisibleMessagesWriter.close();
-			invisibleMessages.delete();
-			copyInvisibleMessages.renameTo(invisibleMessages);
+	        invisibleMessagesIn.close();
+			copyInvisibleMessagesOut.close();
+			replace(copyInvisibleMessages, invisibleMessages);
+			addToCounters(queue, 0L, -deleted, 0L);
 		} catch (IOException  e) {
 			throw new RuntimeException(e);
+		} finally {
+			Tracing.end(Tracing.Event.QUEUE_IO, queue, start, bytes, records);
+			unlock(lock);
+		}
+		VisibilityTask task = visibilityTasks.remove(receiptHandle);
+		if (task != null) {
+			visibilityCollaborator.cancel(task);
+		}
+	}
+	
+	/**
+	 * Appends the new deadline to 'visibilityChanges' instead of rewriting 'invisibleMessages';
+	 * the visibility task reads it back when it fires and moves itself to the new deadline.
+	 */
+	@Override
+	public void changeVisibility(String queue, String receiptHandle, long visibilityTimeoutMillis) {
+		if (Strings.isNullOrEmpty(queue) || Strings.isNullOrEmpty(receiptHandle) || visibilityTimeoutMillis < 0L)
+			throw new IllegalArgumentException();
+		
+		File invisibleMessages = getInvisibleMessagesFile(queue);
+		if ( !invisibleMessages.exists())
+		    return;
+		
+		long visibleFrom = System.currentTimeMillis() + visibilityTimeoutMillis;
+		ControlBlock lock = getControlBlock(queue);
+		lock(lock);
+		try (PrintWriter pw = new PrintWriter(new FileWriter(getVisibilityChangesFile(queue), true))) {
+			pw.println(receiptHandle + SEPARATOR + visibleFrom);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			unlock(lock);
+		}
+		
+		VisibilityTask task = visibilityTasks.get(receiptHandle);
+		if (task == null) {
+			//pulled by another process, whose task only sees the change when it fires;
+			//an earlier deadline needs a task here
+			Message message = new Message();
+			message.setReceiptHandle(receiptHandle);
+			visibilityCollaborator.makeMessageVisibleAsynchronously(new VisibilityTask(queue, message, visibleFrom), visibilityTimeoutMillis);
+		} else if (task.moveDeadline(visibleFrom)) {
+			visibilityCollaborator.makeMessageVisibleAsynchronously(task, visibilityTimeoutMillis);
+		}
+	}
+	
+	/**
+	 * Reads the counters and the heads of the levels, with the lock: a head offset is only valid for the file it was read with.
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		if (Strings.isNullOrEmpty(queue)) 
+			throw new IllegalArgumentException();
+		
+		File messages = getMessagesFile(queue);
+		if ( !messages.exists()) 
+		    throw new IllegalArgumentException("Queue '" + queue + "' doesn't exist.");
+		
+		ControlBlock lock = getControlBlock(queue);
+		lock(lock);
+		try {
+			long age = 0L;
+			for (Priority priority : Priority.values()) {
+				File level = getMessagesFile(queue, priority);
+				if ( !level.exists())
+					continue;
+				try (FileChannel channel = FileChannel.open(level.toPath(), StandardOpenOption.READ)) {
+					byte[] head = readRecord(channel, lock.getHead(priority));
+					if (head != null) {
+						age = Math.max(age, System.currentTimeMillis() - Record.createRecord(head).getSentTimestamp());
+					}
+				}
+			}
+			return new QueueAttributes(lock.getVisible(), lock.getNotVisible(), lock.getDelayed(), age);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		} finally {
 			unlock(lock);
 		}
@@ -176,30 +535,149 @@ public class FileImpl implements QueueServiceAbstract {
 		return path;
 	}
 
-	private void lock(File lock) {
-		while (!lock.mkdir()) {
+	private void lock(ControlBlock lock) {
+		lock.lock();
+	}
+
+	/**
+	 * Takes two queue locks in a fixed order, so that two tasks can't wait for each other.
+	 */
+	private void lock(ControlBlock lock, ControlBlock other) {
+		if (other == null) {
+			lock(lock);
+		} else if (lock.getFile().getPath().compareTo(other.getFile().getPath()) < 0) {
+			lock(lock);
+			lock(other);
+		} else {
+			lock(other);
+			lock(lock);
+		}
+	}
+
+	private void unlock(ControlBlock lock) {
+		lock.unlock();
+	}
+	
+	/**
+	 * Replaces <code>file</code> by <code>copy</code> in one step, so readers without the lock
+	 * see either the old or the new content, never a missing file.
+	 */
+	private static void replace(File copy, File file) throws IOException {
+		Files.move(copy.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * The lock must be held.
+	 */
+	private void addToCounters(String queue, long visible, long notVisible, long delayed) {
+		getMappedControlBlock(queue).addToCounters(visible, notVisible, delayed);
+	}
+	
+	/**
+	 * Maps the control file of the queue on first use, and again once it has been replaced,
+	 * e.g. by another instance deleting the queue and creating it again. A queue from before control files
+	 * starts from the counters it kept in 'attributes', and from the start of its files.
+	 */
+	private ControlBlock getControlBlock(String queue) {
+		ControlBlock control = controlBlocks.get(queue);
+		if ((control != null) && control.isCurrent())
+			return control;
+		//the stale block is left to the garbage collector, a thread may still hold its lock
+		return controlBlocks.compute(queue, (q, mapped) -> ((mapped != null) && mapped.isCurrent()) ? mapped : mapControlBlock(q));
+	}
+	
+	/**
+	 * The lock must be held. The block mapped by getControlBlock(), without looking at the control file again.
+	 */
+	private ControlBlock getMappedControlBlock(String queue) {
+		ControlBlock control = controlBlocks.get(queue);
+		return (control == null) ? getControlBlock(queue) : control;
+	}
+	
+	private ControlBlock mapControlBlock(String queue) {
+		try {
+			ControlBlock control = new ControlBlock(getControlFile(queue));
+			control.lock();
 			try {
-				Thread.sleep(50);
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
+				if ( !control.isInitialized()) {
+					Properties attributes = readAttributes(queue);
+					control.initialize(getCounter(attributes, NUMBER_OF_MESSAGES),
+							getCounter(attributes, NUMBER_OF_MESSAGES_NOT_VISIBLE),
+							getCounter(attributes, NUMBER_OF_MESSAGES_DELAYED));
+				}
+			} finally {
+				control.unlock();
 			}
+			return control;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
 		}
 	}
-
-	private void unlock(File lock) {
-		lock.delete();
+	
+	/**
+	 * Counters of a queue created before they were kept start from 0, so they are never reported below it.
+	 */
+	private static long getCounter(Properties attributes, String counter) {
+		return Math.max(0L, Long.parseLong(attributes.getProperty(counter, "0")));
 	}
 	
-	private File getLockFile(String queue) {
-		return new File(path + File.separator + queue + File.separator + LOCK);
+	/**
+	 * The attributes file is only ever replaced by a rename, so it can be read without the lock.
+	 */
+	private Properties readAttributes(String queue) throws IOException {
+		Properties attributes = new Properties();
+		File file = getAttributesFile(queue);
+		if (file.exists()) {
+			try (InputStream in = new FileInputStream(file)) {
+				attributes.load(in);
+			}
+		}
+		return attributes;
+	}
+	
+	/**
+	 * The lock must be held.
+	 */
+	private void writeAttributes(String queue, Properties attributes) throws IOException {
+		File file = getAttributesFile(queue);
+		File copy = getCopyAttributesFile(queue);
+		try (OutputStream out = new FileOutputStream(copy)) {
+			attributes.store(out, null);
+		}
+		replace(copy, file);
+	}
+	
+	private File getAttributesFile(String queue) {
+		return new File(path + File.separator + queue + File.separator + ATTRIBUTES);
+	}
+	
+	private File getCopyAttributesFile(String queue) {
+		return new File(path + File.separator + queue + File.separator + COPY_ATTRIBUTES);
+	}
+	
+	private File getControlFile(String queue) {
+		return new File(path + File.separator + queue + File.separator + CONTROL);
 	}
 
 	private File getMessagesFile(String queue) {
 		return new File(path + File.separator + queue + File.separator + MESSAGES);
 	}
 	
-	private File getCopyMessagesFile(String queue) {
-		return new File(path + File.separator +  queue + File.separator + COPY_MESSAGES);
+	private File getMessagesFile(String queue, Priority priority) {
+		return (priority == Priority.NORMAL) ? getMessagesFile(queue) : new File(getMessagesFile(queue).getPath() + "_" + priority.name().toLowerCase());
+	}
+	
+	private File getCopyMessagesFile(String queue, Priority priority) {
+		String level = (priority == Priority.NORMAL) ? "" : "_" + priority.name().toLowerCase();
+		return new File(path + File.separator +  queue + File.separator + COPY_MESSAGES + level);
+	}
+	
+	/**
+	 * @return the level the message of the handle was pulled from
+	 */
+	private static Priority getPriority(String receiptHandle) {
+		int separator = receiptHandle.lastIndexOf(PRIORITY_SEPARATOR);
+		return (separator < 0) ? Priority.NORMAL : Priority.valueOf(receiptHandle.substring(separator + 1));
 	}
 	
 	private File getInvisibleMessagesFile(String queue) {
@@ -210,66 +688,282 @@ public class FileImpl implements QueueServiceAbstract {
 		return new File(path + File.separator + queue + File.separator + COPY_INVISIBLE_MESSAGES);
 	}
 	
+	private File getDelayedDirectory(String queue) {
+		return new File(path + File.separator + queue + File.separator + DELAYED);
+	}
+	
+	private void scheduleDelayTask(String queue, long bucket) {
+		if (delayTasks.add(queue + File.separator + bucket)) {
+			long delay = Math.max(0L, bucket - System.currentTimeMillis());
+			visibilityCollaborator.makeMessageVisibleAsynchronously(new DelayTask(queue, bucket), delay);
+		}
+	}
+	
+	private File getVisibilityChangesFile(String queue) {
+		return new File(path + File.separator + queue + File.separator + VISIBILITY_CHANGES);
+	}
+	
+	private File getCopyVisibilityChangesFile(String queue) {
+		return new File(path + File.separator + queue + File.separator + COPY_VISIBILITY_CHANGES);
+	}
+	
+	/**
+	 * The lock must be held.
+	 * @return the latest deadline set by changeVisibility(), or <code>visibleFrom</code> if there is none
+	 */
+	private long readVisibleFrom(String queue, String receiptHandle, long visibleFrom) throws IOException {
+		File visibilityChanges = getVisibilityChangesFile(queue);
+		if ( !visibilityChanges.exists())
+			return visibleFrom;
+		
+		String prefix = receiptHandle + SEPARATOR;
+		try (BufferedReader reader = new BufferedReader(new FileReader(visibilityChanges))) {
+			String line = reader.readLine();
+			while (line != null) {
+				if (line.startsWith(prefix)) {
+					visibleFrom = Long.parseLong(line.substring(prefix.length()));
+				}
+				line = reader.readLine();
+			}
+		}
+		return visibleFrom;
+	}
+	
+	/**
+	 * The lock must be held. Drops the changes of messages which are not invisible anymore.
+	 */
+	private void pruneVisibilityChanges(String queue, Set<String> invisibleReceiptHandles) throws IOException {
+		File visibilityChanges = getVisibilityChangesFile(queue);
+		if (visibilityChanges.length() == 0L)
+			return;
+		
+		File copyVisibilityChanges = getCopyVisibilityChangesFile(queue);
+		try (BufferedReader reader = new BufferedReader(new FileReader(visibilityChanges));
+			 PrintWriter copyWriter = new PrintWriter(new FileWriter(copyVisibilityChanges, false))) {
+			String line = reader.readLine();
+			while (line != null) {
+				if (invisibleReceiptHandles.contains(line.substring(0, line.lastIndexOf(SEPARATOR)))) {
+					copyWriter.println(line);
+				}
+				line = reader.readLine();
+			}
+		}
+		replace(copyVisibilityChanges, visibilityChanges);
+	}
+	
 	class VisibilityTask extends TimerTask {
 		private Message message;
 		private String queue;
+		/*guarded by this*/
+		private long visibleFrom;
+		private long scheduledFor;
 
 		public VisibilityTask(String queue, Message message) {
+			this(queue, message, 0L);
+		}
+
+		VisibilityTask(String queue, Message message, long visibleFrom) {
 			this.message = message;
 			this.queue = queue;
+			this.visibleFrom = visibleFrom;
+			this.scheduledFor = visibleFrom;
+		}
+
+		/**
+		 * @return <code>true</code> if the task has to be scheduled again to meet an earlier deadline
+		 */
+		synchronized boolean moveDeadline(long visibleFrom) {
+			this.visibleFrom = visibleFrom;
+			if (visibleFrom >= scheduledFor)
+				return false;
+			scheduledFor = visibleFrom;
+			return true;
 		}
 
 		@Override
 		public void run() {
-			File lock = getLockFile(queue);
+			ControlBlock lock = getControlBlock(queue);
+			long visibleFrom;
+			synchronized (this) {
+				visibleFrom = this.visibleFrom;
+			}
+			
+			Properties attributes;
+			try {
+				attributes = readAttributes(queue);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			String deadLetterQueue = attributes.getProperty(DEAD_LETTER_QUEUE);
+			int maxReceiveCount = Integer.parseInt(attributes.getProperty(MAX_RECEIVE_COUNT, "0"));
+			ControlBlock deadLetterLock = (deadLetterQueue == null) ? null : getControlBlock(deadLetterQueue);
+			
+			long delay;
+			lock(lock, deadLetterLock);
+			try {
+				delay = readVisibleFrom(queue, message.getReceiptHandle(), visibleFrom) - System.currentTimeMillis();
+				if (delay <= 0L) {
+					long start = Tracing.start();
+					long records = makeVisible(deadLetterQueue, maxReceiveCount);
+					Tracing.end(Tracing.Event.QUEUE_IO, queue, start, 0L, records);
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			} finally {
+				if (deadLetterLock != null) {
+					unlock(deadLetterLock);
+				}
+				unlock(lock);
+			}
+			
+			if (delay <= 0L) {
+				visibilityTasks.remove(message.getReceiptHandle());
+				return;
+			}
+			//the visibility timeout has been extended since this task was scheduled
+			synchronized (this) {
+				scheduledFor = System.currentTimeMillis() + delay;
+			}
+			visibilityCollaborator.makeMessageVisibleAsynchronously(this, delay);
+		}
+
+		/**
+		 * The locks of the queue and of its dead-letter queue must be held.
+		 * @return the number of records read
+		 */
+		private long makeVisible(String deadLetterQueue, int maxReceiveCount) throws IOException {
 			File invisibleMessages = getInvisibleMessagesFile(queue);
 			File copyInvisibleMessages = getCopyInvisibleMessagesFile(queue);
-			File messages = getMessagesFile(queue);
-			File copyMessages = getCopyMessagesFile(queue);
+			//back to the head of its level
+			Priority priority = getPriority(message.getReceiptHandle());
+			File messages = getMessagesFile(queue, priority);
+			File copyMessages = getCopyMessagesFile(queue, priority);
 			
-			lock(lock);
-			try (BufferedReader invisibleMessagesReader = new BufferedReader(new FileReader(invisibleMessages));
-				 BufferedReader messagesReader = new BufferedReader(new FileReader(messages));
-				 PrintWriter copyInvisibleMessagesWriter = new PrintWriter(new FileWriter(copyInvisibleMessages, false));
-				 PrintWriter copyMessagesWriter = new PrintWriter(new FileWriter(copyMessages, false))) {
-
-				//read all invisible messages from 'invisibleMessages'
-				//find there messages with an expired visibilityTimeout and save them into the List
-				LinkedList<Record> visibleRecords = new LinkedList<Record>();
-				String invisibleMessagesline = invisibleMessagesReader.readLine();
+			//read all invisible messages from 'invisibleMessages'
+			//find there messages with an expired visibilityTimeout and save them into the List
+			LinkedList<Record> visibleRecords = new LinkedList<Record>();
+			Set<String> invisibleReceiptHandles = new HashSet<String>();
+			long records = 0L;
+			try (InputStream invisibleMessagesIn = new BufferedInputStream(new FileInputStream(invisibleMessages));
+				 OutputStream copyInvisibleMessagesOut = new BufferedOutputStream(new FileOutputStream(copyInvisibleMessages, false))) {
+				
+				byte[] invisibleMessagesline = Record.read(invisibleMessagesIn);
 				Record record = null;
 				while (invisibleMessagesline != null) {
 					record = Record.createRecord(invisibleMessagesline);
+					++records;
 					
 					if (record.getReceiptHandle().equals(this.message.getReceiptHandle()) ){
 						visibleRecords.addLast(record);
 					} else {
-						copyInvisibleMessagesWriter.println(invisibleMessagesline);
+						copyInvisibleMessagesOut.write(invisibleMessagesline);
+						invisibleReceiptHandles.add(record.getReceiptHandle());
 					}
-					invisibleMessagesline = invisibleMessagesReader.readLine();
+					invisibleMessagesline = Record.read(invisibleMessagesIn);
 				}
-
-				//rename a new copy of the file back to 'invisibleMessages'
-				invisibleMessagesReader.close();
-				copyInvisibleMessagesWriter.close();
-				invisibleMessages.delete();
-				copyInvisibleMessages.renameTo(invisibleMessages);
-
+			}
+			pruneVisibilityChanges(queue, invisibleReceiptHandles);
+			
+			if (visibleRecords.isEmpty()) {
+				//deleted, or made visible already: nothing to rewrite
+				copyInvisibleMessages.delete();
+				return records;
+			}
+			
+			//rename a new copy of the file back to 'invisibleMessages'
+			replace(copyInvisibleMessages, invisibleMessages);
+			addToCounters(queue, 0L, -visibleRecords.size(), 0L);
+			
+			//poison messages are appended to the dead-letter queue instead of rewriting 'messages' for them again
+			if (deadLetterQueue != null) {
+				try (OutputStream deadLetterOut = new BufferedOutputStream(new FileOutputStream(getMessagesFile(deadLetterQueue, priority), true))) {
+					for (Iterator<Record> iterator = visibleRecords.iterator(); iterator.hasNext(); ) {
+						Record visibleRecord = iterator.next();
+						if (visibleRecord.getReceiveCount() >= maxReceiveCount) {
+							iterator.remove();
+							visibleRecord.setReceiptHandle(" ");
+							visibleRecord.setReceiveCount(0);
+							deadLetterOut.write(visibleRecord.toBytes());
+							addToCounters(deadLetterQueue, 1L, 0L, 0L);
+						}
+					}
+				}
+				if (visibleRecords.isEmpty())
+					return records;
+			}
+			
+			ControlBlock control = getMappedControlBlock(queue);
+			try (InputStream messagesIn = new BufferedInputStream(new FileInputStream(messages));
+				 OutputStream copyMessagesOut = new BufferedOutputStream(new FileOutputStream(copyMessages, false))) {
+				
+				//the records before the head have been pulled already
+				ByteStreams.skipFully(messagesIn, control.getHead(priority));
+				
 				//write visible messages from the List and from the 'messages' into the new copy of file 'copyMessages'
 				for (Record visibleRecord : visibleRecords) {
-					copyMessagesWriter.println(visibleRecord.toString());
+					copyMessagesOut.write(visibleRecord.toBytes());
 				}
-				String messagesLine = messagesReader.readLine();
+				byte[] messagesLine = Record.read(messagesIn);
 				while (messagesLine != null) {
-					copyMessagesWriter.println(messagesLine);
-					messagesLine = messagesReader.readLine();
+					copyMessagesOut.write(messagesLine);
+					++records;
+					messagesLine = Record.read(messagesIn);
+				}
+			}
+			
+			//rename a new copy of the file back to 'messages', which starts at its head now
+			replace(copyMessages, messages);
+			control.setHead(priority, 0L);
+			addToCounters(queue, visibleRecords.size(), 0L, 0L);
+			return records;
+		}
+	}
+	
+	/**
+	 * Appends the messages of every bucket which has ended to 'messages'.
+	 */
+	class DelayTask extends TimerTask {
+		private String queue;
+		private long bucket;
+		
+		DelayTask(String queue, long bucket) {
+			this.queue = queue;
+			this.bucket = bucket;
+		}
+		
+		@Override
+		public void run() {
+			delayTasks.remove(queue + File.separator + bucket);
+			//a timer may fire a little before the wall clock reaches the end of the bucket
+			long now = Math.max(bucket, System.currentTimeMillis());
+			
+			ControlBlock lock = getControlBlock(queue);
+			lock(lock);
+			try {
+				String[] buckets = getDelayedDirectory(queue).list();
+				if (buckets == null)
+					return;
+				
+				Arrays.sort(buckets);
+				try (OutputStream messagesOut = new BufferedOutputStream(new FileOutputStream(getMessagesFile(queue), true))) {
+					for (String due : buckets) {
+						if (Long.parseLong(due) > now)
+							continue;
+						
+						File delayed = new File(getDelayedDirectory(queue), due);
+						try (InputStream in = new BufferedInputStream(new FileInputStream(delayed))) {
+							long moved = 0L;
+							byte[] line = Record.read(in);
+							while (line != null) {
+								messagesOut.write(line);
+								++moved;
+								line = Record.read(in);
+							}
+							addToCounters(queue, moved, 0L, -moved);
+						}
+						delayed.delete();
+					}
 				}
-
-				//rename a new copy of the file back to 'messages'
-				messagesReader.close();
-				copyMessagesWriter.close();
-				messages.delete();
-				copyMessages.renameTo(messages);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			} finally {
@@ -278,6 +972,14 @@ public class FileImpl implements QueueServiceAbstract {
 		}
 	}
 	
+	/**
+	 * With syncPulls a pull returns once its record has reached the disk, so it survives the machine crashing too.
+	 * Off by default: it costs a disk flush per pull.
+	 */
+	public void setSyncPulls(boolean syncPulls) {
+		this.syncPulls = syncPulls;
+	}
+	
 	public VisibilityCollaborator getVisibilityCollaborator() {
 		return visibilityCollaborator;
 	}
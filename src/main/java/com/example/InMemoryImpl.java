@@ -1,10 +1,19 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TimerTask;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -18,12 +27,33 @@ public class InMemoryImpl implements QueueServiceAbstract {
 	public final static InMemoryImpl INSTANCE = new InMemoryImpl();
 
 	private final static long DEFAULT_VISIBILITY_TIMEOUT_MILLIS = 30000L;
-	/*queueName->Deque<messageBody>*/
-	private final Map<String, Deque<String>> messages = new HashMap<String, Deque<String>>();
+	private final static String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+	private final static String MESSAGE_GROUP_ID = "MessageGroupId";
+	/*as in SQS, a queue whose name ends with it is a FIFO queue*/
+	private final static String FIFO_SUFFIX = ".fifo";
+	private final static long DEDUPLICATION_INTERVAL_MILLIS = 5L * 60 * 1000;
+	/*queueName->Deque<Entry>*/
+	private final Map<String, Deque<Entry>> messages = new HashMap<String, Deque<Entry>>();
 	/*receiptHandle->Task*/
-	private final Map<String, TimerTask> invisibleMessages = new HashMap<String, TimerTask>();
+	private final Map<String, VisibilityTask> invisibleMessages = new HashMap<String, VisibilityTask>();
 	/*queueName->VisibilityTimeout*/
 	private final Map<String, Long> queueVisibilityTimeout = new HashMap<String, Long>();
+	/*queueName->visibleFrom->Deque<Entry>*/
+	private final Map<String, NavigableMap<Long, Deque<Entry>>> delayedMessages = new HashMap<String, NavigableMap<Long, Deque<Entry>>>();
+	/*queueName->time the earliest DelayTask is scheduled for*/
+	private final Map<String, Long> delayScheduledFor = new HashMap<String, Long>();
+	/*queueName->deadLetterQueueName*/
+	private final Map<String, String> deadLetterQueues = new HashMap<String, String>();
+	/*queueName->maxReceiveCount*/
+	private final Map<String, Integer> maxReceiveCounts = new HashMap<String, Integer>();
+	/*queueName->number of messages pulled and neither deleted nor visible again*/
+	private final Map<String, Long> inFlightCounts = new HashMap<String, Long>();
+	/*queueName->number of messages in delayedMessages*/
+	private final Map<String, Long> delayedCounts = new HashMap<String, Long>();
+	/*queueName->FifoGroups, for the FIFO queues, whose messages are kept there instead of in messages*/
+	private final Map<String, FifoGroups> fifoGroups = new HashMap<String, FifoGroups>();
+	/*queueName->PriorityLevels, for the other queues; its NORMAL level is the deque in messages*/
+	private final Map<String, PriorityLevels> priorityLevels = new HashMap<String, PriorityLevels>();
 
 	private VisibilityCollaborator visibilityCollaborator = new VisibilityCollaborator();
 
@@ -51,7 +81,38 @@ public class InMemoryImpl implements QueueServiceAbstract {
 		write.lock();
 		try {
 			queueVisibilityTimeout.put(queueName, new Long(visibilityTimeoutMillis));
-			messages.putIfAbsent(queueName, new LinkedList<String>());
+			messages.putIfAbsent(queueName, new LinkedList<Entry>());
+			delayedMessages.putIfAbsent(queueName, new TreeMap<Long, Deque<Entry>>());
+			if (queueName.endsWith(FIFO_SUFFIX)) {
+				fifoGroups.putIfAbsent(queueName, new FifoGroups());
+			} else {
+				priorityLevels.putIfAbsent(queueName, new PriorityLevels(messages.get(queueName)));
+			}
+			inFlightCounts.putIfAbsent(queueName, 0L);
+			delayedCounts.putIfAbsent(queueName, 0L);
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Messages received <code>maxReceiveCount</code> times without being deleted
+	 * are moved to <code>deadLetterQueueName</code> instead of becoming visible again.
+	 */
+	public void setRedrivePolicy(String queueName, String deadLetterQueueName, int maxReceiveCount) {
+		if (Strings.isNullOrEmpty(queueName) || Strings.isNullOrEmpty(deadLetterQueueName) || queueName.equals(deadLetterQueueName) || maxReceiveCount <= 0) 
+			throw new IllegalArgumentException();
+
+		write.lock();
+		try {
+			if (messages.get(queueName) == null || messages.get(deadLetterQueueName) == null)
+				throw new IllegalArgumentException();
+			//as in SQS, the dead-letter queue of a FIFO queue is a FIFO queue and that of a standard queue a standard one
+			if (fifoGroups.containsKey(queueName) != fifoGroups.containsKey(deadLetterQueueName))
+				throw new IllegalArgumentException("'" + queueName + "' and '" + deadLetterQueueName + "' must both be FIFO queues or neither");
+
+			deadLetterQueues.put(queueName, deadLetterQueueName);
+			maxReceiveCounts.put(queueName, maxReceiveCount);
 		} finally {
 			write.unlock();
 		}
@@ -61,11 +122,33 @@ public class InMemoryImpl implements QueueServiceAbstract {
 		if(Strings.isNullOrEmpty(queueName) || Strings.isNullOrEmpty(msg)) 
 			throw new IllegalArgumentException();
 
-		write.lock();
+		lockWrite(queueName);
+		try {
+			Deque<Entry> deque = messages.get(queueName);
+			if (deque != null && !fifoGroups.containsKey(queueName)) {
+				deque.add(new Entry(msg));
+			} else {
+				throw new IllegalArgumentException();
+			}
+		} finally {
+			write.unlock();
+		}	
+	}
+
+	/**
+	 * The bytes are copied once, into a buffer every pull of the message shares read-only.
+	 */
+	public void push(String queueName, ByteBuffer msg) {
+		if(Strings.isNullOrEmpty(queueName) || msg == null) 
+			throw new IllegalArgumentException();
+
+		byte[] binaryBody = new byte[msg.remaining()];
+		msg.duplicate().get(binaryBody);
+		lockWrite(queueName);
 		try {
-			Deque<String> deque = messages.get(queueName);
-			if (deque != null) {
-				deque.add(msg);
+			Deque<Entry> deque = messages.get(queueName);
+			if (deque != null && !fifoGroups.containsKey(queueName)) {
+				deque.add(new Entry(ByteBuffer.wrap(binaryBody).asReadOnlyBuffer()));
 			} else {
 				throw new IllegalArgumentException();
 			}
@@ -74,58 +157,254 @@ public class InMemoryImpl implements QueueServiceAbstract {
 		}	
 	}
 
+	/**
+	 * pushes a message onto the level <code>priority</code> of a queue which is not a FIFO queue.
+	 * Which level pull() takes its message from is up to the policy of the queue, see setPriorityPolicy();
+	 * a message becoming visible again goes back to the head of its level.
+	 */
+	public void push(String queueName, String msg, Priority priority) {
+		if(Strings.isNullOrEmpty(queueName) || Strings.isNullOrEmpty(msg) || priority == null) 
+			throw new IllegalArgumentException();
+
+		lockWrite(queueName);
+		try {
+			PriorityLevels levels = priorityLevels.get(queueName);
+			if (levels == null)
+				throw new IllegalArgumentException();
+
+			levels.get(priority).add(new Entry(msg, null, priority));
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Queues pull with Priority.Policy.STRICT unless set otherwise.
+	 */
+	public void setPriorityPolicy(String queueName, Priority.Policy policy) {
+		if (Strings.isNullOrEmpty(queueName) || policy == null) 
+			throw new IllegalArgumentException();
+
+		write.lock();
+		try {
+			PriorityLevels levels = priorityLevels.get(queueName);
+			if (levels == null)
+				throw new IllegalArgumentException();
+
+			levels.policy = policy;
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * pushes a message onto a FIFO queue, whose name ends with ".fifo". Messages of a group are pulled in order,
+	 * one at a time: the next one is only pulled after the previous one is deleted or becomes visible again.
+	 * A message with the deduplication id of another one pushed in the last 5 minutes is dropped;
+	 * pass null to push it anyway.
+	 */
+	public void push(String queueName, String msg, String messageGroupId, String deduplicationId) {
+		if(Strings.isNullOrEmpty(queueName) || Strings.isNullOrEmpty(msg) || Strings.isNullOrEmpty(messageGroupId)) 
+			throw new IllegalArgumentException();
+
+		lockWrite(queueName);
+		try {
+			FifoGroups groups = fifoGroups.get(queueName);
+			if (groups == null)
+				throw new IllegalArgumentException();
+			if (deduplicationId != null && !groups.deduplicate(deduplicationId, System.currentTimeMillis()))
+				return;
+
+			groups.add(new Entry(msg, messageGroupId));
+		} finally {
+			write.unlock();
+		}
+	}
+
+	/**
+	 * Delayed messages are kept by the time they become visible; a single DelayTask
+	 * per queue is scheduled for the earliest of them.
+	 */
+	public void push(String queueName, String msg, long delayMillis) {
+		if(Strings.isNullOrEmpty(queueName) || Strings.isNullOrEmpty(msg) || delayMillis < 0 || queueName.endsWith(FIFO_SUFFIX)) 
+			throw new IllegalArgumentException();
+		if (delayMillis == 0) {
+			push(queueName, msg);
+			return;
+		}
+
+		long visibleFrom = System.currentTimeMillis() + delayMillis;
+		lockWrite(queueName);
+		try {
+			NavigableMap<Long, Deque<Entry>> delayed = delayedMessages.get(queueName);
+			if (delayed == null) 
+				throw new IllegalArgumentException();
+
+			Deque<Entry> deque = delayed.get(visibleFrom);
+			if (deque == null) {
+				deque = new LinkedList<Entry>();
+				delayed.put(visibleFrom, deque);
+			}
+			deque.add(new Entry(msg));
+			add(delayedCounts, queueName, 1L);
+
+			Long scheduledFor = delayScheduledFor.get(queueName);
+			if (scheduledFor != null && scheduledFor <= visibleFrom) 
+				return;
+			delayScheduledFor.put(queueName, visibleFrom);
+		} finally {
+			write.unlock();
+		}
+		visibilityCollaborator.makeMessageVisibleAsynchronously(new DelayTask(queueName, visibleFrom), delayMillis);
+	}
+
 	public Message pull(String queueName) {
 		if (Strings.isNullOrEmpty(queueName)) 
 			throw new IllegalArgumentException();
 
-		final String messageBody;
-		read.lock();
+		//polling mutates the deque, so it needs the write lock as much as push does
+		final VisibilityTask task;
+		final long visibilityTimeoutMillis;
+		lockWrite(queueName);
 		try{
 			if (messages.get(queueName) == null)
 				throw new IllegalArgumentException();
 
-			Deque<String> deque = messages.get(queueName);
-			if (deque.isEmpty()){ 
+			FifoGroups groups = fifoGroups.get(queueName);
+			Entry entry = (groups == null) ? priorityLevels.get(queueName).poll() : groups.poll();
+			if (entry == null){ 
 				return null;
 			}
-			messageBody = deque.poll();
-		} finally {
-			read.unlock();
-		}
 
-		//save the message into the invisible queue and make it (asynchronously) visible after timeout
-		Message message = new Message();
-		message.setBody(messageBody);
-		message.setReceiptHandle(UUID.randomUUID().toString());
+			//save the message into the invisible queue and make it (asynchronously) visible after timeout
+			++entry.receiveCount;
+			Message message;
+			if (entry.binaryBody == null) {
+				message = new Message();
+				message.setBody(entry.body);
+			} else {
+				message = new BinaryMessage(entry.binaryBody);
+			}
+			message.setReceiptHandle(UUID.randomUUID().toString());
+			message.addAttributesEntry(APPROXIMATE_RECEIVE_COUNT, String.valueOf(entry.receiveCount));
+			if (entry.messageGroupId != null)
+				message.addAttributesEntry(MESSAGE_GROUP_ID, entry.messageGroupId);
 
-		VisibilityTask task = new VisibilityTask(queueName, message);
-		invisibleMessages.put(message.getReceiptHandle(), task);
+			visibilityTimeoutMillis = queueVisibilityTimeout.get(queueName);
+			task = new VisibilityTask(queueName, message, System.currentTimeMillis() + visibilityTimeoutMillis);
+			task.entry = entry;
+			invisibleMessages.put(message.getReceiptHandle(), task);
+			add(inFlightCounts, queueName, 1L);
+		} finally {
+			write.unlock();
+		}
 
-		long visibilityTimeoutMillis = queueVisibilityTimeout.get(queueName);
 		visibilityCollaborator.makeMessageVisibleAsynchronously(task, visibilityTimeoutMillis);
 
-		return message;
+		return task.message;
 	}
 
 	public void delete(String queue, String receiptHandle) {
 		if (Strings.isNullOrEmpty(receiptHandle) || Strings.isNullOrEmpty(queue)) 
 			throw new IllegalArgumentException();
 
-		write.lock();
+		lockWrite(queue);
 		try {
 			if (invisibleMessages.get(receiptHandle) == null) 
 				return;
 
-			TimerTask task = invisibleMessages.get(receiptHandle);
+			VisibilityTask task = invisibleMessages.get(receiptHandle);
 			if (task != null) {
 				task.cancel();
+				visibilityCollaborator.cancel(task);
 				invisibleMessages.remove(receiptHandle);
+				add(inFlightCounts, task.queueName, -1L);
+				//the next message of its group can be pulled now
+				FifoGroups groups = fifoGroups.get(task.queueName);
+				if (groups != null && task.entry != null)
+					groups.release(task.entry.messageGroupId);
 			}
 		} finally {
 			write.unlock();
 		}
 	}
 
+	/**
+	 * Moves the deadline of the task in place: a later deadline is picked up when the task
+	 * fires at its old time, an earlier one schedules the same task once more.
+	 */
+	public void changeVisibility(String queue, String receiptHandle, long visibilityTimeoutMillis) {
+		if (Strings.isNullOrEmpty(receiptHandle) || Strings.isNullOrEmpty(queue) || visibilityTimeoutMillis < 0) 
+			throw new IllegalArgumentException();
+
+		VisibilityTask task;
+		lockWrite(queue);
+		try {
+			task = invisibleMessages.get(receiptHandle);
+			if (task == null) 
+				return;
+
+			task.visibleFrom = System.currentTimeMillis() + visibilityTimeoutMillis;
+			if (task.visibleFrom >= task.scheduledFor) 
+				return;
+			task.scheduledFor = task.visibleFrom;
+		} finally {
+			write.unlock();
+		}
+		visibilityCollaborator.makeMessageVisibleAsynchronously(task, visibilityTimeoutMillis);
+	}
+
+	/**
+	 * All figures are kept up to date by the operations, so this is O(1).
+	 */
+	public QueueAttributes getQueueAttributes(String queueName) {
+		if (Strings.isNullOrEmpty(queueName)) 
+			throw new IllegalArgumentException();
+
+		read.lock();
+		try {
+			Deque<Entry> deque = messages.get(queueName);
+			if (deque == null)
+				throw new IllegalArgumentException();
+
+			FifoGroups groups = fifoGroups.get(queueName);
+			if (groups != null)
+				return new QueueAttributes(groups.size, inFlightCounts.get(queueName), 0L, -1L);
+
+			//redelivered messages go back to the head of their level, so the heads hold the oldest ones
+			PriorityLevels levels = priorityLevels.get(queueName);
+			long oldest = Long.MAX_VALUE;
+			long size = 0L;
+			for (Deque<Entry> level : levels.levels.values()) {
+				if (!level.isEmpty())
+					oldest = Math.min(oldest, level.peekFirst().sentTimestamp);
+				size += level.size();
+			}
+			long age = (size == 0L) ? 0L : System.currentTimeMillis() - oldest;
+			return new QueueAttributes(size, inFlightCounts.get(queueName), delayedCounts.get(queueName), age);
+		} finally {
+			read.unlock();
+		}
+	}
+
+	/**
+	 * All queues share the write lock, so the wait is traced for the queue which waited rather than the one holding it.
+	 */
+	private void lockWrite(String queueName) {
+		long start = Tracing.start();
+		write.lock();
+		Tracing.end(Tracing.Event.LOCK_WAIT, queueName, start, 0L, 0L);
+	}
+
+	/**
+	 * The write lock must be held.
+	 */
+	private static void add(Map<String, Long> counts, String queueName, long delta) {
+		Long count = counts.get(queueName);
+		if (count != null)
+			counts.put(queueName, count + delta);
+	}
+
 	public VisibilityCollaborator getVisibilityCollaborator() {
 		return visibilityCollaborator;
 	}
@@ -137,30 +416,256 @@ public class InMemoryImpl implements QueueServiceAbstract {
 	class VisibilityTask extends TimerTask {
 		private final String queueName;
 		private final Message message;
+		/*guarded by the write lock*/
+		private long visibleFrom;
+		private long scheduledFor;
+		private Entry entry;
 
 		public VisibilityTask(String queueName, Message message) {
+			this(queueName, message, 0L);
+		}
+
+		VisibilityTask(String queueName, Message message, long visibleFrom) {
 			this.message = message;
 			this.queueName = queueName;
+			this.visibleFrom = visibleFrom;
+			this.scheduledFor = visibleFrom;
 		}
 
 		@Override
 		public void run() {
 			String receiptHandle = message.getReceiptHandle();
-			String messageBody = message.getBody();
 			String queueName = this.queueName;
+			long delay;
 
-			write.lock();
+			lockWrite(queueName);
 			try {
-				TimerTask task = invisibleMessages.get(receiptHandle);
-				if (task != null && messageBody != null) {
+				VisibilityTask task = invisibleMessages.get(receiptHandle);
+				//the body is not looked at, that would make a BinaryMessage encode it
+				if (task == null || task.entry == null) 
+					return;
+
+				//the visibility timeout has been extended since this task was scheduled
+				delay = this.visibleFrom - System.currentTimeMillis();
+				if (delay <= 0) {
 					invisibleMessages.remove(receiptHandle);
-					Deque<String> deque = messages.get(queueName);
-					if (deque != null)
-						deque.addFirst(messageBody);
+					add(inFlightCounts, queueName, -1L);
+					Entry entry = task.entry;
+					FifoGroups groups = fifoGroups.get(queueName);
+					Integer maxReceiveCount = maxReceiveCounts.get(queueName);
+					if (maxReceiveCount != null && entry.receiveCount >= maxReceiveCount) {
+						//a poison message: park it in the dead-letter queue instead of the head of this one
+						if (groups != null)
+							groups.release(entry.messageGroupId);
+						String deadLetterQueueName = deadLetterQueues.get(queueName);
+						entry.receiveCount = 0;
+						if (fifoGroups.containsKey(deadLetterQueueName)) {
+							fifoGroups.get(deadLetterQueueName).add(entry);
+						} else {
+							priorityLevels.get(deadLetterQueueName).get(entry.priority).add(entry);
+						}
+						return;
+					}
+					if (groups != null) {
+						groups.addFirst(entry);
+						return;
+					}
+					PriorityLevels levels = priorityLevels.get(queueName);
+					if (levels != null)
+						levels.get(entry.priority).addFirst(entry);
+					return;
+				}
+				this.scheduledFor = this.visibleFrom;
+			} finally {
+				write.unlock();
+			}
+			visibilityCollaborator.makeMessageVisibleAsynchronously(this, delay);
+		}
+	}
+
+	/**
+	 * Moves the delayed messages which are due to the tail of the queue.
+	 */
+	class DelayTask extends TimerTask {
+		private final String queueName;
+		private final long scheduledFor;
+
+		DelayTask(String queueName, long scheduledFor) {
+			this.queueName = queueName;
+			this.scheduledFor = scheduledFor;
+		}
+
+		@Override
+		public void run() {
+			long next;
+			lockWrite(queueName);
+			try {
+				NavigableMap<Long, Deque<Entry>> delayed = delayedMessages.get(queueName);
+				Deque<Entry> deque = messages.get(queueName);
+				if (delayed == null || deque == null) 
+					return;
+
+				//a timer may fire a little before the wall clock reaches scheduledFor
+				NavigableMap<Long, Deque<Entry>> due = delayed.headMap(Math.max(scheduledFor, System.currentTimeMillis()), true);
+				for (Deque<Entry> visible : due.values()) {
+					deque.addAll(visible);
+					add(delayedCounts, queueName, -visible.size());
 				}
+				due.clear();
+
+				Long earliest = delayScheduledFor.get(queueName);
+				if (earliest != null && earliest == scheduledFor) {
+					delayScheduledFor.remove(queueName);
+					earliest = null;
+				}
+				if (delayed.isEmpty() || (earliest != null && earliest <= delayed.firstKey())) 
+					return;
+				next = delayed.firstKey();
+				delayScheduledFor.put(queueName, next);
 			} finally {
 				write.unlock();
 			}
+			visibilityCollaborator.makeMessageVisibleAsynchronously(new DelayTask(queueName, next), Math.max(0, next - System.currentTimeMillis()));
+		}
+	}
+
+	private static class Entry {
+		private final String body;
+		/*null for a text body*/
+		private final ByteBuffer binaryBody;
+		private final String messageGroupId;
+		private final Priority priority;
+		private final long sentTimestamp;
+		private int receiveCount;
+
+		Entry(String body) {
+			this(body, null);
+		}
+
+		Entry(String body, String messageGroupId) {
+			this(body, messageGroupId, Priority.NORMAL);
+		}
+
+		Entry(String body, String messageGroupId, Priority priority) {
+			this(body, null, messageGroupId, priority);
+		}
+
+		Entry(ByteBuffer binaryBody) {
+			this(null, binaryBody, null, Priority.NORMAL);
+		}
+
+		private Entry(String body, ByteBuffer binaryBody, String messageGroupId, Priority priority) {
+			this.body = body;
+			this.binaryBody = binaryBody;
+			this.messageGroupId = messageGroupId;
+			this.priority = priority;
+			this.sentTimestamp = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * The messages of a queue, by priority. Guarded by the write lock.
+	 */
+	private static class PriorityLevels {
+		private final Map<Priority, Deque<Entry>> levels = new EnumMap<Priority, Deque<Entry>>(Priority.class);
+		/*credits of the levels for Priority.Policy.WEIGHTED*/
+		private final Map<Priority, Integer> credits = new EnumMap<Priority, Integer>(Priority.class);
+		private Priority.Policy policy = Priority.Policy.STRICT;
+
+		PriorityLevels(Deque<Entry> normal) {
+			for (Priority priority : Priority.values()) {
+				levels.put(priority, priority == Priority.NORMAL ? normal : new LinkedList<Entry>());
+			}
+		}
+
+		Deque<Entry> get(Priority priority) {
+			return levels.get(priority);
+		}
+
+		Entry poll() {
+			Set<Priority> waiting = EnumSet.noneOf(Priority.class);
+			for (Priority priority : Priority.values()) {
+				if (!levels.get(priority).isEmpty())
+					waiting.add(priority);
+			}
+			if (waiting.isEmpty())
+				return null;
+
+			//values() are ordered from the highest priority down
+			Priority next = (policy == Priority.Policy.STRICT) ? waiting.iterator().next() : Priority.pickWeighted(waiting, credits);
+			return levels.get(next).poll();
+		}
+	}
+
+	/**
+	 * The messages of a FIFO queue, by group. A group is available while it has a message waiting and none in flight;
+	 * pull() takes the next message of the first available group, so it never scans groups that are blocked.
+	 * Guarded by the write lock.
+	 */
+	private static class FifoGroups {
+		/*messageGroupId->its waiting messages, oldest first; a group in flight stays here even when it has none*/
+		private final Map<String, Deque<Entry>> groups = new HashMap<String, Deque<Entry>>();
+		/*available groups, in the order they became available*/
+		private final Deque<String> available = new ArrayDeque<String>();
+		/*deduplicationId->time it was pushed, oldest first*/
+		private final LinkedHashMap<String, Long> deduplicationIds = new LinkedHashMap<String, Long>();
+		private long size;
+
+		void add(Entry entry) {
+			Deque<Entry> group = groups.get(entry.messageGroupId);
+			if (group == null) {
+				group = new ArrayDeque<Entry>();
+				groups.put(entry.messageGroupId, group);
+				available.add(entry.messageGroupId);
+			}
+			group.add(entry);
+			++size;
+		}
+
+		/**
+		 * puts back a message of a group in flight, which makes the group available again.
+		 */
+		void addFirst(Entry entry) {
+			groups.get(entry.messageGroupId).addFirst(entry);
+			available.addFirst(entry.messageGroupId);
+			++size;
+		}
+
+		/**
+		 * @return the next message of the first available group, whose group is in flight from now on
+		 */
+		Entry poll() {
+			String messageGroupId = available.poll();
+			if (messageGroupId == null)
+				return null;
+			--size;
+			return groups.get(messageGroupId).poll();
+		}
+
+		/**
+		 * ends the flight of a group whose message was deleted or moved away.
+		 */
+		void release(String messageGroupId) {
+			Deque<Entry> group = groups.get(messageGroupId);
+			if (group.isEmpty()) {
+				groups.remove(messageGroupId);
+			} else {
+				available.add(messageGroupId);
+			}
+		}
+
+		/**
+		 * @return false if the id was pushed less than 5 minutes ago
+		 */
+		boolean deduplicate(String deduplicationId, long now) {
+			Iterator<Long> pushed = deduplicationIds.values().iterator();
+			while (pushed.hasNext() && pushed.next() <= now - DEDUPLICATION_INTERVAL_MILLIS) {
+				pushed.remove();
+			}
+			if (deduplicationIds.containsKey(deduplicationId))
+				return false;
+			deduplicationIds.put(deduplicationId, now);
+			return true;
 		}
 	}
-}
\ No newline at end of file
+}
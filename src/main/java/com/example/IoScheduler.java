@@ -0,0 +1,136 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Runs the operations of an AsyncBlobStore within a limit of concurrent operations and of in-flight bytes.
+ * Waiting operations are admitted strictly first come, first served: a large operation at the head
+ * holds back smaller ones behind it rather than being starved by them.
+ * Threads are only busy while an operation runs, callers never block.
+ */
+class IoScheduler {
+
+	private final ThreadPoolExecutor executor;
+	/*operations waiting for admission, oldest first; guards the fields below*/
+	private final ArrayDeque<Operation<?>> waiting = new ArrayDeque<Operation<?>>();
+	private int maxConcurrency;
+	private long maxInFlightBytes;
+	private int running;
+	private long inFlightBytes;
+
+	IoScheduler(String name, int maxConcurrency, long maxInFlightBytes) {
+		checkLimits(maxConcurrency, maxInFlightBytes);
+
+		this.maxConcurrency = maxConcurrency;
+		this.maxInFlightBytes = maxInFlightBytes;
+		//admission keeps at most maxConcurrency operations running, so the queue of the executor stays empty
+		this.executor = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+		this.executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * @param bytes - bytes the operation moves, an estimate if they are not known
+	 */
+	<T> CompletableFuture<T> submit(long bytes, Callable<T> work) {
+		Operation<T> operation = new Operation<T>(Math.max(bytes, 0L), work);
+		synchronized (waiting) {
+			waiting.add(operation);
+		}
+		admit();
+		return operation.future;
+	}
+
+	void setLimits(int maxConcurrency, long maxInFlightBytes) {
+		checkLimits(maxConcurrency, maxInFlightBytes);
+
+		synchronized (waiting) {
+			if (maxConcurrency > executor.getMaximumPoolSize()) {
+				executor.setMaximumPoolSize(maxConcurrency);
+				executor.setCorePoolSize(maxConcurrency);
+			} else {
+				executor.setCorePoolSize(maxConcurrency);
+				executor.setMaximumPoolSize(maxConcurrency);
+			}
+			this.maxConcurrency = maxConcurrency;
+			this.maxInFlightBytes = maxInFlightBytes;
+		}
+		admit();
+	}
+
+	int getWaitingCount() {
+		synchronized (waiting) {
+			return waiting.size();
+		}
+	}
+
+	private void admit() {
+		List<Operation<?>> admitted = new ArrayList<Operation<?>>();
+		synchronized (waiting) {
+			Operation<?> head;
+			while (((head = waiting.peek()) != null) && (running < maxConcurrency)
+					&& ((running == 0) || (inFlightBytes + head.bytes <= maxInFlightBytes))) {
+				waiting.poll();
+				running++;
+				inFlightBytes += head.bytes;
+				admitted.add(head);
+			}
+		}
+
+		for (Operation<?> operation : admitted) {
+			executor.execute(() -> run(operation));
+		}
+	}
+
+	private <T> void run(Operation<T> operation) {
+		T result = null;
+		Throwable failure = null;
+		try {
+			result = operation.work.call();
+		} catch (Throwable e) {
+			failure = e;
+		}
+
+		//released before completing, so the stages depending on this one do not hold back the next operation
+		synchronized (waiting) {
+			running--;
+			inFlightBytes -= operation.bytes;
+		}
+		admit();
+
+		if (failure == null) {
+			operation.future.complete(result);
+		} else {
+			operation.future.completeExceptionally(failure);
+		}
+	}
+
+	private static void checkLimits(int maxConcurrency, long maxInFlightBytes) {
+		if (maxConcurrency < 1) {
+			throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+		}
+		if (maxInFlightBytes < 1L) {
+			throw new IllegalArgumentException("maxInFlightBytes must be positive: " + maxInFlightBytes);
+		}
+	}
+
+	private static class Operation<T> {
+		final long bytes;
+		final Callable<T> work;
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+
+		Operation(long bytes, Callable<T> work) {
+			this.bytes = bytes;
+			this.work = work;
+		}
+	}
+}
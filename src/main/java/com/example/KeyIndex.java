@@ -0,0 +1,515 @@
+package com.example;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+import com.google.common.util.concurrent.Striped;
+
+/**
+ * Sorted index of the keys of one bucket, kept as a small log-structured merge tree:
+ * changes are appended to a journal and collected in a sorted memtable,
+ * which is written out as an immutable sorted segment once it is large enough.
+ * A listing merges the memtable with the segments, seeking each through a sparse index,
+ * so a page costs time proportional to its size, not to the size of the bucket.
+ */
+class KeyIndex {
+
+	private static final String JOURNAL = "journal";
+	private static final String LOCK = "lock";
+	private static final String SEGMENT = "segment-";
+	private static final String SPARSE = ".sparse";
+	private static final String COPY = ".copy";
+	private static final String MERGED = ".merged";
+	private static final String PRESENT = "+";
+	private static final String DELETED = "-";
+	private static final String SEPARATOR = "|";
+	private static final int MEMTABLE_ENTRIES = 64 * 1024;
+	private static final int SPARSE_INTERVAL = 128;
+	private static final int MAX_SEGMENTS = 4;
+	/*a FileLock is held by the whole JVM, so the indexes of one JVM on a directory take turns here first*/
+	private static final Striped<Lock> DIRECTORY_LOCKS = Striped.lock(64);
+
+	private final File directory;
+	private final File journalFile;
+	private final Lock directoryLock;
+	private FileChannel lockChannel;
+	private FileLock fileLock;
+	private PrintWriter journal;
+	/*the bytes of the journal already in the memtable*/
+	private long journalRead;
+	/*the segments of the state, as named on disk*/
+	private List<Long> segmentNumbers = Collections.emptyList();
+	private long nextSegment;
+	/*changes since the last flush; counted here since sizing a skip list walks it*/
+	private int memtableChanges;
+	/*replaced as a whole, so a listing works on one consistent view*/
+	private volatile State state;
+
+	/**
+	 * The directory may be shared with other indexes, in this process or another one:
+	 * every change and listing first catches up with what they wrote, holding a lock on the directory.
+	 * @param keys - the keys to start from when the index does not exist yet, in any order
+	 */
+	KeyIndex(File directory, Iterable<String> keys) throws IOException {
+		this.directory = directory;
+		this.journalFile = new File(directory, JOURNAL);
+
+		directory.mkdirs();
+		this.directoryLock = DIRECTORY_LOCKS.get(directory.getCanonicalPath());
+		lock();
+		try {
+			//there is always at least one segment once the index was built
+			if (listSegments().isEmpty()) {
+				List<String> sorted = new ArrayList<String>();
+				for (String key : keys) {
+					sorted.add(key);
+				}
+				Collections.sort(sorted);
+
+				NavigableMap<String, Boolean> entries = new TreeMap<String, Boolean>();
+				for (String key : sorted) {
+					entries.put(key, Boolean.TRUE);
+				}
+				writeSegment(0L, entries, false);
+			}
+			refresh();
+			this.journal = newWriter(journalFile, true);
+		} finally {
+			unlock();
+		}
+	}
+
+	synchronized void add(String key) {
+		change(key, true);
+	}
+
+	synchronized void remove(String key) {
+		change(key, false);
+	}
+
+	synchronized void close() {
+		journal.close();
+		try {
+			lockChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return up to limit keys starting with prefix and sorting after startAfter (null for the first page)
+	 */
+	List<String> list(String prefix, String startAfter, int limit) {
+		while (true) {
+			try {
+				return list(current(), prefix, startAfter, limit);
+			} catch (NoSuchFileException e) {
+				//a compaction removed a segment of this view, try again with the new one
+			} catch (IOException e) {
+				throw new RuntimeException("list(String prefix, String startAfter, int limit): " + e.getMessage(), e);
+			}
+		}
+	}
+
+	private synchronized State current() throws IOException {
+		lock();
+		try {
+			refresh();
+		} finally {
+			unlock();
+		}
+		return state;
+	}
+
+	private void change(String key, boolean present) {
+		try {
+			lock();
+			try {
+				refresh();
+				journal.println((present ? PRESENT : DELETED) + key);
+				journal.flush();
+				journalRead = journalFile.length();
+				state.memtable.put(key, present);
+
+				if (++memtableChanges >= MEMTABLE_ENTRIES) {
+					flush();
+				}
+			} finally {
+				unlock();
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("change(String key, boolean present): " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * Catches up with the segments and the journal as other indexes on the directory left them.
+	 */
+	private void refresh() throws IOException {
+		List<Long> numbers = listSegments();
+		long length = journalFile.length();
+		if (numbers.equals(segmentNumbers) && (length >= journalRead)) {
+			if (length > journalRead) {
+				journalRead = readJournal(state.memtable, journalRead);
+			}
+			return;
+		}
+
+		List<Segment> segments = new ArrayList<Segment>();
+		for (long number : numbers) {
+			segments.add(readSegment(number));
+		}
+		ConcurrentSkipListMap<String, Boolean> memtable = new ConcurrentSkipListMap<String, Boolean>();
+		memtableChanges = 0;
+		journalRead = readJournal(memtable, 0L);
+		segmentNumbers = numbers;
+		nextSegment = numbers.get(numbers.size() - 1) + 1;
+		state = new State(memtable, segments);
+	}
+
+	/*
+	 * Reads the journal from offset into memtable.
+	 * @return the length of the journal
+	 */
+	private long readJournal(ConcurrentSkipListMap<String, Boolean> memtable, long offset) throws IOException {
+		if (!journalFile.exists()) {
+			return 0L;
+		}
+		try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.READ)) {
+			long length = channel.size();
+			channel.position(offset);
+			BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(PRESENT) || line.startsWith(DELETED)) {
+					memtable.put(line.substring(1), line.startsWith(PRESENT));
+					++memtableChanges;
+				}
+			}
+			return length;
+		}
+	}
+
+	private void flush() throws IOException {
+		List<Segment> segments = new ArrayList<Segment>(state.segments);
+		List<Long> numbers = new ArrayList<Long>(segmentNumbers);
+		segments.add(writeSegment(nextSegment, state.memtable, false));
+		numbers.add(nextSegment++);
+
+		if (segments.size() > MAX_SEGMENTS) {
+			//merging every segment, the oldest included, is what allows dropping the deletions
+			NavigableMap<String, Boolean> merged = new TreeMap<String, Boolean>();
+			MergingIterator iterator = new MergingIterator(segments, null, "");
+			try {
+				while (iterator.hasNext()) {
+					Map.Entry<String, Boolean> entry = iterator.next();
+					if (entry.getValue()) {
+						merged.put(entry.getKey(), Boolean.TRUE);
+					}
+				}
+			} finally {
+				iterator.close();
+			}
+			long number = nextSegment++;
+			segments = new ArrayList<Segment>();
+			segments.add(writeSegment(number, merged, true));
+			publishMerge(number, numbers);
+			numbers = new ArrayList<Long>();
+			numbers.add(number);
+		}
+
+		//the journal goes last, until then it can be replayed over whatever segments a crash left;
+		//the writers of every index append, so they go on at the new end
+		try (FileChannel channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+			channel.truncate(0L);
+		}
+		journalRead = 0L;
+		memtableChanges = 0;
+		segmentNumbers = numbers;
+		state = new State(new ConcurrentSkipListMap<String, Boolean>(), segments);
+	}
+
+	/*
+	 * The merged segment keeps its own name until the segments it replaces are deleted:
+	 * without their deletions, what is left of them would bring deleted keys back.
+	 */
+	private void publishMerge(long number, List<Long> obsolete) throws IOException {
+		for (long older : obsolete) {
+			if (older < number) {
+				Files.deleteIfExists(new File(directory, SEGMENT + older).toPath());
+				Files.deleteIfExists(new File(directory, SEGMENT + older + SPARSE).toPath());
+			}
+		}
+		Files.move(new File(directory, SEGMENT + number + MERGED).toPath(), new File(directory, SEGMENT + number).toPath(), StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/*
+	 * @return the numbers of the segments, oldest first, after publishing a merge a crash interrupted
+	 */
+	private List<Long> listSegments() throws IOException {
+		while (true) {
+			List<Long> numbers = new ArrayList<Long>();
+			Long merged = null;
+			for (String name : directory.list()) {
+				if (!name.startsWith(SEGMENT) || name.endsWith(SPARSE) || name.endsWith(COPY)) {
+					continue;
+				}
+				if (name.endsWith(MERGED)) {
+					merged = Long.parseLong(name.substring(SEGMENT.length(), name.length() - MERGED.length()));
+				} else {
+					numbers.add(Long.parseLong(name.substring(SEGMENT.length())));
+				}
+			}
+			if (merged == null) {
+				Collections.sort(numbers);
+				return numbers;
+			}
+			publishMerge(merged, numbers);
+		}
+	}
+
+	private void lock() throws IOException {
+		directoryLock.lock();
+		try {
+			//an interrupt closes the channel
+			if ((lockChannel == null) || !lockChannel.isOpen()) {
+				lockChannel = FileChannel.open(new File(directory, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			}
+			fileLock = lockChannel.lock();
+		} catch (IOException | RuntimeException e) {
+			directoryLock.unlock();
+			throw e;
+		}
+	}
+
+	private void unlock() throws IOException {
+		try {
+			fileLock.release();
+		} finally {
+			directoryLock.unlock();
+		}
+	}
+
+	private static List<String> list(State state, String prefix, String startAfter, int limit) throws IOException {
+		List<String> keys = new ArrayList<String>();
+		String from = ((startAfter != null) && (startAfter.compareTo(prefix) >= 0)) ? startAfter : prefix;
+
+		List<Segment> sources = new ArrayList<Segment>(state.segments);
+		MergingIterator iterator = new MergingIterator(sources, state.memtable, from);
+		try {
+			while ((keys.size() < limit) && iterator.hasNext()) {
+				Map.Entry<String, Boolean> entry = iterator.next();
+				String key = entry.getKey();
+				if (!key.startsWith(prefix)) {
+					break;
+				}
+				if (entry.getValue() && ((startAfter == null) || (key.compareTo(startAfter) > 0))) {
+					keys.add(key);
+				}
+			}
+		} finally {
+			iterator.close();
+		}
+		return keys;
+	}
+
+	/*
+	 * A segment holds one "+key" or "-key" line per key, sorted;
+	 * its sparse index holds "offset|key" for every SPARSE_INTERVAL-th line.
+	 */
+	private Segment writeSegment(long number, NavigableMap<String, Boolean> entries, boolean merged) throws IOException {
+		File file = new File(directory, SEGMENT + number);
+		File copy = new File(directory, SEGMENT + number + COPY);
+		File sparseFile = new File(file.getPath() + SPARSE);
+		NavigableMap<String, Long> sparse = new TreeMap<String, Long>();
+
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(copy));
+			PrintWriter sparseWriter = newWriter(sparseFile, false)) {
+			long offset = 0L;
+			int line = 0;
+			for (Map.Entry<String, Boolean> entry : entries.entrySet()) {
+				if (line++ % SPARSE_INTERVAL == 0) {
+					sparse.put(entry.getKey(), offset);
+					sparseWriter.println(offset + SEPARATOR + entry.getKey());
+				}
+				byte[] bytes = ((entry.getValue() ? PRESENT : DELETED) + entry.getKey() + "\n").getBytes(StandardCharsets.UTF_8);
+				out.write(bytes);
+				offset += bytes.length;
+			}
+		}
+		File target = merged ? new File(directory, SEGMENT + number + MERGED) : file;
+		Files.move(copy.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return new Segment(file, sparse);
+	}
+
+	private Segment readSegment(long number) throws IOException {
+		File file = new File(directory, SEGMENT + number);
+		NavigableMap<String, Long> sparse = new TreeMap<String, Long>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file.getPath() + SPARSE), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] strings = line.split(Pattern.quote(SEPARATOR), 2);
+				sparse.put(strings[1], Long.parseLong(strings[0]));
+			}
+		}
+		return new Segment(file, sparse);
+	}
+
+	private static PrintWriter newWriter(File file, boolean append) throws IOException {
+		return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file, append), StandardCharsets.UTF_8));
+	}
+
+	private static class State {
+		final ConcurrentSkipListMap<String, Boolean> memtable;
+		/*oldest first*/
+		final List<Segment> segments;
+
+		State(ConcurrentSkipListMap<String, Boolean> memtable, List<Segment> segments) {
+			this.memtable = memtable;
+			this.segments = Collections.unmodifiableList(segments);
+		}
+	}
+
+	private static class Segment {
+		final File file;
+		/*key->offset of its line*/
+		final NavigableMap<String, Long> sparse;
+
+		Segment(File file, NavigableMap<String, Long> sparse) {
+			this.file = file;
+			this.sparse = sparse;
+		}
+	}
+
+	/*
+	 * Reads a segment from the first key not before "from".
+	 */
+	private static class SegmentCursor {
+		final int age;
+		final BufferedReader reader;
+		String key;
+		boolean present;
+
+		SegmentCursor(Segment segment, int age, String from) throws IOException {
+			this.age = age;
+			Map.Entry<String, Long> floor = segment.sparse.floorEntry(from);
+			FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ);
+			channel.position(floor == null ? 0L : floor.getValue());
+			this.reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), -1));
+			do {
+				advance();
+			} while ((key != null) && (key.compareTo(from) < 0));
+		}
+
+		void advance() throws IOException {
+			String line = reader.readLine();
+			if (line == null) {
+				key = null;
+			} else {
+				key = line.substring(1);
+				present = line.startsWith(PRESENT);
+			}
+		}
+	}
+
+	/*
+	 * Merges the segments and the memtable in key order; of equal keys the newest source wins.
+	 */
+	private static class MergingIterator implements Iterator<Map.Entry<String, Boolean>> {
+
+		private final PriorityQueue<SegmentCursor> cursors = new PriorityQueue<SegmentCursor>(
+				(a, b) -> a.key.equals(b.key) ? Integer.compare(b.age, a.age) : a.key.compareTo(b.key));
+		private final List<SegmentCursor> opened = new ArrayList<SegmentCursor>();
+		private final Iterator<Map.Entry<String, Boolean>> memtable;
+		private Map.Entry<String, Boolean> nextInMemtable;
+
+		MergingIterator(List<Segment> segments, ConcurrentSkipListMap<String, Boolean> memtable, String from) throws IOException {
+			try {
+				for (int age = 0; age < segments.size(); ++age) {
+					SegmentCursor cursor = new SegmentCursor(segments.get(age), age, from);
+					opened.add(cursor);
+					if (cursor.key != null) {
+						cursors.add(cursor);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			this.memtable = (memtable == null) ? Collections.<Map.Entry<String, Boolean>>emptyIterator() : memtable.tailMap(from, true).entrySet().iterator();
+			this.nextInMemtable = this.memtable.hasNext() ? this.memtable.next() : null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (nextInMemtable != null) || !cursors.isEmpty();
+		}
+
+		@Override
+		public Map.Entry<String, Boolean> next() {
+			String segmentKey = cursors.isEmpty() ? null : cursors.peek().key;
+			String key;
+			boolean present;
+			if ((nextInMemtable != null) && ((segmentKey == null) || (nextInMemtable.getKey().compareTo(segmentKey) <= 0))) {
+				key = nextInMemtable.getKey();
+				present = nextInMemtable.getValue();
+				nextInMemtable = memtable.hasNext() ? memtable.next() : null;
+			} else {
+				key = segmentKey;
+				present = cursors.peek().present;
+			}
+
+			//drop the older versions of the key
+			try {
+				while (!cursors.isEmpty() && cursors.peek().key.equals(key)) {
+					SegmentCursor cursor = cursors.poll();
+					cursor.advance();
+					if (cursor.key != null) {
+						cursors.add(cursor);
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException("next(): " + e.getMessage(), e);
+			}
+			return new SimpleImmutableEntry<String, Boolean>(key, present);
+		}
+
+		void close() {
+			for (SegmentCursor cursor : opened) {
+				try {
+					cursor.reader.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.google.common.base.Strings;
+
+/**
+ * Offloads large message bodies of another queue service into a BlobStore.
+ * A body longer than the threshold, in UTF-8 bytes, is stored as a blob and the queue only carries a pointer to it;
+ * a pulled message reads the blob when its body is first asked for. Binary bodies are offloaded the same way
+ * and come back as a BinaryMessage.
+ * The receipt handle of such a message also names the blob, which is deleted together with the message.
+ * As with SQS, deleting with a stale receipt handle still deletes the blob.
+ * A small body that starts like a pointer is escaped on the queue, so it is never taken for one.
+ */
+public class LargeMessageQueueService implements QueueServiceAbstract {
+
+	private static final int DEFAULT_THRESHOLD = 256 * 1024;
+	private static final String POINTER = "blob-pointer:";
+	private static final String BINARY_POINTER = "binary-blob-pointer:";
+	/*prefixes a body which would otherwise start with one of the above, or with itself*/
+	private static final String ESCAPE = "escaped:";
+	/*a bucket name cannot contain "/"*/
+	private static final String SEPARATOR = "/";
+	/*a handle is "<bucket>/<key>|<receipt handle of the queue>"*/
+	private static final String HANDLE_SEPARATOR = "|";
+
+	private final QueueServiceAbstract queueService;
+	private final BlobStore blobStore;
+	private final String bucket;
+	private final int threshold;
+
+	public LargeMessageQueueService(QueueServiceAbstract queueService, BlobStore blobStore, String bucket) {
+		this(queueService, blobStore, bucket, DEFAULT_THRESHOLD);
+	}
+
+	/**
+	 * @param threshold - bodies longer than this many bytes are offloaded
+	 */
+	public LargeMessageQueueService(QueueServiceAbstract queueService, BlobStore blobStore, String bucket, int threshold) {
+		if ((queueService == null) || (blobStore == null) || Strings.isNullOrEmpty(bucket) || bucket.contains(SEPARATOR) || (threshold < 0)) {
+			throw new IllegalArgumentException();
+		}
+
+		this.queueService = queueService;
+		this.blobStore = blobStore;
+		this.bucket = bucket;
+		this.threshold = threshold;
+	}
+
+	@Override
+	public void push(String queue, String messageBody) {
+		push(queue, messageBody, 0L);
+	}
+
+	/*
+	 * A blob whose pointer could not be pushed is deleted again.
+	 */
+	@Override
+	public void push(String queue, String messageBody, long delayMillis) {
+		if (Strings.isNullOrEmpty(messageBody)) {
+			throw new IllegalArgumentException();
+		}
+
+		byte[] body = messageBody.getBytes(StandardCharsets.UTF_8);
+		boolean escaped = messageBody.startsWith(POINTER) || messageBody.startsWith(BINARY_POINTER) || messageBody.startsWith(ESCAPE);
+		if (body.length + (escaped ? ESCAPE.length() : 0) <= threshold) {
+			queueService.push(queue, escaped ? ESCAPE + messageBody : messageBody, delayMillis);
+			return;
+		}
+
+		String key = UUID.randomUUID().toString();
+		blobStore.put(bucket, key, ByteBuffer.wrap(body));
+		boolean pushed = false;
+		try {
+			queueService.push(queue, POINTER + bucket + SEPARATOR + key, delayMillis);
+			pushed = true;
+		} finally {
+			if (!pushed) {
+				blobStore.delete(bucket, key);
+			}
+		}
+	}
+
+	/*
+	 * A blob whose pointer could not be pushed is deleted again.
+	 */
+	@Override
+	public void push(String queue, ByteBuffer messageBody) {
+		if (messageBody == null) {
+			throw new IllegalArgumentException();
+		}
+
+		if (messageBody.remaining() <= threshold) {
+			queueService.push(queue, messageBody);
+			return;
+		}
+
+		String key = UUID.randomUUID().toString();
+		blobStore.put(bucket, key, messageBody.duplicate());
+		boolean pushed = false;
+		try {
+			queueService.push(queue, BINARY_POINTER + bucket + SEPARATOR + key);
+			pushed = true;
+		} finally {
+			if (!pushed) {
+				blobStore.delete(bucket, key);
+			}
+		}
+	}
+
+	/*
+	 * A binary body of the queue is never a pointer, and is not encoded to find out.
+	 */
+	@Override
+	public Message pull(String queue) {
+		Message message = queueService.pull(queue);
+		if ((message == null) || (message instanceof BinaryMessage)) {
+			return message;
+		}
+		if (message.getBody().startsWith(ESCAPE)) {
+			//a copy, the queue service may hand out the same message again
+			Message unescaped = message.clone();
+			unescaped.setBody(message.getBody().substring(ESCAPE.length()));
+			return unescaped;
+		}
+		boolean binary = message.getBody().startsWith(BINARY_POINTER);
+		if (!binary && !message.getBody().startsWith(POINTER)) {
+			return message;
+		}
+
+		String blob = message.getBody().substring(binary ? BINARY_POINTER.length() : POINTER.length());
+		int separator = blob.indexOf(SEPARATOR);
+		if (separator <= 0) {
+			//not pushed through this service
+			return message;
+		}
+		Message offloaded = binary ? new OffloadedBinaryMessage(blob.substring(0, separator), blob.substring(separator + 1))
+				: new OffloadedMessage(blob.substring(0, separator), blob.substring(separator + 1));
+		offloaded.setMessageId(message.getMessageId());
+		offloaded.setReceiptHandle(blob + HANDLE_SEPARATOR + message.getReceiptHandle());
+		offloaded.setMD5OfBody(message.getMD5OfBody());
+		offloaded.setAttributes(message.getAttributes());
+		offloaded.setMessageAttributes(message.getMessageAttributes());
+		return offloaded;
+	}
+
+	/*
+	 * The message is deleted before its blob, so a failed delete leaves a message that can still be read.
+	 */
+	@Override
+	public void delete(String queue, String receiptHandle) {
+		int separator = getHandleSeparator(receiptHandle);
+		if (separator < 0) {
+			queueService.delete(queue, receiptHandle);
+			return;
+		}
+
+		String blob = receiptHandle.substring(0, separator);
+		queueService.delete(queue, receiptHandle.substring(separator + 1));
+		int bucketEnd = blob.indexOf(SEPARATOR);
+		blobStore.delete(blob.substring(0, bucketEnd), blob.substring(bucketEnd + 1));
+	}
+
+	@Override
+	public void changeVisibility(String queue, String receiptHandle, long visibilityTimeoutMillis) {
+		int separator = getHandleSeparator(receiptHandle);
+		queueService.changeVisibility(queue, separator < 0 ? receiptHandle : receiptHandle.substring(separator + 1), visibilityTimeoutMillis);
+	}
+
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		return queueService.getQueueAttributes(queue);
+	}
+
+	/**
+	 * @return the index of the separator of an offloaded message's handle, -1 for any other handle
+	 */
+	private int getHandleSeparator(String receiptHandle) {
+		if (Strings.isNullOrEmpty(receiptHandle)) {
+			throw new IllegalArgumentException();
+		}
+		int separator = receiptHandle.indexOf(HANDLE_SEPARATOR);
+		return (separator > 0) && receiptHandle.substring(0, separator).contains(SEPARATOR) ? separator : -1;
+	}
+
+	/**
+	 * Reads its body from the blob store on first use.
+	 */
+	private class OffloadedMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String blobBucket;
+		private final String blobKey;
+		private boolean loaded;
+
+		OffloadedMessage(String blobBucket, String blobKey) {
+			this.blobBucket = blobBucket;
+			this.blobKey = blobKey;
+		}
+
+		@Override
+		public synchronized String getBody() {
+			if (!loaded) {
+				ByteBuffer body = blobStore.getByteBuffer(blobBucket, blobKey);
+				super.setBody(StandardCharsets.UTF_8.decode(body).toString());
+				loaded = true;
+			}
+			return super.getBody();
+		}
+
+		@Override
+		public synchronized void setBody(String body) {
+			super.setBody(body);
+			loaded = true;
+		}
+	}
+
+	/**
+	 * Reads its body from the blob store on first use.
+	 */
+	private class OffloadedBinaryMessage extends BinaryMessage {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String blobBucket;
+		private final String blobKey;
+		private boolean loaded;
+
+		OffloadedBinaryMessage(String blobBucket, String blobKey) {
+			this.blobBucket = blobBucket;
+			this.blobKey = blobKey;
+		}
+
+		@Override
+		public synchronized ByteBuffer getBodyAsByteBuffer() {
+			if (!loaded) {
+				setBodyAsByteBuffer(blobStore.getByteBuffer(blobBucket, blobKey));
+			}
+			return super.getBodyAsByteBuffer();
+		}
+
+		@Override
+		public synchronized void setBodyAsByteBuffer(ByteBuffer binaryBody) {
+			super.setBodyAsByteBuffer(binaryBody);
+			loaded = true;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.example;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram of microsecond values.
+ * Every power-of-two range is split into 128 linear sub-buckets,
+ * so a recorded value is reported with an error below 1%.
+ */
+class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	public void record(long micros) {
+		counts.incrementAndGet(indexOf(Math.max(0L, micros)));
+	}
+
+	/**
+	 * @return a copy of the current counts, resetting this histogram to zero.
+	 */
+	public LatencyHistogram snapshotAndReset() {
+		LatencyHistogram snapshot = new LatencyHistogram();
+		for (int i = 0; i < BUCKETS; ++i) {
+			long count = counts.getAndSet(i, 0L);
+			if (count != 0L) {
+				snapshot.counts.set(i, count);
+			}
+		}
+		return snapshot;
+	}
+
+	public long getTotalCount() {
+		long total = 0L;
+		for (int i = 0; i < BUCKETS; ++i) {
+			total += counts.get(i);
+		}
+		return total;
+	}
+
+	/**
+	 * @param percentile - in the range (0, 100]
+	 * @return the highest value equivalent to the bucket holding the percentile, 0 when empty
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long total = getTotalCount();
+		if (total == 0L) {
+			return 0L;
+		}
+		long threshold = Math.max(1L, (long) Math.ceil(total * percentile / 100.0));
+		long seen = 0L;
+		for (int i = 0; i < BUCKETS; ++i) {
+			seen += counts.get(i);
+			if (seen >= threshold) {
+				return highestValueOf(i);
+			}
+		}
+		return highestValueOf(BUCKETS - 1);
+	}
+
+	public long getMaxValue() {
+		for (int i = BUCKETS - 1; i >= 0; --i) {
+			if (counts.get(i) != 0L) {
+				return highestValueOf(i);
+			}
+		}
+		return 0L;
+	}
+
+	private static int indexOf(long value) {
+		int magnitude = 63 - Long.numberOfLeadingZeros(value | 1L);
+		int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	private static long highestValueOf(int index) {
+		int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+		long subBucket = index - ((long) shift << SUB_BUCKET_BITS);
+		return ((subBucket + 1L) << shift) - 1L;
+	}
+}
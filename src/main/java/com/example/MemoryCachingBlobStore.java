@@ -0,0 +1,189 @@
+package com.example;
+
+import java.io.File;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Keeps small objects of another BlobStore in memory, outside of the heap.
+ * Every object gets a direct buffer of its own and readers get read-only views of it, without a copy:
+ * an evicted buffer is never reused, so a view handed out earlier stays valid until it is dropped.
+ * Puts through this store invalidate the cached object; writes that bypass it are not seen.
+ */
+public class MemoryCachingBlobStore implements BlobStore {
+
+	private static final int DEFAULT_MAX_OBJECT_BYTES = 64 * 1024;
+
+	private final BlobStore backend;
+	private final int maxObjectBytes;
+	/*bucket/key->direct buffer, weighed by its size*/
+	private final Cache<String, ByteBuffer> buffers;
+	/*bumped by every put; a load that overlaps a put does not keep what it read*/
+	private final AtomicLong writes = new AtomicLong();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public MemoryCachingBlobStore(BlobStore backend, long maxBytes) {
+		this(backend, maxBytes, DEFAULT_MAX_OBJECT_BYTES);
+	}
+
+	/**
+	 * @param maxBytes - budget of the cached objects
+	 * @param maxObjectBytes - larger objects are always read from the backend
+	 */
+	public MemoryCachingBlobStore(BlobStore backend, long maxBytes, int maxObjectBytes) {
+		if ((backend == null) || (maxBytes <= 0L) || (maxObjectBytes <= 0) || (maxObjectBytes > maxBytes)) {
+			throw new IllegalArgumentException();
+		}
+
+		this.backend = backend;
+		this.maxObjectBytes = maxObjectBytes;
+		this.buffers = CacheBuilder.newBuilder()
+				.maximumWeight(maxBytes)
+				.weigher((String id, ByteBuffer buffer) -> buffer.capacity())
+				.build();
+	}
+
+	@Override
+	public void put(String bucket, String key, File data) {
+		backend.put(bucket, key, data);
+		invalidate(bucket, key);
+	}
+
+	@Override
+	public void put(String bucket, String key, InputStream data, long length) {
+		backend.put(bucket, key, data, length);
+		invalidate(bucket, key);
+	}
+
+	@Override
+	public void put(String bucket, String key, ReadableByteChannel data, long length) {
+		backend.put(bucket, key, data, length);
+		invalidate(bucket, key);
+	}
+
+	@Override
+	public void put(String bucket, String key, ByteBuffer data) {
+		backend.put(bucket, key, data);
+		invalidate(bucket, key);
+	}
+
+	@Override
+	public File get(String bucket, String key) {
+		return backend.get(bucket, key);
+	}
+
+	@Override
+	public InputStream getInputStream(String bucket, String key) {
+		return new ByteBufferInputStream(getByteBuffer(bucket, key));
+	}
+
+	@Override
+	public ReadableByteChannel getChannel(String bucket, String key) {
+		return Channels.newChannel(getInputStream(bucket, key));
+	}
+
+	/**
+	 * @return a read-only view, shared with the cache, of an object not larger than maxObjectBytes;
+	 * a larger object is read from the backend
+	 */
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key) {
+		String id = getId(bucket, key);
+		ByteBuffer cached = buffers.getIfPresent(id);
+		if (cached != null) {
+			hits.incrementAndGet();
+			return cached.asReadOnlyBuffer();
+		}
+
+		misses.incrementAndGet();
+		long generation = writes.get();
+		ByteBuffer loaded = backend.getByteBuffer(bucket, key);
+		if (loaded.remaining() > maxObjectBytes) {
+			return loaded;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(loaded.remaining());
+		buffer.put(loaded).flip();
+		buffers.put(id, buffer);
+		if (writes.get() != generation) {
+			//a put may have run after the read, the object read can be stale
+			buffers.invalidate(id);
+		}
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * A cached object is sliced without a copy; a miss reads only the range from the backend and is not cached.
+	 */
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length) {
+		ByteBuffer cached = buffers.getIfPresent(getId(bucket, key));
+		if (cached == null) {
+			misses.incrementAndGet();
+			return backend.getByteBuffer(bucket, key, offset, length);
+		}
+
+		FileBlobStore.checkRange(offset, length);
+		hits.incrementAndGet();
+		ByteBuffer view = cached.asReadOnlyBuffer();
+		view.position((int) Math.min(offset, view.limit()));
+		view.limit((int) Math.min(offset + length, view.limit()));
+		return view.slice();
+	}
+
+	@Override
+	public void delete(String bucket, String key) {
+		backend.delete(bucket, key);
+		invalidate(bucket, key);
+	}
+
+	public void invalidate(String bucket, String key) {
+		writes.incrementAndGet();
+		buffers.invalidate(getId(bucket, key));
+	}
+
+	@Override
+	public List<String> list(String bucket, String prefix, String startAfter, int limit) {
+		return backend.list(bucket, prefix, startAfter, limit);
+	}
+
+	@Override
+	public BlobMetadata head(String bucket, String key) {
+		return backend.head(bucket, key);
+	}
+
+	@Override
+	public Blob getIfChanged(String bucket, String key, String knownEtag) {
+		return backend.getIfChanged(bucket, key, knownEtag);
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	public long getCachedBytes() {
+		long cachedBytes = 0L;
+		for (ByteBuffer buffer : buffers.asMap().values()) {
+			cachedBytes += buffer.capacity();
+		}
+		return cachedBytes;
+	}
+
+	//a bucket name cannot contain "/", so the id is unambiguous
+	private static String getId(String bucket, String key) {
+		return bucket + "/" + key;
+	}
+}
@@ -0,0 +1,386 @@
+package com.example;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Small objects of one bucket, appended as records to large pack files.
+ * A record is [key length:int][data length:long, -1 for a deletion][key][data];
+ * the records are the log of the offset index, which is rebuilt from their headers on open,
+ * the newest record of a key winning.
+ * Only the newest pack is written; older packs are rewritten by repack() once most of them is dead.
+ */
+class PackedBucket {
+
+	private static final String PACK = "pack-";
+	private static final int HEADER_SIZE = 4 + 8;
+	private static final long DELETED = -1L;
+
+	private final File directory;
+	private final long packSize;
+	/*key->location of its data*/
+	private final Map<String, Location> index = new ConcurrentHashMap<String, Location>();
+	/*pack->channel, oldest first*/
+	private final ConcurrentSkipListMap<Long, FileChannel> packs = new ConcurrentSkipListMap<Long, FileChannel>();
+	/*pack->bytes of its records still in the index*/
+	private final Map<Long, Long> liveBytes = new ConcurrentHashMap<Long, Long>();
+	/*readers hold it shared, so a pack is only closed and deleted when no read can be using it*/
+	private final ReadWriteLock packsLock = new ReentrantReadWriteLock();
+	/*the background repacker and an explicit repack() would otherwise pick the same victims*/
+	private final Lock repackLock = new ReentrantLock();
+	private long currentPack;
+	private long currentSize;
+
+	PackedBucket(File directory, long packSize) throws IOException {
+		this.directory = directory;
+		this.packSize = packSize;
+
+		directory.mkdirs();
+		List<Long> numbers = new ArrayList<Long>();
+		for (File file : directory.listFiles((dir, name) -> name.startsWith(PACK))) {
+			numbers.add(Long.parseLong(file.getName().substring(PACK.length())));
+		}
+		Collections.sort(numbers);
+
+		for (long number : numbers) {
+			FileChannel channel = FileChannel.open(getPackFile(number).toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			packs.put(number, channel);
+			liveBytes.put(number, 0L);
+			long end = scan(number, channel);
+			if (end < channel.size()) {
+				//a record torn by a crash, only the newest pack can end with one
+				channel.truncate(end);
+			}
+		}
+
+		if (packs.isEmpty()) {
+			openPack(0L);
+		} else {
+			currentPack = packs.lastKey();
+			currentSize = packs.get(currentPack).size();
+		}
+	}
+
+	boolean contains(String key) {
+		return index.containsKey(key);
+	}
+
+	/**
+	 * @return the size of the object, -1 if it is not packed
+	 */
+	long size(String key) {
+		Location location = index.get(key);
+		return location == null ? -1L : location.length;
+	}
+
+	/**
+	 * @return the metadata of the object, null if it is not packed; the ETag is the position of its record,
+	 * which every put moves, and the modification time is the one of its pack
+	 */
+	BlobMetadata head(String key) {
+		Location location = index.get(key);
+		if (location == null) {
+			return null;
+		}
+		return new BlobMetadata(location.length, location.pack + "-" + location.offset, getPackFile(location.pack).lastModified());
+	}
+
+	Set<String> keys() {
+		return index.keySet();
+	}
+
+	/**
+	 * @return the object read into a new buffer, null if it is not packed
+	 */
+	ByteBuffer get(String key) throws IOException {
+		packsLock.readLock().lock();
+		try {
+			Location location = index.get(key);
+			if (location == null) {
+				return null;
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) location.length);
+			readFully(packs.get(location.pack), buffer, location.offset);
+			buffer.flip();
+			return buffer;
+		} finally {
+			packsLock.readLock().unlock();
+		}
+	}
+
+	void put(String key, ByteBuffer data) throws IOException {
+		ByteBuffer source = data.duplicate();
+		synchronized (this) {
+			long offset = appendHeader(key, source.remaining());
+			long position = offset;
+			FileChannel channel = packs.get(currentPack);
+			while (source.hasRemaining()) {
+				position += channel.write(source, position);
+			}
+			published(key, offset, position - offset);
+		}
+	}
+
+	void put(String key, FileChannel source, long length) throws IOException {
+		synchronized (this) {
+			long offset = appendHeader(key, length);
+			long position = 0L;
+			FileChannel channel = packs.get(currentPack);
+			while (position < length) {
+				long transferred = source.transferTo(position, length - position, channel.position(offset + position));
+				if (transferred == 0L) {
+					throw new EOFException("expected " + length + " bytes, got " + position);
+				}
+				position += transferred;
+			}
+			published(key, offset, length);
+		}
+	}
+
+	/**
+	 * @return false if the object was not packed
+	 */
+	synchronized boolean delete(String key) throws IOException {
+		if (!index.containsKey(key)) {
+			return false;
+		}
+		appendHeader(key, DELETED);
+		forget(index.remove(key));
+		return true;
+	}
+
+	/**
+	 * closes the packs; the bucket cannot be used afterwards.
+	 */
+	synchronized void close() throws IOException {
+		packsLock.writeLock().lock();
+		try {
+			for (FileChannel channel : packs.values()) {
+				channel.close();
+			}
+		} finally {
+			packsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Rewrites the live records of every sealed pack that is less than minLiveRatio alive into the newest pack,
+	 * then deletes it; deletions are carried over unless the pack is the oldest one.
+	 */
+	void repack(double minLiveRatio) throws IOException {
+		repackLock.lock();
+		try {
+			repackLocked(minLiveRatio);
+		} finally {
+			repackLock.unlock();
+		}
+	}
+
+	private void repackLocked(double minLiveRatio) throws IOException {
+		List<Long> victims = new ArrayList<Long>();
+		synchronized (this) {
+			for (Map.Entry<Long, FileChannel> pack : packs.entrySet()) {
+				long size = pack.getValue().size();
+				if ((pack.getKey() != currentPack) && (liveBytes.get(pack.getKey()) < size * minLiveRatio)) {
+					victims.add(pack.getKey());
+				}
+			}
+		}
+
+		for (long victim : victims) {
+			FileChannel channel;
+			boolean oldest;
+			//appendHeader() adds packs under the monitor
+			synchronized (this) {
+				channel = packs.get(victim);
+				oldest = victim == packs.firstKey();
+			}
+			long size = channel.size();
+			long position = 0L;
+			while (position < size) {
+				Record record = readHeader(channel, position);
+				long dataOffset = position + record.headerLength;
+				Location location = index.get(record.key);
+
+				if ((record.length == DELETED) && (location == null) && !oldest) {
+					synchronized (this) {
+						if (!index.containsKey(record.key)) {
+							appendHeader(record.key, DELETED);
+						}
+					}
+				} else if ((record.length != DELETED) && (location != null) && (location.pack == victim) && (location.offset == dataOffset)) {
+					ByteBuffer data = ByteBuffer.allocate((int) record.length);
+					readFully(channel, data, dataOffset);
+					data.flip();
+					synchronized (this) {
+						//only if it was not overwritten or deleted while being copied
+						if (index.get(record.key) == location) {
+							long offset = appendHeader(record.key, record.length);
+							long at = offset;
+							while (data.hasRemaining()) {
+								at += packs.get(currentPack).write(data, at);
+							}
+							published(record.key, offset, record.length);
+						}
+					}
+				}
+				position = dataOffset + Math.max(record.length, 0L);
+			}
+
+			packsLock.writeLock().lock();
+			try {
+				synchronized (this) {
+					packs.remove(victim).close();
+					liveBytes.remove(victim);
+				}
+				Files.deleteIfExists(getPackFile(victim).toPath());
+			} finally {
+				packsLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/*
+	 * Writes a record header at the end of the newest pack, sealing it first if it is full.
+	 * @return the offset of the record's data
+	 */
+	private long appendHeader(String key, long length) throws IOException {
+		if (currentSize >= packSize) {
+			openPack(currentPack + 1);
+		}
+
+		byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + keyBytes.length);
+		header.putInt(keyBytes.length).putLong(length).put(keyBytes).flip();
+
+		FileChannel channel = packs.get(currentPack);
+		long position = currentSize;
+		while (header.hasRemaining()) {
+			position += channel.write(header, position);
+		}
+		currentSize = position + Math.max(length, 0L);
+		return position;
+	}
+
+	//the record is complete, readers may find it now
+	private void published(String key, long offset, long length) {
+		Location location = new Location(currentPack, offset, length);
+		liveBytes.merge(currentPack, length, Long::sum);
+		forget(index.put(key, location));
+	}
+
+	private void forget(Location old) {
+		if (old != null) {
+			liveBytes.computeIfPresent(old.pack, (pack, bytes) -> bytes - old.length);
+		}
+	}
+
+	private void openPack(long number) throws IOException {
+		FileChannel channel = FileChannel.open(getPackFile(number).toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		packs.put(number, channel);
+		liveBytes.put(number, 0L);
+		currentPack = number;
+		currentSize = channel.size();
+	}
+
+	/**
+	 * @return the end of the last complete record
+	 */
+	private long scan(long number, FileChannel channel) throws IOException {
+		long size = channel.size();
+		long position = 0L;
+		while (position + HEADER_SIZE <= size) {
+			Record record;
+			try {
+				record = readHeader(channel, position);
+			} catch (EOFException e) {
+				break;
+			}
+			long dataOffset = position + record.headerLength;
+			if ((record.length < DELETED) || (dataOffset + Math.max(record.length, 0L) > size)) {
+				break;
+			}
+
+			if (record.length == DELETED) {
+				forget(index.remove(record.key));
+			} else {
+				Location location = new Location(number, dataOffset, record.length);
+				liveBytes.merge(number, record.length, Long::sum);
+				forget(index.put(record.key, location));
+			}
+			position = dataOffset + Math.max(record.length, 0L);
+		}
+		return position;
+	}
+
+	private static Record readHeader(FileChannel channel, long position) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, position);
+		header.flip();
+		int keyLength = header.getInt();
+		long length = header.getLong();
+		if ((keyLength < 0) || (position + HEADER_SIZE + keyLength > channel.size())) {
+			throw new EOFException("torn record at " + position);
+		}
+
+		ByteBuffer key = ByteBuffer.allocate(keyLength);
+		readFully(channel, key, position + HEADER_SIZE);
+		return new Record(new String(key.array(), StandardCharsets.UTF_8), length, HEADER_SIZE + keyLength);
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position);
+			if (read < 0) {
+				throw new EOFException("unexpected end of pack at " + position);
+			}
+			position += read;
+		}
+	}
+
+	private File getPackFile(long number) {
+		return new File(directory, PACK + number);
+	}
+
+	private static class Location {
+		final long pack;
+		final long offset;
+		final long length;
+
+		Location(long pack, long offset, long length) {
+			this.pack = pack;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private static class Record {
+		final String key;
+		final long length;
+		final int headerLength;
+
+		Record(String key, long length, int headerLength) {
+			this.key = key;
+			this.length = length;
+			this.headerLength = headerLength;
+		}
+	}
+}
@@ -0,0 +1,215 @@
+package com.example;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.amazonaws.services.sqs.model.Message;
+import com.google.common.base.Strings;
+
+/**
+ * A queue made of several FileImpl queues, its partitions, each with its own files and lock.
+ * Partitions are spread over the given directories, which may be on different disks.
+ * push() without a key spreads messages round robin; push() with a key sends all messages of a key
+ * to one partition, which keeps their order. A consumer pulls from its own partition first
+ * and steals from the others when it is empty.
+ * The number of partitions is kept with the queue, which can only be opened again with the same number.
+ */
+public class PartitionedFileQueueService implements QueueServiceAbstract {
+
+	/*partition i of queue q is the FileImpl queue "q@i"*/
+	private static final String PARTITION = "@";
+	/*a handle is "<partition>:<receipt handle of the partition>"*/
+	private static final String HANDLE_SEPARATOR = ":";
+	/*in the directory of partition 0*/
+	private static final String PARTITION_COUNT = "partition_count";
+
+	private final List<FileImpl> partitions = new ArrayList<FileImpl>();
+	private final AtomicInteger nextPartition = new AtomicInteger();
+
+	/**
+	 * @param paths - directories the partitions are spread over, round robin
+	 */
+	public PartitionedFileQueueService(long visibilityTimeoutMillis, List<String> paths, int partitionCount) {
+		if ((paths == null) || paths.isEmpty() || (partitionCount <= 0)) {
+			throw new IllegalArgumentException();
+		}
+
+		//partitions sharing a directory share a FileImpl, their queues still have a lock each
+		List<FileImpl> services = new ArrayList<FileImpl>();
+		for (String path : paths) {
+			services.add(new FileImpl(visibilityTimeoutMillis, path));
+		}
+		for (int i = 0; i < partitionCount; ++i) {
+			partitions.add(services.get(i % services.size()));
+		}
+	}
+
+	/**
+	 * Creates the partitions of the queue, or opens them if the queue exists.
+	 * Fewer partitions would strand the messages of the others and more would send keys elsewhere,
+	 * so an existing queue with another number of partitions is refused.
+	 */
+	public void createQueue(String queue) throws IOException {
+		if (Strings.isNullOrEmpty(queue) || queue.contains(PARTITION))
+			throw new IllegalArgumentException();
+
+		File countFile = new File(partitions.get(0).getPath() + File.separator + getPartitionQueue(queue, 0) + File.separator + PARTITION_COUNT);
+		if (countFile.exists()) {
+			int count = Integer.parseInt(new String(Files.readAllBytes(countFile.toPath()), StandardCharsets.US_ASCII).trim());
+			if (count != partitions.size())
+				throw new IllegalArgumentException("Queue '" + queue + "' has " + count + " partitions, not " + partitions.size());
+		} else {
+			//a queue from before the count was kept may have more partitions than this service
+			for (FileImpl service : new LinkedHashSet<FileImpl>(partitions)) {
+				if (new File(service.getPath() + File.separator + getPartitionQueue(queue, partitions.size())).exists())
+					throw new IllegalArgumentException("Queue '" + queue + "' has more than " + partitions.size() + " partitions");
+			}
+		}
+
+		for (int i = 0; i < partitions.size(); ++i) {
+			partitions.get(i).createQueue(getPartitionQueue(queue, i));
+		}
+		if ( !countFile.exists()) {
+			Files.write(countFile.toPath(), String.valueOf(partitions.size()).getBytes(StandardCharsets.US_ASCII));
+		}
+	}
+
+	/**
+	 * Partition i of the queue moves its messages to partition i of the dead letter queue,
+	 * which has to be created by this service too.
+	 */
+	public void setRedrivePolicy(String queue, String deadLetterQueue, int maxReceiveCount) {
+		if (Strings.isNullOrEmpty(queue) || Strings.isNullOrEmpty(deadLetterQueue))
+			throw new IllegalArgumentException();
+
+		for (int i = 0; i < partitions.size(); ++i) {
+			partitions.get(i).setRedrivePolicy(getPartitionQueue(queue, i), getPartitionQueue(deadLetterQueue, i), maxReceiveCount);
+		}
+	}
+
+	@Override
+	public void push(String queue, String messageBody) {
+		push(queue, messageBody, 0L);
+	}
+
+	@Override
+	public void push(String queue, String messageBody, long delayMillis) {
+		int partition = Math.floorMod(nextPartition.getAndIncrement(), partitions.size());
+		partitions.get(partition).push(getPartitionQueue(queue, partition), messageBody, delayMillis);
+	}
+
+	@Override
+	public void push(String queue, ByteBuffer messageBody) {
+		int partition = Math.floorMod(nextPartition.getAndIncrement(), partitions.size());
+		partitions.get(partition).push(getPartitionQueue(queue, partition), messageBody);
+	}
+
+	/**
+	 * pushes a message onto the partition of <code>key</code>; messages with the same key are pulled in the order they were pushed.
+	 */
+	public void push(String queue, String messageBody, String key) {
+		if (key == null)
+			throw new IllegalArgumentException();
+
+		int partition = Math.floorMod(key.hashCode(), partitions.size());
+		partitions.get(partition).push(getPartitionQueue(queue, partition), messageBody);
+	}
+
+	/*
+	 * Threads are spread over the partitions by their id, so consumers mostly stay out of each other's locks.
+	 */
+	@Override
+	public Message pull(String queue) {
+		if (Strings.isNullOrEmpty(queue))
+			throw new IllegalArgumentException();
+
+		int home = (int) Math.floorMod(Thread.currentThread().getId(), (long) partitions.size());
+		for (int i = 0; i < partitions.size(); ++i) {
+			int partition = (home + i) % partitions.size();
+			Message message = partitions.get(partition).pull(getPartitionQueue(queue, partition));
+			if (message != null) {
+				//the partition's visibility task holds on to the message it returned
+				Message partitioned = message.clone();
+				partitioned.setReceiptHandle(partition + HANDLE_SEPARATOR + message.getReceiptHandle());
+				return partitioned;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void delete(String queue, String receiptHandle) {
+		int partition = getPartition(receiptHandle);
+		partitions.get(partition).delete(getPartitionQueue(queue, partition), getPartitionHandle(receiptHandle));
+	}
+
+	@Override
+	public void changeVisibility(String queue, String receiptHandle, long visibilityTimeoutMillis) {
+		int partition = getPartition(receiptHandle);
+		partitions.get(partition).changeVisibility(getPartitionQueue(queue, partition), getPartitionHandle(receiptHandle), visibilityTimeoutMillis);
+	}
+
+	/**
+	 * @return the sums of the partitions; the age is the one of the oldest message of all of them
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queue) {
+		long visible = 0L;
+		long notVisible = 0L;
+		long delayed = 0L;
+		long age = -1L;
+		for (int i = 0; i < partitions.size(); ++i) {
+			QueueAttributes attributes = partitions.get(i).getQueueAttributes(getPartitionQueue(queue, i));
+			visible += attributes.getApproximateNumberOfMessages();
+			notVisible += attributes.getApproximateNumberOfMessagesNotVisible();
+			delayed += attributes.getApproximateNumberOfMessagesDelayed();
+			age = Math.max(age, attributes.getApproximateAgeOfOldestMessage());
+		}
+		return new QueueAttributes(visible, notVisible, delayed, age);
+	}
+
+	public int getPartitionCount() {
+		return partitions.size();
+	}
+
+	/**
+	 * @see FileImpl#setSyncPulls(boolean)
+	 */
+	public void setSyncPulls(boolean syncPulls) {
+		for (FileImpl service : new LinkedHashSet<FileImpl>(partitions)) {
+			service.setSyncPulls(syncPulls);
+		}
+	}
+
+	private static String getPartitionQueue(String queue, int partition) {
+		if (Strings.isNullOrEmpty(queue))
+			throw new IllegalArgumentException();
+		return queue + PARTITION + partition;
+	}
+
+	private int getPartition(String receiptHandle) {
+		int separator = Strings.nullToEmpty(receiptHandle).indexOf(HANDLE_SEPARATOR);
+		if (separator <= 0)
+			throw new IllegalArgumentException();
+
+		try {
+			int partition = Integer.parseInt(receiptHandle.substring(0, separator));
+			if ((partition < 0) || (partition >= partitions.size()))
+				throw new IllegalArgumentException("no partition " + partition + " in " + receiptHandle);
+			return partition;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(receiptHandle, e);
+		}
+	}
+
+	private static String getPartitionHandle(String receiptHandle) {
+		return receiptHandle.substring(receiptHandle.indexOf(HANDLE_SEPARATOR) + 1);
+	}
+}
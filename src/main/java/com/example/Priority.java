@@ -0,0 +1,55 @@
+package com.example;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Priority levels of the messages of a queue; each level is a sub-queue of its own.
+ */
+public enum Priority {
+	HIGH(4), NORMAL(2), LOW(1);
+
+	/**
+	 * How pull() picks the level to take the next message from.
+	 * STRICT always takes the highest level with a message, so lower ones wait for it to drain;
+	 * WEIGHTED shares pulls between the levels with messages in proportion to their weights, 4:2:1.
+	 */
+	public enum Policy {
+		STRICT, WEIGHTED
+	}
+
+	private final int weight;
+
+	private Priority(int weight) {
+		this.weight = weight;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	/**
+	 * Smooth weighted round robin: every level with messages is credited its weight, and the one with the most credit
+	 * pays the weights of all of them, so the levels are interleaved rather than served in bursts.
+	 * @param credits - kept by the caller from one pick to the next
+	 * @return the level to pull from, null if <code>waiting</code> is empty
+	 */
+	static Priority pickWeighted(Set<Priority> waiting, Map<Priority, Integer> credits) {
+		Priority next = null;
+		int totalWeight = 0;
+		for (Priority priority : values()) {
+			if (!waiting.contains(priority)) {
+				credits.remove(priority);
+				continue;
+			}
+			int credit = credits.getOrDefault(priority, 0) + priority.weight;
+			credits.put(priority, credit);
+			totalWeight += priority.weight;
+			if (next == null || credit > credits.get(next))
+				next = priority;
+		}
+		if (next != null)
+			credits.put(next, credits.get(next) - totalWeight);
+		return next;
+	}
+}
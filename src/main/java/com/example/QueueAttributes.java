@@ -0,0 +1,59 @@
+package com.example;
+
+/**
+ * Approximate figures of a queue, named after the SQS attributes they correspond to.
+ */
+public class QueueAttributes {
+
+	private final long approximateNumberOfMessages;
+	private final long approximateNumberOfMessagesNotVisible;
+	private final long approximateNumberOfMessagesDelayed;
+	private final long approximateAgeOfOldestMessage;
+
+	/**
+	 * @param approximateAgeOfOldestMessage - in millis, -1 if the queue can't tell
+	 */
+	public QueueAttributes(long approximateNumberOfMessages, long approximateNumberOfMessagesNotVisible,
+			long approximateNumberOfMessagesDelayed, long approximateAgeOfOldestMessage) {
+		this.approximateNumberOfMessages = approximateNumberOfMessages;
+		this.approximateNumberOfMessagesNotVisible = approximateNumberOfMessagesNotVisible;
+		this.approximateNumberOfMessagesDelayed = approximateNumberOfMessagesDelayed;
+		this.approximateAgeOfOldestMessage = approximateAgeOfOldestMessage;
+	}
+
+	/**
+	 * @return the number of messages available for pull()
+	 */
+	public long getApproximateNumberOfMessages() {
+		return approximateNumberOfMessages;
+	}
+
+	/**
+	 * @return the number of messages pulled but neither deleted nor visible again
+	 */
+	public long getApproximateNumberOfMessagesNotVisible() {
+		return approximateNumberOfMessagesNotVisible;
+	}
+
+	/**
+	 * @return the number of messages pushed with a delay which hasn't passed yet
+	 */
+	public long getApproximateNumberOfMessagesDelayed() {
+		return approximateNumberOfMessagesDelayed;
+	}
+
+	/**
+	 * @return the age in millis of the oldest message available for pull(), -1 if unknown
+	 */
+	public long getApproximateAgeOfOldestMessage() {
+		return approximateAgeOfOldestMessage;
+	}
+
+	@Override
+	public String toString() {
+		return "QueueAttributes [visible=" + approximateNumberOfMessages
+				+ ", notVisible=" + approximateNumberOfMessagesNotVisible
+				+ ", delayed=" + approximateNumberOfMessagesDelayed
+				+ ", ageOfOldestMessage=" + approximateAgeOfOldestMessage + "]";
+	}
+}
@@ -0,0 +1,456 @@
+package com.example;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.Message;
+import com.google.common.base.Strings;
+
+/**
+ * Open-model load generator and soak harness for any <code>QueueServiceAbstract</code>.
+ * <p>
+ * Producers send at a fixed arrival rate, independent of how fast the queue answers.
+ * Every message carries the time it was <i>intended</i> to be sent, and latencies are
+ * measured from that time, so a stalled push is charged to every message queued behind it
+ * (no coordinated omission). Consumers acknowledge a configurable share of the messages,
+ * the rest are left to come back after the visibility timeout.
+ * <p>
+ * Usage: <code>java com.example.QueueLoadGenerator impl=memory|file|sqs key=value ...</code>,
+ * see {@link #main(String[])} for the keys.
+ */
+public class QueueLoadGenerator {
+
+	private static final String SEPARATOR = ":";
+	private static final long MIN_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long MAX_BACKOFF_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final QueueServiceAbstract service;
+	private final String queue;
+
+	private int producers = 1;
+	private int consumers = 1;
+	private double messagesPerSecond = 100.0;
+	private long durationMillis = 60000L;
+	private long drainMillis = 60000L;
+	private double ackRatio = 1.0;
+	private long processingMillis = 0L;
+	private int bodySize = 64;
+	private long reportIntervalMillis = 10000L;
+	private PrintStream out = System.out;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong sendErrors = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong acked = new AtomicLong();
+	private final AtomicLong redelivered = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong receiveErrors = new AtomicLong();
+
+	/*seq->pushed without an error*/
+	private final BitSet pushed = new BitSet();
+	/*seq->received at least once*/
+	private final BitSet delivered = new BitSet();
+	/*seq->deleted from the queue*/
+	private final BitSet deleted = new BitSet();
+
+	private final LatencyHistogram endToEnd = new LatencyHistogram();
+	private final LatencyHistogram endToEndInterval = new LatencyHistogram();
+	private final LatencyHistogram send = new LatencyHistogram();
+
+	private volatile boolean consuming;
+
+	public QueueLoadGenerator(QueueServiceAbstract service, String queue) {
+		if (service == null || Strings.isNullOrEmpty(queue))
+			throw new IllegalArgumentException();
+
+		this.service = service;
+		this.queue = queue;
+	}
+
+	/**
+	 * Runs the producers for the configured duration, then lets the consumers drain
+	 * until every sent message is deleted or the drain period is over.
+	 */
+	public void run() throws InterruptedException {
+		final long startNanos = System.nanoTime();
+		final long endNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+		final long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) * producers / messagesPerSecond);
+
+		consuming = true;
+		List<Thread> consumerThreads = new ArrayList<Thread>();
+		for (int i = 0; i < consumers; ++i) {
+			consumerThreads.add(start("consumer-" + i, new Runnable() {
+				@Override
+				public void run() {
+					consume();
+				}
+			}));
+		}
+
+		List<Thread> producerThreads = new ArrayList<Thread>();
+		for (int i = 0; i < producers; ++i) {
+			final int producer = i;
+			producerThreads.add(start("producer-" + i, new Runnable() {
+				@Override
+				public void run() {
+					produce(producer, startNanos + producer * intervalNanos / producers, endNanos, intervalNanos);
+				}
+			}));
+		}
+
+		Reporter reporter = new Reporter(startNanos);
+		Thread reporterThread = start("reporter", reporter);
+
+		for (Thread producerThread : producerThreads) {
+			producerThread.join();
+		}
+		long loadNanos = System.nanoTime() - startNanos;
+		long ackedDuringLoad = acked.get();
+
+		long drainUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(drainMillis);
+		while (acked.get() < sent.get() && System.nanoTime() < drainUntil) {
+			Thread.sleep(100);
+		}
+		consuming = false;
+		for (Thread consumerThread : consumerThreads) {
+			consumerThread.join();
+		}
+		reporterThread.interrupt();
+		reporterThread.join();
+
+		printSummary(System.nanoTime() - startNanos, ackedDuringLoad / (loadNanos / 1e9));
+	}
+
+	private void produce(int producer, long firstNanos, long endNanos, long intervalNanos) {
+		String padding = Strings.repeat("x", Math.max(0, bodySize - 32));
+		long seq = producer;
+		for (long intended = firstNanos; intended < endNanos; intended += intervalNanos, seq += producers) {
+			long wait = intended - System.nanoTime();
+			if (wait > 0) {
+				LockSupport.parkNanos(wait);
+			}
+			try {
+				service.push(queue, seq + SEPARATOR + intended + SEPARATOR + padding);
+				sent.incrementAndGet();
+				synchronized (this) {
+					pushed.set((int) seq);
+				}
+			} catch (RuntimeException e) {
+				sendErrors.incrementAndGet();
+			}
+			send.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - intended));
+		}
+	}
+
+	private void consume() {
+		long backoffNanos = MIN_BACKOFF_NANOS;
+		while (consuming) {
+			Message message;
+			try {
+				message = service.pull(queue);
+				backoffNanos = MIN_BACKOFF_NANOS;
+			} catch (RuntimeException e) {
+				//a failing queue is retried less and less often rather than in a busy loop
+				receiveErrors.incrementAndGet();
+				LockSupport.parkNanos(backoffNanos);
+				backoffNanos = Math.min(backoffNanos * 2L, MAX_BACKOFF_NANOS);
+				continue;
+			}
+			if (message == null) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+				continue;
+			}
+			long now = System.nanoTime();
+			received.incrementAndGet();
+
+			int seq;
+			long intended;
+			try {
+				String[] fields = message.getBody().split(SEPARATOR, 3);
+				seq = (int) Long.parseLong(fields[0]);
+				intended = Long.parseLong(fields[1]);
+			} catch (RuntimeException e) {
+				//a body that isn't ours (or got lost by the queue) is counted, not fatal
+				receiveErrors.incrementAndGet();
+				continue;
+			}
+
+			boolean first;
+			synchronized (this) {
+				if (deleted.get(seq)) {
+					duplicates.incrementAndGet();
+				} else if (delivered.get(seq)) {
+					redelivered.incrementAndGet();
+				}
+				first = !delivered.get(seq);
+				delivered.set(seq);
+			}
+			if (first) {
+				long micros = TimeUnit.NANOSECONDS.toMicros(now - intended);
+				endToEnd.record(micros);
+				endToEndInterval.record(micros);
+			}
+
+			if (processingMillis > 0L) {
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(processingMillis));
+			}
+			//leave the rest to the visibility timeout
+			if (ThreadLocalRandom.current().nextDouble() < ackRatio) {
+				try {
+					service.delete(queue, message.getReceiptHandle());
+				} catch (RuntimeException e) {
+					receiveErrors.incrementAndGet();
+					continue;
+				}
+				synchronized (this) {
+					if (!deleted.get(seq)) {
+						deleted.set(seq);
+						acked.incrementAndGet();
+					}
+				}
+			}
+		}
+	}
+
+	private void printSummary(long elapsedNanos, double throughput) {
+		double seconds = elapsedNanos / 1e9;
+		out.println("=== summary: " + queue);
+		out.printf("elapsed %.1fs, sent %d (errors %d), received %d, deleted %d, not deleted %d, lost %d%n",
+				seconds, sent.get(), sendErrors.get(), received.get(), acked.get(), getUndeleted(), getLost());
+		out.printf("redelivered %d, duplicates after delete %d, receive errors %d%n",
+				redelivered.get(), duplicates.get(), receiveErrors.get());
+		out.printf("throughput %.1f msg/s while producing%n", throughput);
+		out.println("end-to-end " + percentiles(endToEnd));
+		out.println("send       " + percentiles(send));
+	}
+
+	private static String percentiles(LatencyHistogram histogram) {
+		return String.format("us: p50=%d p90=%d p99=%d p99.9=%d max=%d (n=%d)",
+				histogram.getValueAtPercentile(50.0),
+				histogram.getValueAtPercentile(90.0),
+				histogram.getValueAtPercentile(99.0),
+				histogram.getValueAtPercentile(99.9),
+				histogram.getMaxValue(),
+				histogram.getTotalCount());
+	}
+
+	private static Thread start(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, "load-" + name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * Prints interval throughput, latency and heap/GC figures until interrupted.
+	 */
+	class Reporter implements Runnable {
+		private final long startNanos;
+		private long lastReceived;
+		private long lastGcCount;
+		private long lastGcMillis;
+
+		Reporter(long startNanos) {
+			this.startNanos = startNanos;
+		}
+
+		@Override
+		public void run() {
+			while (!Thread.currentThread().isInterrupted()) {
+				try {
+					Thread.sleep(reportIntervalMillis);
+				} catch (InterruptedException e) {
+					return;
+				}
+				report();
+			}
+		}
+
+		private void report() {
+			long gcCount = 0L;
+			long gcMillis = 0L;
+			for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+				gcCount += Math.max(0L, gc.getCollectionCount());
+				gcMillis += Math.max(0L, gc.getCollectionTime());
+			}
+			MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+			long receivedNow = received.get();
+
+			out.printf("[%6.1fs] sent %d, received %d (%.1f/s), deleted %d, e2e %s, heap %dMB/%dMB, gc %d (%dms)%n",
+					(System.nanoTime() - startNanos) / 1e9,
+					sent.get(),
+					receivedNow,
+					(receivedNow - lastReceived) * 1000.0 / reportIntervalMillis,
+					acked.get(),
+					percentiles(endToEndInterval.snapshotAndReset()),
+					heap.getUsed() >> 20,
+					heap.getCommitted() >> 20,
+					gcCount - lastGcCount,
+					gcMillis - lastGcMillis);
+
+			lastReceived = receivedNow;
+			lastGcCount = gcCount;
+			lastGcMillis = gcMillis;
+		}
+	}
+
+	/**
+	 * Keys (with defaults):
+	 * impl=memory|file|sqs, queue=load, producers=1, consumers=1, rate=100 (messages per second),
+	 * duration=60 (seconds), drain=60 (seconds), ackRatio=1.0, processing=0 (millis), bodySize=64,
+	 * visibilityTimeout=30000 (millis), report=10 (seconds), path=queues (file),
+	 * endpoint=http://localhost:9324 (sqs, e.g. a local ElasticMQ).
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String arg : args) {
+			String[] pair = arg.split("=", 2);
+			if (pair.length != 2)
+				throw new IllegalArgumentException("Expected key=value, got '" + arg + "'");
+			options.put(pair[0], pair[1]);
+		}
+
+		String impl = option(options, "impl", "memory");
+		String queue = option(options, "queue", "load");
+		long visibilityTimeoutMillis = Long.parseLong(option(options, "visibilityTimeout", "30000"));
+
+		QueueServiceAbstract service;
+		if ("memory".equals(impl)) {
+			InMemoryImpl inMemory = InMemoryImpl.INSTANCE;
+			inMemory.createQueue(queue, visibilityTimeoutMillis);
+			service = inMemory;
+		} else if ("file".equals(impl)) {
+			FileImpl file = new FileImpl(visibilityTimeoutMillis, option(options, "path", "queues"));
+			file.createQueue(queue);
+			service = file;
+		} else if ("sqs".equals(impl)) {
+			AmazonSQSClient client = new AmazonSQSClient(new BasicAWSCredentials("x", "x"));
+			client.setEndpoint(option(options, "endpoint", "http://localhost:9324"));
+			SqsImpl sqs = new SqsImpl(client);
+			queue = sqs.createQueue(queue);
+			service = sqs;
+		} else {
+			throw new IllegalArgumentException("Unknown impl '" + impl + "'");
+		}
+
+		QueueLoadGenerator generator = new QueueLoadGenerator(service, queue);
+		generator.setProducers(Integer.parseInt(option(options, "producers", "1")));
+		generator.setConsumers(Integer.parseInt(option(options, "consumers", "1")));
+		generator.setMessagesPerSecond(Double.parseDouble(option(options, "rate", "100")));
+		generator.setDurationMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "duration", "60"))));
+		generator.setDrainMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "drain", "60"))));
+		generator.setAckRatio(Double.parseDouble(option(options, "ackRatio", "1.0")));
+		generator.setProcessingMillis(Long.parseLong(option(options, "processing", "0")));
+		generator.setBodySize(Integer.parseInt(option(options, "bodySize", "64")));
+		generator.setReportIntervalMillis(TimeUnit.SECONDS.toMillis(Long.parseLong(option(options, "report", "10"))));
+		generator.run();
+
+		System.exit(generator.getLost() == 0L ? 0 : 1);
+	}
+
+	private static String option(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return Strings.isNullOrEmpty(value) ? defaultValue : value;
+	}
+
+	public long getSent() {
+		return sent.get();
+	}
+
+	public long getDeleted() {
+		return acked.get();
+	}
+
+	/**
+	 * @return messages pushed but never received
+	 */
+	public synchronized long getLost() {
+		BitSet lost = (BitSet) pushed.clone();
+		lost.andNot(delivered);
+		return lost.cardinality();
+	}
+
+	/**
+	 * @return messages received but never deleted, e.g. with <code>ackRatio</code> below 1 and a short drain
+	 */
+	public synchronized long getUndeleted() {
+		BitSet undeleted = (BitSet) delivered.clone();
+		undeleted.andNot(deleted);
+		return undeleted.cardinality();
+	}
+
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	public long getRedelivered() {
+		return redelivered.get();
+	}
+
+	public void setProducers(int producers) {
+		if (producers <= 0)
+			throw new IllegalArgumentException();
+		this.producers = producers;
+	}
+
+	public void setConsumers(int consumers) {
+		if (consumers <= 0)
+			throw new IllegalArgumentException();
+		this.consumers = consumers;
+	}
+
+	public void setMessagesPerSecond(double messagesPerSecond) {
+		if (messagesPerSecond <= 0.0)
+			throw new IllegalArgumentException();
+		this.messagesPerSecond = messagesPerSecond;
+	}
+
+	public void setDurationMillis(long durationMillis) {
+		this.durationMillis = durationMillis;
+	}
+
+	/**
+	 * Should be longer than the visibility timeout when <code>ackRatio</code> is below 1.
+	 */
+	public void setDrainMillis(long drainMillis) {
+		this.drainMillis = drainMillis;
+	}
+
+	public void setAckRatio(double ackRatio) {
+		if (ackRatio <= 0.0 || ackRatio > 1.0)
+			throw new IllegalArgumentException();
+		this.ackRatio = ackRatio;
+	}
+
+	public void setProcessingMillis(long processingMillis) {
+		this.processingMillis = processingMillis;
+	}
+
+	public void setBodySize(int bodySize) {
+		this.bodySize = bodySize;
+	}
+
+	public void setReportIntervalMillis(long reportIntervalMillis) {
+		if (reportIntervalMillis <= 0L)
+			throw new IllegalArgumentException();
+		this.reportIntervalMillis = reportIntervalMillis;
+	}
+
+	public void setOut(PrintStream out) {
+		this.out = out;
+	}
+}
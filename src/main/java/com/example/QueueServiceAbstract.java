@@ -1,5 +1,7 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+
 import com.amazonaws.services.sqs.model.Message;
 
 public interface QueueServiceAbstract {
@@ -7,6 +9,18 @@ public interface QueueServiceAbstract {
 	 * pushes a message onto a queue.
 	 */
 	void push(String queue, String messageBody);
+
+	/**
+	 * pushes a message whose body is the remaining bytes of <code>messageBody</code>, which are copied;
+	 * pull() returns it as a BinaryMessage.
+	 */
+	void push(String queue, ByteBuffer messageBody);
+
+	/**
+	 * pushes a message which stays invisible for <code>delayMillis</code>;
+	 * to deliver at time T, pass <code>T - System.currentTimeMillis()</code>.
+	 */
+	void push(String queue, String messageBody, long delayMillis);
 	
 	/**
 	 * retrieves a single message from a queue.
@@ -17,4 +31,15 @@ public interface QueueServiceAbstract {
 	 * deletes a message from the queue that was received by pull().
 	 */
 	void delete(String queue, String receiptHandle);
+	
+	/**
+	 * makes a message received by pull() visible again <code>visibilityTimeoutMillis</code> from now,
+	 * extending (or shortening) its lease; 0 makes it visible immediately.
+	 */
+	void changeVisibility(String queue, String receiptHandle, long visibilityTimeoutMillis);
+	
+	/**
+	 * returns the approximate depth of a queue without walking its messages.
+	 */
+	QueueAttributes getQueueAttributes(String queue);
 }
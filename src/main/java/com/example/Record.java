@@ -1,20 +1,44 @@
 package com.example;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
-import java.util.regex.Pattern;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.primitives.Ints;
+import com.google.common.primitives.Longs;
 
 class Record implements Serializable {
 
 	private static final String SEPARATOR = "|";
+	private static final int FIELDS = 5;
+	/*a binary body is written as "\0<length>\0<bytes>", a text body can't start with \0*/
+	static final char BINARY = '\0';
 	private long visibileFrom;
 	private String receiptHandle;
+	private int receiveCount;
+	private long sentTimestamp;
 	private String messageBody;
+	private byte[] binaryBody;
 	
 	public Record(long visibileFrom , String receiptHandle, String messageBody) {
+		this(visibileFrom, receiptHandle, 0, visibileFrom, messageBody);
+	}
+	public Record(long visibileFrom , String receiptHandle, int receiveCount, long sentTimestamp, String messageBody) {
 		this.visibileFrom  = visibileFrom ;
 		this.receiptHandle = receiptHandle;
+		this.receiveCount = receiveCount;
+		this.sentTimestamp = sentTimestamp;
 		this.messageBody = messageBody;
 	}
+	public Record(long visibileFrom, String receiptHandle, int receiveCount, long sentTimestamp, byte[] binaryBody) {
+		this(visibileFrom, receiptHandle, receiveCount, sentTimestamp, (String) null);
+		this.binaryBody = binaryBody;
+	}
 	public Record() {
 	}
 	
@@ -30,6 +54,18 @@ class Record implements Serializable {
 	public void setReceiptHandle(String receiptHandle) {
 		this.receiptHandle = receiptHandle;
 	}
+	public int getReceiveCount() {
+		return receiveCount;
+	}
+	public void setReceiveCount(int receiveCount) {
+		this.receiveCount = receiveCount;
+	}
+	public long getSentTimestamp() {
+		return sentTimestamp;
+	}
+	public void setSentTimestamp(long sentTimestamp) {
+		this.sentTimestamp = sentTimestamp;
+	}
 	public String getMessageBody() {
 		return messageBody;
 	}
@@ -37,17 +73,127 @@ class Record implements Serializable {
 		this.messageBody = messageBody;
 	}
 	
+	/**
+	 * @return the body of a message pushed as bytes, null for a text body
+	 */
+	public byte[] getBinaryBody() {
+		return binaryBody;
+	}
+	
 	@Override
 	public String toString() {
-		return this.visibileFrom + SEPARATOR + this.receiptHandle + SEPARATOR + this.messageBody;  
+		return this.visibileFrom + SEPARATOR + this.receiptHandle + SEPARATOR + this.receiveCount + SEPARATOR + this.sentTimestamp + SEPARATOR
+				+ ((binaryBody == null) ? this.messageBody : "<" + binaryBody.length + " bytes>");
 	}
 	
 	/**
-	 * @param <code>line</code> - it is the return value of <code>this.toString()</code>
+	 * A text body is written in the default charset, as FileWriter did, and a binary one as it is.
+	 * @return the record as it is written to a file, with its line separator
+	 */
+	public byte[] toBytes() {
+		String fields = this.visibileFrom + SEPARATOR + this.receiptHandle + SEPARATOR + this.receiveCount + SEPARATOR + this.sentTimestamp + SEPARATOR;
+		if (binaryBody == null) {
+			return (fields + this.messageBody + "\n").getBytes(Charset.defaultCharset());
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream(fields.length() + binaryBody.length + 16);
+		byte[] header = (fields + BINARY + binaryBody.length + BINARY).getBytes(StandardCharsets.US_ASCII);
+		record.write(header, 0, header.length);
+		record.write(binaryBody, 0, binaryBody.length);
+		record.write('\n');
+		return record.toByteArray();
+	}
+	
+	/**
+	 * Reads the bytes of the next record, which is one line unless its body is binary.
+	 * @return the bytes as written by <code>toBytes()</code>, null at the end of the stream
+	 */
+	public static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		int separators = 0;
+		int b = in.read();
+		while ((b >= 0) && (b != '\n')) {
+			record.write(b);
+			if ((b != SEPARATOR.charAt(0)) || (separators == FIELDS - 1) || (++separators < FIELDS - 1)) {
+				b = in.read();
+				continue;
+			}
+			
+			b = in.read();
+			if (b == BINARY) {
+				int length = 0;
+				record.write(b);
+				for (b = in.read(); b != BINARY; b = in.read()) {
+					if ((b < '0') || (b > '9'))
+						throw new IOException("Corrupt record: " + new String(record.toByteArray(), StandardCharsets.US_ASCII));
+					record.write(b);
+					length = length * 10 + (b - '0');
+				}
+				record.write(b);
+				byte[] body = new byte[length];
+				ByteStreams.readFully(in, body);
+				record.write(body, 0, length);
+				b = in.read();
+			}
+		}
+		if (b == '\n') {
+			record.write(b);
+		}
+		return (record.size() == 0) ? null : record.toByteArray();
+	}
+	
+	/**
+	 * Also reads the records of older versions, "visibleFrom|handle|body" and "visibleFrom|handle|receiveCount|body",
+	 * taking 0 for a missing receive count and visibleFrom for a missing sent timestamp.
+	 * A record has the current fields when the third is a receive count and the fourth a timestamp no later than visibleFrom,
+	 * so an old text body starting with such numbers and separators is read as fields.
+	 * @param <code>record</code> - it is the return value of <code>read()</code> or <code>toBytes()</code>
 	 * @return Record
 	 */
-	public static Record createRecord(String line) {
-		String[] strings = line.split(Pattern.quote(SEPARATOR));
-		return new Record(Long.parseLong(strings[0]), strings[1], strings[2]);
+	public static Record createRecord(byte[] record) {
+		int[] separators = new int[FIELDS - 1];
+		int count = 0;
+		for (int i = 0; (i < record.length) && (count < FIELDS - 1); ++i) {
+			if (record[i] == SEPARATOR.charAt(0)) {
+				separators[count++] = i;
+			}
+		}
+		if (count < 2) {
+			throw new IllegalArgumentException("Corrupt record: " + new String(record, StandardCharsets.US_ASCII));
+		}
+		
+		long visibleFrom = Long.parseLong(getField(record, 0, separators[0]));
+		String receiptHandle = getField(record, separators[0] + 1, separators[1]);
+		Integer receiveCount = (count > 2) ? Ints.tryParse(getField(record, separators[1] + 1, separators[2])) : null;
+		Long sentTimestamp = ((count > 3) && (receiveCount != null)) ? Longs.tryParse(getField(record, separators[2] + 1, separators[3])) : null;
+		int bodyStart;
+		if ((sentTimestamp != null) && (sentTimestamp <= visibleFrom)) {
+			bodyStart = separators[3] + 1;
+		} else if (receiveCount != null) {
+			bodyStart = separators[2] + 1;
+			sentTimestamp = visibleFrom;
+		} else {
+			bodyStart = separators[1] + 1;
+			receiveCount = 0;
+			sentTimestamp = visibleFrom;
+		}
+		
+		if ((bodyStart < record.length) && (record[bodyStart] == BINARY)) {
+			int lengthEnd = bodyStart + 1;
+			while (record[lengthEnd] != BINARY) {
+				++lengthEnd;
+			}
+			int length = Integer.parseInt(getField(record, bodyStart + 1, lengthEnd));
+			return new Record(visibleFrom, receiptHandle, receiveCount, sentTimestamp, Arrays.copyOfRange(record, lengthEnd + 1, lengthEnd + 1 + length));
+		}
+		
+		int end = record.length;
+		while ((end > bodyStart) && ((record[end - 1] == '\n') || (record[end - 1] == '\r'))) {
+			--end;
+		}
+		return new Record(visibleFrom, receiptHandle, receiveCount, sentTimestamp, new String(record, bodyStart, end - bodyStart, Charset.defaultCharset()));
+	}
+	
+	private static String getField(byte[] record, int start, int end) {
+		return new String(record, start, end - start, StandardCharsets.US_ASCII);
 	}
 }
@@ -1,25 +1,110 @@
 package com.example;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonServiceException.ErrorType;
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CreateBucketRequest;
 import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
-public class S3BlobStore implements BlobStore {
+/**
+ * Objects larger than the part size are uploaded as multipart uploads and downloaded
+ * as parallel byte-range GETs, with every part running on one bounded pool and retried on its own.
+ */
+public class S3BlobStore implements BlobStore, AsyncBlobStore {
+	
+	private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+	private static final long DEFAULT_PART_SIZE = 8L * 1024 * 1024;
+	private static final int DEFAULT_CONCURRENCY = 8;
+	private static final int MAX_ATTEMPTS = 3;
+	private static final long RETRY_BACKOFF_MILLIS = 100L;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_KEYS = 1000;
+	private static final int NOT_FOUND = 404;
+	private static final int RANGE_NOT_SATISFIABLE = 416;
+	private static final int DEFAULT_ASYNC_CONCURRENCY = 32;
+	private static final long DEFAULT_MAX_IN_FLIGHT_BYTES = 256L * 1024 * 1024;
 
 	private AmazonS3 s3Client;
+	private final long partSize;
+	private final int concurrency;
+	private final ExecutorService transfers;
+	/*whole-object async operations; parts run on transfers, so waiting for them cannot starve this pool*/
+	private final IoScheduler io = new IoScheduler("s3-io", DEFAULT_ASYNC_CONCURRENCY, DEFAULT_MAX_IN_FLIGHT_BYTES);
 
 	public S3BlobStore() {
-		s3Client = new AmazonS3Client(new ProfileCredentialsProvider());
+		this(new AmazonS3Client(new ProfileCredentialsProvider()));
+	}
+	
+	/**
+	 * For a local S3-compatible stand-in, point the client at it with <code>setEndpoint</code>
+	 * and enable path-style access through <code>S3ClientOptions</code>.
+	 */
+	public S3BlobStore(AmazonS3 s3Client) {
+		this(s3Client, DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY);
+	}
+	
+	/**
+	 * @param partSize - size of an upload part and of a download range, S3 requires at least 5 MB
+	 * @param concurrency - number of parts transferred at the same time, shared by all transfers of this store
+	 */
+	public S3BlobStore(AmazonS3 s3Client, long partSize, int concurrency) {
+		if (partSize < MIN_PART_SIZE) {
+			throw new IllegalArgumentException("partSize must be at least " + MIN_PART_SIZE + ": " + partSize);
+		}
+		if (concurrency < 1) {
+			throw new IllegalArgumentException("concurrency must be positive: " + concurrency);
+		}
+		
+		this.s3Client = s3Client;
+		this.partSize = partSize;
+		this.concurrency = concurrency;
+		
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(concurrency, concurrency, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactoryBuilder().setNameFormat("s3-transfer-%d").setDaemon(true).build());
+		executor.allowCoreThreadTimeOut(true);
+		this.transfers = executor;
 	}
 	
 	public void createBucket(String bucketName) {
@@ -30,28 +115,428 @@ public class S3BlobStore implements BlobStore {
 
 	@Override
 	public void put(String bucket, String key, File data) {
-		s3Client.putObject(new PutObjectRequest(bucket, key, data));	
+		long start = Tracing.start();
+		long length = data.length();
+		try {
+			if (length <= partSize) {
+				s3Client.putObject(new PutObjectRequest(bucket, key, data));
+				return;
+			}
+		
+			String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+			List<Future<PartETag>> parts = new ArrayList<>();
+			try {
+				int partNumber = 1;
+				for (long offset = 0L; offset < length; offset += partSize, ++partNumber) {
+					int number = partNumber;
+					long position = offset;
+					long size = Math.min(partSize, length - offset);
+					parts.add(transfers.submit(() -> retry(() -> s3Client.uploadPart(newUploadPartRequest(bucket, key, uploadId, number, size)
+							.withFile(data).withFileOffset(position)).getPartETag())));
+				}
+			
+				s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, await(parts)));
+			} catch (RuntimeException e) {
+				abort(bucket, key, uploadId, parts);
+				throw e;
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, length, 1L);
+		}
+	}
+	
+	@Override
+	public void put(String bucket, String key, InputStream data, long length) {
+		long start = Tracing.start();
+		try {
+			if (length < 0) {
+				throw new IllegalArgumentException("length must not be negative: " + length);
+			}
+		
+			if (length <= partSize) {
+				ObjectMetadata metadata = new ObjectMetadata();
+				metadata.setContentLength(length);
+				s3Client.putObject(new PutObjectRequest(bucket, key, data, metadata));
+				return;
+			}
+		
+			//a stream can only be read in order, so parts are buffered; at most concurrency buffers are alive at a time
+			Semaphore buffers = new Semaphore(concurrency);
+			String uploadId = s3Client.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+			List<Future<PartETag>> parts = new ArrayList<>();
+			try {
+				int partNumber = 1;
+				for (long offset = 0L; offset < length; offset += partSize, ++partNumber) {
+					buffers.acquireUninterruptibly();
+					byte[] part;
+					try {
+						part = new byte[(int) Math.min(partSize, length - offset)];
+						ByteStreams.readFully(data, part);
+					} catch (IOException | RuntimeException e) {
+						buffers.release();
+						throw e;
+					}
+				
+					int number = partNumber;
+					parts.add(transfers.submit(() -> {
+						try {
+							return retry(() -> s3Client.uploadPart(newUploadPartRequest(bucket, key, uploadId, number, part.length)
+									.withInputStream(new ByteArrayInputStream(part))).getPartETag());
+						} finally {
+							buffers.release();
+						}
+					}));
+				}
+			
+				s3Client.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, await(parts)));
+			} catch (IOException e) {
+				abort(bucket, key, uploadId, parts);
+				throw new RuntimeException("put(String bucket, String key, InputStream data, long length): " + e.getMessage(), e);
+			} catch (RuntimeException e) {
+				abort(bucket, key, uploadId, parts);
+				throw e;
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, length, 1L);
+		}
+	}
+	
+	@Override
+	public void put(String bucket, String key, ReadableByteChannel data, long length) {
+		put(bucket, key, Channels.newInputStream(data), length);
+	}
+	
+	@Override
+	public void put(String bucket, String key, ByteBuffer data) {
+		put(bucket, key, new ByteBufferInputStream(data.duplicate()), data.remaining());
 	}
 
-	//try to copy image into disk
+	//copy the object into a temporary file of its own, so concurrent gets do not clobber each other
 	@Override
 	public File get(String bucket, String key) {
-		S3Object s3object = s3Client.getObject(new GetObjectRequest(bucket, key));
-		File file = new File("/image.png");
+		File file = null;
+		boolean downloaded = false;
+		try {
+			file = File.createTempFile("s3-", null);
+			for (int attempt = 1; ; ++attempt) {
+				try {
+					download(bucket, key, file);
+					downloaded = true;
+					return file;
+				} catch (ConcurrentModificationException e) {
+					//overwritten between two ranges: start over from the new version
+					if (attempt == MAX_ATTEMPTS) {
+						throw e;
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException("get(String bucket, String key): " + e.getMessage(), e);
+		} finally {
+			if (!downloaded && (file != null)) {
+				file.delete();
+			}
+		}
+	}
+	
+	private void download(String bucket, String key, File file) throws IOException {
+		ObjectMetadata metadata = s3Client.getObjectMetadata(bucket, key);
+		long length = metadata.getContentLength();
+		if (length <= partSize) {
+			try (InputStream inputStream = getInputStream(bucket, key)) {
+				Files.copy(inputStream, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return;
+		}
 		
-		try (InputStream inputStream = s3object.getObjectContent();
-			OutputStream outputStream = new FileOutputStream(file)){
-			
-			byte[] buffer = new byte[4 * 1024];
-            int bytesRead;
-            while( (bytesRead = inputStream.read(buffer)) > 0 ){
-            	outputStream.write(buffer, 0, bytesRead);
-            }
-            
+		//every range writes at its own position, the etag keeps all ranges on the same version
+		try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			List<Future<Void>> ranges = new ArrayList<>();
+			for (long offset = 0L; offset < length; offset += partSize) {
+				GetObjectRequest request = new GetObjectRequest(bucket, key)
+						.withRange(offset, Math.min(offset + partSize, length) - 1)
+						.withMatchingETagConstraint(metadata.getETag());
+				ranges.add(transfers.submit(() -> retry(() -> getRange(request, out))));
+			}
+			await(ranges);
+		}
+	}
+	
+	@Override
+	public InputStream getInputStream(String bucket, String key) {
+		return s3Client.getObject(new GetObjectRequest(bucket, key)).getObjectContent();
+	}
+	
+	@Override
+	public ReadableByteChannel getChannel(String bucket, String key) {
+		return Channels.newChannel(getInputStream(bucket, key));
+	}
+	
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key) {
+		long start = Tracing.start();
+		ByteBuffer result = null;
+		try {
+			result = read(s3Client.getObject(new GetObjectRequest(bucket, key)));
+			return result;
 		} catch (IOException e) {
-			throw new RuntimeException("get(String bucket, String key): " + e.getMessage());
+			throw new RuntimeException("getByteBuffer(String bucket, String key): " + e.getMessage(), e);
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_READ, bucket, start, (result == null) ? 0L : result.remaining(), 1L);
+		}
+	}
+	
+	@Override
+	public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length) {
+		long start = Tracing.start();
+		ByteBuffer result = null;
+		try {
+			FileBlobStore.checkRange(offset, length);
+			if (length == 0) {
+				result = ByteBuffer.allocate(0);
+				return result;
+			}
+		
+			S3Object s3object;
+			try {
+				s3object = s3Client.getObject(new GetObjectRequest(bucket, key).withRange(offset, offset + length - 1));
+			} catch (AmazonServiceException e) {
+				if (e.getStatusCode() == RANGE_NOT_SATISFIABLE) {
+					//the range starts at or after the end of the object
+					result = ByteBuffer.allocate(0);
+					return result;
+				}
+				throw e;
+			}
+		
+			long size = s3object.getObjectMetadata().getContentLength();
+			try (ReadableByteChannel in = Channels.newChannel(s3object.getObjectContent())) {
+				ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(size, length));
+				while (buffer.hasRemaining()) {
+					if (in.read(buffer) < 0) {
+						throw new IOException("expected " + buffer.capacity() + " bytes, got " + buffer.position());
+					}
+				}
+				buffer.flip();
+				result = buffer;
+				return result;
+			} catch (IOException e) {
+				throw new RuntimeException("getByteBuffer(String bucket, String key, long offset, int length): " + e.getMessage(), e);
+			}
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_READ, bucket, start, (result == null) ? 0L : result.remaining(), 1L);
+		}
+	}
+	
+	@Override
+	public void delete(String bucket, String key) {
+		long start = Tracing.start();
+		try {
+			s3Client.deleteObject(bucket, key);
+		} finally {
+			Tracing.end(Tracing.Event.BLOB_WRITE, bucket, start, 0L, 1L);
+		}
+	}
+	
+	/**
+	 * ListObjects returns at most 1000 keys per request, a larger page takes several.
+	 */
+	@Override
+	public List<String> list(String bucket, String prefix, String startAfter, int limit) {
+		if (limit <= 0) {
+			throw new IllegalArgumentException("limit must be positive: " + limit);
 		}
 		
-		return file;
+		List<String> keys = new ArrayList<>();
+		String marker = startAfter;
+		ObjectListing listing;
+		do {
+			listing = s3Client.listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix)
+					.withMarker(marker).withMaxKeys(Math.min(limit - keys.size(), MAX_KEYS)));
+			for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+				keys.add(summary.getKey());
+			}
+			marker = keys.isEmpty() ? marker : keys.get(keys.size() - 1);
+		} while (listing.isTruncated() && (keys.size() < limit));
+		return keys;
+	}
+	
+	@Override
+	public BlobMetadata head(String bucket, String key) {
+		try {
+			return toBlobMetadata(s3Client.getObjectMetadata(bucket, key));
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == NOT_FOUND) {
+				return null;
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * An unchanged object costs one request answered with 304 Not Modified.
+	 */
+	@Override
+	public Blob getIfChanged(String bucket, String key, String knownEtag) {
+		GetObjectRequest request = new GetObjectRequest(bucket, key);
+		if (knownEtag != null) {
+			request.withNonmatchingETagConstraint(knownEtag);
+		}
+		
+		//the client returns null when a constraint is not met
+		S3Object s3object = s3Client.getObject(request);
+		if (s3object == null) {
+			return null;
+		}
+		try {
+			BlobMetadata metadata = toBlobMetadata(s3object.getObjectMetadata());
+			return new Blob(metadata, read(s3object));
+		} catch (IOException e) {
+			throw new RuntimeException("getIfChanged(String bucket, String key, String knownEtag): " + e.getMessage(), e);
+		}
+	}
+	
+	@Override
+	public CompletableFuture<Void> putAsync(String bucket, String key, File data) {
+		return io.submit(data.length(), () -> {
+			put(bucket, key, data);
+			return null;
+		});
+	}
+	
+	@Override
+	public CompletableFuture<Void> putAsync(String bucket, String key, ByteBuffer data) {
+		return io.submit(data.remaining(), () -> {
+			put(bucket, key, data);
+			return null;
+		});
+	}
+	
+	//the size is not known before the request, so a get is weighed as one part
+	@Override
+	public CompletableFuture<File> getAsync(String bucket, String key) {
+		return io.submit(partSize, () -> get(bucket, key));
+	}
+	
+	@Override
+	public CompletableFuture<ByteBuffer> getByteBufferAsync(String bucket, String key) {
+		return io.submit(partSize, () -> getByteBuffer(bucket, key));
+	}
+	
+	@Override
+	public CompletableFuture<Void> deleteAsync(String bucket, String key) {
+		return io.submit(0L, () -> {
+			delete(bucket, key);
+			return null;
+		});
+	}
+	
+	@Override
+	public void setAsyncLimits(int maxConcurrency, long maxInFlightBytes) {
+		io.setLimits(maxConcurrency, maxInFlightBytes);
+	}
+	
+	private static ByteBuffer read(S3Object s3object) throws IOException {
+		long size = s3object.getObjectMetadata().getContentLength();
+		try (ReadableByteChannel in = Channels.newChannel(s3object.getObjectContent())) {
+			if (size > Integer.MAX_VALUE) {
+				throw new IllegalStateException(s3object.getBucketName() + "/" + s3object.getKey() + " is too large for a ByteBuffer: " + size);
+			}
+			
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (in.read(buffer) < 0) {
+					throw new IOException("expected " + size + " bytes, got " + buffer.position());
+				}
+			}
+			buffer.flip();
+			return buffer;
+		}
+	}
+	
+	private static BlobMetadata toBlobMetadata(ObjectMetadata metadata) {
+		long lastModified = metadata.getLastModified() == null ? 0L : metadata.getLastModified().getTime();
+		return new BlobMetadata(metadata.getContentLength(), metadata.getETag(), lastModified);
+	}
+	
+	private UploadPartRequest newUploadPartRequest(String bucket, String key, String uploadId, int partNumber, long size) {
+		return new UploadPartRequest().withBucketName(bucket).withKey(key).withUploadId(uploadId)
+				.withPartNumber(partNumber).withPartSize(size);
+	}
+	
+	private Void getRange(GetObjectRequest request, FileChannel out) throws IOException {
+		long position = request.getRange()[0];
+		long end = request.getRange()[1] + 1;
+		
+		S3Object s3object = s3Client.getObject(request);
+		if (s3object == null) {
+			//the SDK returns null when the etag constraint fails
+			throw new ConcurrentModificationException(request.getBucketName() + "/" + request.getKey() + " changed during the download");
+		}
+		try (ReadableByteChannel in = Channels.newChannel(s3object.getObjectContent())) {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			while (in.read(buffer) >= 0) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					position += out.write(buffer, position);
+				}
+				buffer.clear();
+			}
+		}
+		if (position != end) {
+			throw new EOFException("range of " + request.getKey() + " ended at " + position + ", expected " + end);
+		}
+		return null;
+	}
+	
+	private void abort(String bucket, String key, String uploadId, List<? extends Future<?>> parts) {
+		for (Future<?> part : parts) {
+			part.cancel(true);
+		}
+		try {
+			s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+		} catch (AmazonClientException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	private static <T> List<T> await(List<Future<T>> futures) {
+		List<T> results = new ArrayList<>(futures.size());
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+			Throwables.propagateIfPossible(e.getCause());
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+	
+	/*
+	 * A part is retried with a growing pause unless S3 rejected the request itself (4xx),
+	 * which would fail the same way again.
+	 */
+	private static <T> T retry(Callable<T> part) throws Exception {
+		for (int attempt = 1; ; ++attempt) {
+			try {
+				return part.call();
+			} catch (AmazonServiceException e) {
+				if (e.getErrorType() == ErrorType.Client || attempt == MAX_ATTEMPTS) {
+					throw e;
+				}
+			} catch (AmazonClientException | IOException e) {
+				if (attempt == MAX_ATTEMPTS) {
+					throw e;
+				}
+			}
+			Thread.sleep(RETRY_BACKOFF_MILLIS << (attempt - 1));
+		}
 	}
-}
\ No newline at end of file
+}
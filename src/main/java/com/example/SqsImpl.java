@@ -1,40 +1,187 @@
 package com.example;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import com.amazonaws.services.sqs.AmazonSQSClient;
+import com.amazonaws.services.sqs.model.ChangeMessageVisibilityRequest;
 import com.amazonaws.services.sqs.model.CreateQueueRequest;
 import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
 import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.QueueAttributeName;
 import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
 import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SetQueueAttributesRequest;
 
 public class SqsImpl implements QueueServiceAbstract {
+	private static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+	private static final String REDRIVE_POLICY = "RedrivePolicy";
+	private static final String MESSAGE_GROUP_ID = "MessageGroupId";
+	private static final String MESSAGE_DEDUPLICATION_ID = "MessageDeduplicationId";
+	private static final String FIFO_QUEUE = "FifoQueue";
+	private static final String CONTENT_BASED_DEDUPLICATION = "ContentBasedDeduplication";
+	private static final String FIFO_SUFFIX = ".fifo";
+	/*the message attribute marking a body pushed as bytes*/
+	private static final String BODY_ENCODING = "BodyEncoding";
+	private static final String BASE64 = "base64";
+	
 	private AmazonSQSClient sqsClient;
 	
 	public SqsImpl(AmazonSQSClient sqsClient) {
 		this.sqsClient = sqsClient;
 	}
 	
+	/**
+	 * A name ending with ".fifo" creates a FIFO queue, with content-based deduplication.
+	 */
 	public String createQueue(String queueName) {
 		CreateQueueRequest createQueueRequest = new CreateQueueRequest(queueName);
+		if (queueName.endsWith(FIFO_SUFFIX)) {
+			createQueueRequest.addAttributesEntry(FIFO_QUEUE, "true").addAttributesEntry(CONTENT_BASED_DEDUPLICATION, "true");
+		}
 		return sqsClient.createQueue(createQueueRequest).getQueueUrl();
 	}
 
+	/**
+	 * SQS identifies the dead-letter queue by its ARN, not by its URL.
+	 */
+	public void setRedrivePolicy(String queueUrl, String deadLetterTargetArn, int maxReceiveCount) {
+		String redrivePolicy = "{\"maxReceiveCount\":\"" + maxReceiveCount + "\",\"deadLetterTargetArn\":\"" + deadLetterTargetArn + "\"}";
+		sqsClient.setQueueAttributes(new SetQueueAttributesRequest().withQueueUrl(queueUrl).addAttributesEntry(REDRIVE_POLICY, redrivePolicy));
+	}
+
 	@Override
 	public void push(String queueUrl, String messageBody) {
-		sqsClient.sendMessage(new SendMessageRequest(queueUrl, messageBody));
+		send(new SendMessageRequest(queueUrl, messageBody));
+	}
+
+	/**
+	 * SQS only carries text, so the bytes are sent in Base64, with a message attribute telling pull() to decode them.
+	 */
+	@Override
+	public void push(String queueUrl, ByteBuffer messageBody) {
+		String body = StandardCharsets.ISO_8859_1.decode(Base64.getEncoder().encode(messageBody.duplicate())).toString();
+		MessageAttributeValue encoding = new MessageAttributeValue().withDataType("String").withStringValue(BASE64);
+		send(new SendMessageRequest(queueUrl, body).addMessageAttributesEntry(BODY_ENCODING, encoding));
+	}
+
+	/**
+	 * SQS accepts delays up to 15 minutes.
+	 */
+	@Override
+	public void push(String queueUrl, String messageBody, long delayMillis) {
+		send(new SendMessageRequest(queueUrl, messageBody).withDelaySeconds(toSeconds(delayMillis)));
+	}
+
+	/**
+	 * pushes a message onto a FIFO queue; with a null deduplication id, SQS deduplicates by the body.
+	 * This version of the SDK predates FIFO queues, so the ids are sent as raw request parameters.
+	 */
+	public void push(String queueUrl, String messageBody, String messageGroupId, String deduplicationId) {
+		SendMessageRequest sendMessageRequest = new SendMessageRequest(queueUrl, messageBody);
+		sendMessageRequest.putCustomQueryParameter(MESSAGE_GROUP_ID, messageGroupId);
+		if (deduplicationId != null) {
+			sendMessageRequest.putCustomQueryParameter(MESSAGE_DEDUPLICATION_ID, deduplicationId);
+		}
+		send(sendMessageRequest);
 	}
 
 	@Override
 	public Message pull(String queueUrl) {
-		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl);
-		List<Message> messages = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
-		return (messages.isEmpty() ? null : messages.get(0));
+		ReceiveMessageRequest receiveMessageRequest = new ReceiveMessageRequest(queueUrl).withAttributeNames(APPROXIMATE_RECEIVE_COUNT, MESSAGE_GROUP_ID)
+				.withMessageAttributeNames(BODY_ENCODING);
+		long start = Tracing.start();
+		List<Message> messages = null;
+		try {
+			messages = sqsClient.receiveMessage(receiveMessageRequest).getMessages();
+			return (messages.isEmpty() ? null : toBinaryMessage(messages.get(0)));
+		} finally {
+			int received = (messages == null) ? 0 : messages.size();
+			Tracing.end(Tracing.Event.SQS_REQUEST, queueUrl, start, (received == 0) ? 0L : messages.get(0).getBody().length(), received);
+		}
 	}
 
 	@Override
 	public void delete(String queueUrl, String messageReceiptHandle) {
-		sqsClient.deleteMessage(new DeleteMessageRequest(queueUrl, messageReceiptHandle));
+		long start = Tracing.start();
+		try {
+			sqsClient.deleteMessage(new DeleteMessageRequest(queueUrl, messageReceiptHandle));
+		} finally {
+			Tracing.end(Tracing.Event.SQS_REQUEST, queueUrl, start, 0L, 1L);
+		}
+	}
+
+	@Override
+	public void changeVisibility(String queueUrl, String messageReceiptHandle, long visibilityTimeoutMillis) {
+		long start = Tracing.start();
+		try {
+			sqsClient.changeMessageVisibility(new ChangeMessageVisibilityRequest(queueUrl, messageReceiptHandle, toSeconds(visibilityTimeoutMillis)));
+		} finally {
+			Tracing.end(Tracing.Event.SQS_REQUEST, queueUrl, start, 0L, 1L);
+		}
+	}
+
+	/**
+	 * The age of the oldest message is a CloudWatch metric rather than a queue attribute,
+	 * so it is reported as unknown.
+	 */
+	@Override
+	public QueueAttributes getQueueAttributes(String queueUrl) {
+		GetQueueAttributesRequest getQueueAttributesRequest = new GetQueueAttributesRequest(queueUrl).withAttributeNames(
+				QueueAttributeName.ApproximateNumberOfMessages,
+				QueueAttributeName.ApproximateNumberOfMessagesNotVisible,
+				QueueAttributeName.ApproximateNumberOfMessagesDelayed);
+		Map<String, String> attributes = sqsClient.getQueueAttributes(getQueueAttributesRequest).getAttributes();
+		return new QueueAttributes(
+				Long.parseLong(attributes.get(QueueAttributeName.ApproximateNumberOfMessages.toString())),
+				Long.parseLong(attributes.get(QueueAttributeName.ApproximateNumberOfMessagesNotVisible.toString())),
+				Long.parseLong(attributes.get(QueueAttributeName.ApproximateNumberOfMessagesDelayed.toString())),
+				-1L);
+	}
+
+	/**
+	 * The bytes traced are the chars of the body, which they are for ASCII bodies.
+	 */
+	private void send(SendMessageRequest sendMessageRequest) {
+		long start = Tracing.start();
+		try {
+			sqsClient.sendMessage(sendMessageRequest);
+		} finally {
+			Tracing.end(Tracing.Event.SQS_REQUEST, sendMessageRequest.getQueueUrl(), start, sendMessageRequest.getMessageBody().length(), 1L);
+		}
+	}
+
+	/**
+	 * @return a BinaryMessage with the decoded body if the message was pushed as bytes, the message otherwise
+	 */
+	private static Message toBinaryMessage(Message message) {
+		Map<String, MessageAttributeValue> messageAttributes = message.getMessageAttributes();
+		MessageAttributeValue encoding = (messageAttributes == null) ? null : messageAttributes.get(BODY_ENCODING);
+		if ((encoding == null) || !BASE64.equals(encoding.getStringValue())) {
+			return message;
+		}
+
+		BinaryMessage binary = new BinaryMessage();
+		binary.setBody(message.getBody());
+		binary.setMessageId(message.getMessageId());
+		binary.setReceiptHandle(message.getReceiptHandle());
+		binary.setMD5OfBody(message.getMD5OfBody());
+		binary.setAttributes(message.getAttributes());
+		binary.setMD5OfMessageAttributes(message.getMD5OfMessageAttributes());
+		binary.setMessageAttributes(messageAttributes);
+		return binary;
+	}
+
+	/**
+	 * SQS counts in whole seconds, so timeouts and delays are rounded up rather than expiring early.
+	 */
+	private static int toSeconds(long millis) {
+		return (int) TimeUnit.MILLISECONDS.toSeconds(millis + 999L);
 	}
 }
\ No newline at end of file
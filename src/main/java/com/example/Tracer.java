@@ -0,0 +1,15 @@
+package com.example;
+
+/**
+ * Receives the operations traced by the queue services and blob stores, see Tracing.
+ */
+public interface Tracer {
+
+	/**
+	 * called on the thread of the operation once it has ended, so it must be quick and must not throw.
+	 * @param target - the queue or bucket of the operation
+	 * @param bytes - bytes read or written, 0 if the operation moves none
+	 * @param records - records scanned or messages moved, 0 if the operation has none
+	 */
+	public void record(Tracing.Event event, String target, long nanos, long bytes, long records);
+}
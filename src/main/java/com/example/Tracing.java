@@ -0,0 +1,55 @@
+package com.example;
+
+/**
+ * Hook tracing where the time of queue and blob operations goes: lock waits, file rewrites, timer tasks and remote calls.
+ * Tracing is off until a Tracer is set; until then an operation pays for one volatile read and does not read the clock.
+ * <pre>
+ * long start = Tracing.start();
+ * ...
+ * Tracing.end(Tracing.Event.QUEUE_IO, queue, start, bytes, records);
+ * </pre>
+ */
+public final class Tracing {
+
+	public enum Event {
+		/*waiting for the lock of a queue or of a blob*/
+		LOCK_WAIT,
+		/*reading or rewriting the files of a FileImpl queue*/
+		QUEUE_IO,
+		/*a visibility or delay task run by the VisibilityCollaborator*/
+		TIMER_TASK,
+		/*a request to SQS*/
+		SQS_REQUEST,
+		BLOB_READ,
+		BLOB_WRITE
+	}
+
+	private static volatile Tracer tracer;
+
+	private Tracing() {/*only static methods*/}
+
+	/**
+	 * @param tracer - null turns tracing off
+	 */
+	public static void setTracer(Tracer tracer) {
+		Tracing.tracer = tracer;
+	}
+
+	public static Tracer getTracer() {
+		return tracer;
+	}
+
+	/**
+	 * @return the start of an operation to pass to end(), 0 while tracing is off
+	 */
+	static long start() {
+		return (tracer == null) ? 0L : System.nanoTime();
+	}
+
+	static void end(Event event, String target, long start, long bytes, long records) {
+		Tracer current = tracer;
+		if ((start == 0L) || (current == null))
+			return;
+		current.record(event, target, System.nanoTime() - start, bytes, records);
+	}
+}
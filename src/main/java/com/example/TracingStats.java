@@ -0,0 +1,124 @@
+package com.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * A Tracer keeping per-event counters and latency histograms, cheap enough to stay on in production.
+ * Once registered, it is published as the MXBean <code>com.example:type=Tracing</code>,
+ * which JConsole and the MBean browser of Mission Control chart like any other.
+ * <pre>
+ * Tracing.setTracer(new TracingStats().register());
+ * </pre>
+ */
+public class TracingStats implements Tracer, TracingStatsMXBean {
+
+	public static final String OBJECT_NAME = "com.example:type=Tracing";
+
+	private final Map<Tracing.Event, Figures> figures = new EnumMap<Tracing.Event, Figures>(Tracing.Event.class);
+
+	public TracingStats() {
+		for (Tracing.Event event : Tracing.Event.values()) {
+			figures.put(event, new Figures());
+		}
+	}
+
+	/**
+	 * registers this as the MXBean OBJECT_NAME of the platform MBean server, replacing any registered before.
+	 * @return this
+	 */
+	public TracingStats register() {
+		try {
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			}
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+			return this;
+		} catch (JMException e) {
+			throw new RuntimeException("register(): " + e.getMessage(), e);
+		}
+	}
+
+	@Override
+	public void record(Tracing.Event event, String target, long nanos, long bytes, long records) {
+		Figures eventFigures = figures.get(event);
+		long micros = nanos / 1000L;
+		eventFigures.count.increment();
+		eventFigures.totalMicros.add(micros);
+		eventFigures.bytes.add(bytes);
+		eventFigures.records.add(records);
+		eventFigures.histogram.record(micros);
+		eventFigures.maxMicros.accumulateAndGet(micros, Math::max);
+	}
+
+	@Override
+	public Map<String, Long> getCounts() {
+		return collect(eventFigures -> eventFigures.count.sum());
+	}
+
+	@Override
+	public Map<String, Long> getTotalMicros() {
+		return collect(eventFigures -> eventFigures.totalMicros.sum());
+	}
+
+	@Override
+	public Map<String, Long> getMaxMicros() {
+		return collect(eventFigures -> eventFigures.maxMicros.get());
+	}
+
+	@Override
+	public Map<String, Long> getP99Micros() {
+		return collect(eventFigures -> eventFigures.histogram.getValueAtPercentile(99.0));
+	}
+
+	@Override
+	public Map<String, Long> getBytes() {
+		return collect(eventFigures -> eventFigures.bytes.sum());
+	}
+
+	@Override
+	public Map<String, Long> getRecords() {
+		return collect(eventFigures -> eventFigures.records.sum());
+	}
+
+	/**
+	 * Operations recorded while resetting may be counted in some figures and not in others.
+	 */
+	@Override
+	public void reset() {
+		for (Figures eventFigures : figures.values()) {
+			eventFigures.count.reset();
+			eventFigures.totalMicros.reset();
+			eventFigures.bytes.reset();
+			eventFigures.records.reset();
+			eventFigures.histogram.snapshotAndReset();
+			eventFigures.maxMicros.set(0L);
+		}
+	}
+
+	private Map<String, Long> collect(ToLongFunction<Figures> figure) {
+		Map<String, Long> values = new LinkedHashMap<String, Long>();
+		for (Map.Entry<Tracing.Event, Figures> entry : figures.entrySet()) {
+			values.put(entry.getKey().name(), figure.applyAsLong(entry.getValue()));
+		}
+		return values;
+	}
+
+	private static class Figures {
+		final LongAdder count = new LongAdder();
+		final LongAdder totalMicros = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder records = new LongAdder();
+		final AtomicLong maxMicros = new AtomicLong();
+		final LatencyHistogram histogram = new LatencyHistogram();
+	}
+}
@@ -0,0 +1,23 @@
+package com.example;
+
+import java.util.Map;
+
+/**
+ * Figures of TracingStats by Tracing.Event, since it was registered or last reset.
+ */
+public interface TracingStatsMXBean {
+
+	public Map<String, Long> getCounts();
+
+	public Map<String, Long> getTotalMicros();
+
+	public Map<String, Long> getMaxMicros();
+
+	public Map<String, Long> getP99Micros();
+
+	public Map<String, Long> getBytes();
+
+	public Map<String, Long> getRecords();
+
+	public void reset();
+}
@@ -1,12 +1,70 @@
 package com.example;
 
-import java.util.Timer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 public class VisibilityCollaborator {
-	private Timer timer = new Timer();
-	
-	public void makeMessageVisibleAsynchronously(TimerTask task, long visibilityTimeout) {
-		timer.schedule(task, visibilityTimeout);
+	private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+	/*task->its pending run, so a cancelled task leaves the queue of the scheduler at once; guarded by this*/
+	private final Map<TimerTask, ScheduledFuture<?>> futures = new HashMap<TimerTask, ScheduledFuture<?>>();
+
+	public VisibilityCollaborator() {
+		scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * Unlike <code>java.util.Timer</code>, the same task may be scheduled again,
+	 * which is how a task moves its own deadline instead of being re-created;
+	 * the new run replaces the pending one.
+	 */
+	public synchronized void makeMessageVisibleAsynchronously(TimerTask task, long visibilityTimeout) {
+		//a run due at once waits for the lock, so it is registered before it can start or schedule its task again
+		ScheduledRun run = new ScheduledRun(task);
+		run.future = scheduler.schedule(run, visibilityTimeout, TimeUnit.MILLISECONDS);
+		ScheduledFuture<?> previous = futures.put(task, run.future);
+		if (previous != null) {
+			previous.cancel(false);
+		}
+	}
+
+	/**
+	 * Drops the pending run of the task, e.g. when its message has been deleted.
+	 */
+	public synchronized void cancel(TimerTask task) {
+		ScheduledFuture<?> future = futures.remove(task);
+		if (future != null) {
+			future.cancel(false);
+		}
+	}
+
+	/*
+	 * Every task runs on the single scheduler thread, so a slow one holds back all that are due after it.
+	 */
+	private class ScheduledRun implements Runnable {
+		private final TimerTask task;
+		/*guarded by the collaborator*/
+		private ScheduledFuture<?> future;
+
+		ScheduledRun(TimerTask task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			//before the task runs, as it may schedule itself again
+			synchronized (VisibilityCollaborator.this) {
+				futures.remove(task, future);
+			}
+			long start = Tracing.start();
+			try {
+				task.run();
+			} finally {
+				Tracing.end(Tracing.Event.TIMER_TASK, task.getClass().getName(), start, 0L, 0L);
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,60 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingBlobStoreTest {
+	
+	private FileBlobStore backend;
+	private CachingBlobStore blobStore;
+	
+	@Before
+	public void setUp() throws Exception {
+		backend = new FileBlobStore("s3");
+		blobStore = new CachingBlobStore(backend, "s3cache", 2500);
+	}
+	
+	@Test
+	public void readThroughAndEvict() {
+		String bucket = "cachedBucket";
+		for (int i = 0; i < 3; ++i) {
+			backend.put(bucket, "key" + i, ByteBuffer.wrap(new byte[1000]));
+		}
+		
+		long misses = blobStore.getMissCount();
+		long hits = blobStore.getHitCount();
+		blobStore.getByteBuffer(bucket, "key0");
+		blobStore.getByteBuffer(bucket, "key0");
+		assertEquals(misses + 1, blobStore.getMissCount());
+		assertEquals(hits + 1, blobStore.getHitCount());
+		blobStore.getByteBuffer(bucket, "key0", 10, 10);
+		assertEquals(hits + 2, blobStore.getHitCount());
+		
+		blobStore.get(bucket, "key1");
+		blobStore.get(bucket, "key2");
+		assertFalse(blobStore.getCachedBytes() > 2500);
+		
+		blobStore.close();
+		//the cache directory does not list what was evicted
+		FileBlobStore cached = new FileBlobStore("s3cache");
+		assertFalse(cached.list(bucket, "key0", null, 1).contains("key0"));
+		cached.close();
+	}
+	
+	@Test
+	public void writeThrough() {
+		String bucket = "cachedBucket";
+		byte[] data = new byte[]{1, 2, 3};
+		
+		blobStore.put(bucket, "written", ByteBuffer.wrap(data));
+		assertEquals(ByteBuffer.wrap(data), backend.getByteBuffer(bucket, "written"));
+		assertEquals(ByteBuffer.wrap(data), blobStore.getByteBuffer(bucket, "written"));
+		
+		blobStore.close();
+	}
+}
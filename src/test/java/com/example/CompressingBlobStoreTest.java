@@ -0,0 +1,130 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.io.ByteStreams;
+
+public class CompressingBlobStoreTest {
+
+	private static final String BUCKET = "compressedBucket";
+
+	private FileBlobStore backend;
+	private CompressingBlobStore blobStore;
+	/*compresses well*/
+	private byte[] text;
+	/*does not compress at all*/
+	private byte[] random;
+
+	@Before
+	public void setUp() throws Exception {
+		backend = new FileBlobStore("s3");
+		blobStore = new CompressingBlobStore(backend);
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 10000; ++i) {
+			builder.append("line ").append(i).append('\n');
+		}
+		text = builder.toString().getBytes(StandardCharsets.UTF_8);
+		random = new byte[100 * 1024];
+		new Random(1L).nextBytes(random);
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		blobStore.put(BUCKET, "buffer.txt", ByteBuffer.wrap(text));
+		blobStore.put(BUCKET, "stream.txt", new ByteArrayInputStream(text), text.length);
+
+		assertTrue(backend.head(BUCKET, "buffer.txt").getSize() < text.length / 2);
+		assertEquals(ByteBuffer.wrap(text), blobStore.getByteBuffer(BUCKET, "buffer.txt"));
+		assertArrayEquals(text, ByteStreams.toByteArray(blobStore.getInputStream(BUCKET, "stream.txt")));
+		assertEquals(text.length, blobStore.head(BUCKET, "stream.txt").getSize());
+	}
+
+	@Test
+	public void incompressibleSkipped() throws IOException {
+		long skipped = blobStore.getSkippedCount();
+		blobStore.put(BUCKET, "random.bin", ByteBuffer.wrap(random));
+
+		assertEquals(skipped + 1, blobStore.getSkippedCount());
+		assertTrue(backend.head(BUCKET, "random.bin").getSize() < random.length + 100);
+		assertEquals(ByteBuffer.wrap(random), blobStore.getByteBuffer(BUCKET, "random.bin"));
+		assertArrayEquals(random, ByteStreams.toByteArray(blobStore.getInputStream(BUCKET, "random.bin")));
+	}
+
+	@Test
+	public void ranges() {
+		blobStore.put(BUCKET, "ranged.txt", ByteBuffer.wrap(text));
+		blobStore.put(BUCKET, "ranged.bin", ByteBuffer.wrap(random));
+
+		assertEquals(ByteBuffer.wrap(text, 1000, 500), blobStore.getByteBuffer(BUCKET, "ranged.txt", 1000, 500));
+		assertEquals(ByteBuffer.wrap(random, 1000, 500), blobStore.getByteBuffer(BUCKET, "ranged.bin", 1000, 500));
+		//cut short at the end of the object
+		assertEquals(ByteBuffer.wrap(text, text.length - 10, 10), blobStore.getByteBuffer(BUCKET, "ranged.txt", text.length - 10, 100));
+		assertEquals(ByteBuffer.wrap(random, random.length - 10, 10), blobStore.getByteBuffer(BUCKET, "ranged.bin", random.length - 10, 100));
+		assertEquals(0, blobStore.getByteBuffer(BUCKET, "ranged.txt", text.length + 10, 100).remaining());
+	}
+
+	@Test
+	public void headOfUnchangedObject() {
+		int[] ranges = new int[1];
+		FileBlobStore countingBackend = new FileBlobStore("s3") {
+			@Override
+			public ByteBuffer getByteBuffer(String bucket, String key, long offset, int length) {
+				++ranges[0];
+				return super.getByteBuffer(bucket, key, offset, length);
+			}
+		};
+		CompressingBlobStore countingStore = new CompressingBlobStore(countingBackend);
+		countingStore.put(BUCKET, "head.txt", ByteBuffer.wrap(text));
+
+		assertEquals(text.length, countingStore.head(BUCKET, "head.txt").getSize());
+		assertEquals(text.length, countingStore.head(BUCKET, "head.txt").getSize());
+		assertEquals(1, ranges[0]);
+
+		countingStore.put(BUCKET, "head.txt", ByteBuffer.wrap(random));
+		assertEquals(random.length, countingStore.head(BUCKET, "head.txt").getSize());
+		assertEquals(2, ranges[0]);
+	}
+
+	@Test
+	public void failedGetLeavesNoFile() {
+		blobStore.put(BUCKET, "truncated.txt", ByteBuffer.wrap(text));
+		//the compressed body cut short, so inflating it fails half way
+		ByteBuffer stored = backend.getByteBuffer(BUCKET, "truncated.txt");
+		backend.put(BUCKET, "truncated.txt", ByteBuffer.wrap(stored.array(), stored.arrayOffset() + stored.position(), stored.remaining() / 2));
+		File temp = new File(System.getProperty("java.io.tmpdir"));
+		int before = temp.list((dir, name) -> name.startsWith("uncompressed-")).length;
+
+		try {
+			blobStore.get(BUCKET, "truncated.txt");
+			fail();
+		} catch (RuntimeException e) {
+			assertEquals(before, temp.list((dir, name) -> name.startsWith("uncompressed-")).length);
+		}
+	}
+
+	@Test
+	public void rawObjectStartingWithMagic() throws IOException {
+		//the magic, then a codec byte no codec has and a length no buffer can hold
+		byte[] raw = new byte[64];
+		ByteBuffer.wrap(raw).putInt(0x5a424c42).put((byte) 1).put((byte) 100).putLong(Long.MAX_VALUE);
+		backend.put(BUCKET, "raw.bin", ByteBuffer.wrap(raw));
+
+		assertEquals(ByteBuffer.wrap(raw), blobStore.getByteBuffer(BUCKET, "raw.bin"));
+		assertArrayEquals(raw, ByteStreams.toByteArray(blobStore.getInputStream(BUCKET, "raw.bin")));
+		assertEquals(ByteBuffer.wrap(raw, 4, 10), blobStore.getByteBuffer(BUCKET, "raw.bin", 4, 10));
+		assertEquals(raw.length, blobStore.head(BUCKET, "raw.bin").getSize());
+	}
+}
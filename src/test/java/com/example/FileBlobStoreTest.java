@@ -1,13 +1,35 @@
 package com.example;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.io.ByteStreams;
+
 public class FileBlobStoreTest {
 	
 	private FileBlobStore blobStore;
@@ -33,6 +55,232 @@ public class FileBlobStoreTest {
 		assertEquals(data.length(), result.length());
 	}	
 	
+	@Test
+	public void putAndGetStreams() throws IOException {
+		String bucket = "bigBucket";
+		blobStore.createBucket(bucket);
+		
+		byte[] data = "streamed blob".getBytes(StandardCharsets.UTF_8);
+		
+		blobStore.put(bucket, "streams/buffer.txt", ByteBuffer.wrap(data));
+		assertEquals(ByteBuffer.wrap(data), blobStore.getByteBuffer(bucket, "streams/buffer.txt"));
+		
+		blobStore.put(bucket, "streams/stream.txt", new ByteArrayInputStream(data), data.length);
+		try (InputStream in = blobStore.getInputStream(bucket, "streams/stream.txt")) {
+			assertArrayEquals(data, ByteStreams.toByteArray(in));
+		}
+	}
+	
+	@Test
+	public void publishedWithDefaultMode() throws IOException {
+		String bucket = "modeBucket";
+		blobStore.put(bucket, "blob.bin", ByteBuffer.wrap(new byte[] {1}));
+		
+		//what the umask gives a file created without any mode
+		File plain = new File(path + "/" + bucket + "/plain.bin");
+		new FileOutputStream(plain).close();
+		try {
+			assertEquals(Files.getPosixFilePermissions(plain.toPath()), Files.getPosixFilePermissions(Paths.get(path, bucket, "blob.bin")));
+		} finally {
+			plain.delete();
+		}
+	}
+	
+	@Test
+	public void contentAddressed() {
+		FileBlobStore contentStore = new FileBlobStore("s3cas", 0, FileBlobStore.StorageMode.CONTENT_ADDRESSED);
+		String bucket = "bigBucket";
+		byte[] data = "same payload".getBytes(StandardCharsets.UTF_8);
+		
+		contentStore.put(bucket, "first.txt", ByteBuffer.wrap(data));
+		contentStore.put(bucket, "second.txt", new ByteArrayInputStream(data), data.length);
+		assertEquals(contentStore.get(bucket, "first.txt"), contentStore.get(bucket, "second.txt"));
+		
+		File content = contentStore.get(bucket, "first.txt");
+		contentStore.delete(bucket, "first.txt");
+		assertTrue(content.exists());
+		assertEquals(ByteBuffer.wrap(data), contentStore.getByteBuffer(bucket, "second.txt"));
+		
+		contentStore.delete(bucket, "second.txt");
+		assertFalse(content.exists());
+	}
+	
+	@Test
+	public void contentAddressedFileLost() {
+		FileBlobStore contentStore = new FileBlobStore("s3cas", 0, FileBlobStore.StorageMode.CONTENT_ADDRESSED);
+		String bucket = "bigBucket";
+		byte[] data = "lost payload".getBytes(StandardCharsets.UTF_8);
+		
+		contentStore.put(bucket, "first.txt", ByteBuffer.wrap(data));
+		File content = contentStore.get(bucket, "first.txt");
+		assertTrue(content.delete());
+		
+		//stored again, and still counted for the key which lost it
+		contentStore.put(bucket, "second.txt", ByteBuffer.wrap(data));
+		contentStore.delete(bucket, "second.txt");
+		assertEquals(ByteBuffer.wrap(data), contentStore.getByteBuffer(bucket, "first.txt"));
+		
+		contentStore.delete(bucket, "first.txt");
+		assertFalse(content.exists());
+	}
+	
+	@Test
+	public void packed() throws IOException {
+		FileBlobStore packedStore = new FileBlobStore("s3packed", 0, FileBlobStore.StorageMode.PACKED);
+		String bucket = "bigBucket";
+		byte[] small = "small payload".getBytes(StandardCharsets.UTF_8);
+		byte[] large = new byte[128 * 1024];
+		
+		packedStore.put(bucket, "small.txt", new ByteArrayInputStream(small));
+		packedStore.put(bucket, "large.bin", ByteBuffer.wrap(large));
+		assertFalse(new File("s3packed/" + bucket + "/small.txt").exists());
+		assertTrue(new File("s3packed/" + bucket + "/large.bin").exists());
+		assertArrayEquals(small, ByteStreams.toByteArray(packedStore.getInputStream(bucket, "small.txt")));
+		
+		packedStore.put(bucket, "large.bin", ByteBuffer.wrap(small));
+		assertFalse(new File("s3packed/" + bucket + "/large.bin").exists());
+		packedStore.delete(bucket, "small.txt");
+		assertEquals(Arrays.asList("large.bin"), packedStore.list(bucket, null, null, 10));
+		packedStore.close();
+		
+		try (FileBlobStore reopened = new FileBlobStore("s3packed", 0, FileBlobStore.StorageMode.PACKED)) {
+			assertEquals(ByteBuffer.wrap(small), reopened.getByteBuffer(bucket, "large.bin"));
+		}
+	}
+	
+	@Test
+	public void putRacingDelete() throws Exception {
+		FileBlobStore packedStore = new FileBlobStore("s3packed", 0, FileBlobStore.StorageMode.PACKED);
+		String bucket = "racedBucket";
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			for (int i = 0; i < 100; ++i) {
+				String key = "key" + i;
+				CountDownLatch start = new CountDownLatch(1);
+				Future<?> put = executor.submit(() -> {
+					start.await();
+					packedStore.put(bucket, key, ByteBuffer.wrap(new byte[100]));
+					return null;
+				});
+				Future<?> delete = executor.submit(() -> {
+					start.await();
+					packedStore.delete(bucket, key);
+					return null;
+				});
+				start.countDown();
+				put.get();
+				delete.get();
+				
+				//whichever won, the index agrees with what is stored
+				boolean listed = packedStore.list(bucket, key, null, 1).contains(key);
+				assertEquals(listed, packedStore.head(bucket, key) != null);
+			}
+		} finally {
+			executor.shutdown();
+			packedStore.close();
+		}
+	}
+	
+	@Test
+	public void asyncFanOut() throws Exception {
+		String bucket = "asyncBucket";
+		blobStore.setAsyncLimits(2, 1024);
+		List<CompletableFuture<Void>> puts = new ArrayList<CompletableFuture<Void>>();
+		for (int i = 0; i < 20; ++i) {
+			puts.add(blobStore.putAsync(bucket, "key" + i, ByteBuffer.wrap(new byte[] {(byte) i})));
+		}
+		CompletableFuture.allOf(puts.toArray(new CompletableFuture[0])).get();
+		
+		for (int i = 0; i < 20; ++i) {
+			assertEquals(ByteBuffer.wrap(new byte[] {(byte) i}), blobStore.getByteBufferAsync(bucket, "key" + i).get());
+		}
+	}
+	
+	@Test
+	public void ranges() {
+		String bucket = "rangeBucket";
+		byte[] data = "0123456789".getBytes(StandardCharsets.UTF_8);
+		blobStore.put(bucket, "digits.txt", ByteBuffer.wrap(data));
+		
+		assertEquals(ByteBuffer.wrap(data, 2, 3), blobStore.getByteBuffer(bucket, "digits.txt", 2, 3));
+		assertEquals(ByteBuffer.wrap(data, 8, 2), blobStore.getByteBuffer(bucket, "digits.txt", 8, 100));
+		assertEquals(0, blobStore.getByteBuffer(bucket, "digits.txt", 20, 5).remaining());
+	}
+	
+	@Test
+	public void conditionalGet() {
+		String bucket = "pollBucket";
+		blobStore.put(bucket, "state.json", ByteBuffer.wrap("{}".getBytes(StandardCharsets.UTF_8)));
+		
+		BlobMetadata metadata = blobStore.head(bucket, "state.json");
+		assertEquals(2, metadata.getSize());
+		assertEquals(null, blobStore.getIfChanged(bucket, "state.json", metadata.getEtag()));
+		
+		blobStore.put(bucket, "state.json", ByteBuffer.wrap("{\"a\":1}".getBytes(StandardCharsets.UTF_8)));
+		Blob changed = blobStore.getIfChanged(bucket, "state.json", metadata.getEtag());
+		assertEquals(7, changed.getData().remaining());
+		assertEquals(null, blobStore.head(bucket, "missing.json"));
+		try {
+			blobStore.getIfChanged(bucket, "missing.json", null);
+			fail();
+		} catch (RuntimeException e) {
+		}
+	}
+	
+	@Test
+	public void conditionalGetGivesUp() {
+		String bucket = "pollBucket";
+		//every read races a put, so the ETags never agree
+		FileBlobStore racedStore = new FileBlobStore(path) {
+			private byte version;
+			
+			@Override
+			public ByteBuffer getByteBuffer(String bucket, String key) {
+				ByteBuffer read = super.getByteBuffer(bucket, key);
+				put(bucket, key, ByteBuffer.wrap(new byte[] {++version}));
+				return read;
+			}
+		};
+		racedStore.put(bucket, "raced.json", ByteBuffer.wrap(new byte[] {0}));
+		try {
+			racedStore.getIfChanged(bucket, "raced.json", null);
+			fail();
+		} catch (ConcurrentModificationException e) {
+		}
+	}
+	
+	@Test
+	public void listPages() {
+		String bucket = "listedBucket";
+		for (int i = 0; i < 5; ++i) {
+			blobStore.put(bucket, "2006-03-01/object" + i, ByteBuffer.wrap(new byte[]{1}));
+		}
+		blobStore.put(bucket, "other", ByteBuffer.wrap(new byte[]{1}));
+		blobStore.delete(bucket, "2006-03-01/object3");
+		
+		List<String> first = blobStore.list(bucket, "2006-03-01/", null, 2);
+		assertEquals(Arrays.asList("2006-03-01/object0", "2006-03-01/object1"), first);
+		
+		List<String> second = blobStore.list(bucket, "2006-03-01/", first.get(1), 10);
+		assertEquals(Arrays.asList("2006-03-01/object2", "2006-03-01/object4"), second);
+	}
+	
+	@Test
+	public void listSharedPath() {
+		String bucket = "sharedBucket";
+		blobStore.list(bucket, "", null, 1);
+		FileBlobStore otherStore = new FileBlobStore(path);
+		try {
+			otherStore.put(bucket, "fromOther", ByteBuffer.wrap(new byte[]{1}));
+			blobStore.put(bucket, "fromThis", ByteBuffer.wrap(new byte[]{1}));
+			
+			assertTrue(blobStore.list(bucket, "from", null, 10).contains("fromOther"));
+			assertTrue(otherStore.list(bucket, "from", null, 10).contains("fromThis"));
+		} finally {
+			otherStore.close();
+		}
+	}
+	
 	@Test
 	public void test() {
 		int a[] = new int[]{1,2,3,4,5,6,7,8,9};
@@ -2,26 +2,38 @@ package com.example;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
@@ -79,6 +91,126 @@ public class FileQueueServiceTest {
 		}
 	}
 
+	@Test
+	public void extendVisibility() throws IOException {
+		String queue = "extendVisibility";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "slow job");
+			Message msg1 = service.pull(queue);
+			
+			ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+			verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+			
+			service.changeVisibility(queue, msg1.getReceiptHandle(), 60000L);
+			
+			// The task fires at the old deadline, finds the new one and schedules itself again
+			task.getValue().run();
+			verify(mockVisibilityCollaborator, times(2)).makeMessageVisibleAsynchronously(same(task.getValue()), anyLong());
+			assertNull(service.pull(queue));
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
+	@Test
+	public void shortenVisibility() throws IOException {
+		String queue = "shortenVisibility";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "retry me");
+			Message msg1 = service.pull(queue);
+			
+			ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+			verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+			
+			service.changeVisibility(queue, msg1.getReceiptHandle(), 0L);
+			verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(same(task.getValue()), eq(0L));
+			
+			task.getValue().run();
+			Message msg2 = service.pull(queue);
+			assertEquals(msg1.getBody(), msg2.getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
+	@Test
+	public void delayedPush() throws IOException {
+		String queue = "delayedPush";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "later", 60000L);
+			assertNull(service.pull(queue));
+			
+			ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+			verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+			
+			// Run synchronously the task scheduled for the delay
+			task.getValue().run();
+			Message msg = service.pull(queue);
+			assertEquals("later", msg.getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
+	@Test
+	public void deadLetterQueue() throws IOException {
+		String queue = "deadLetterSource";
+		String deadLetterQueue = "deadLetterQueue";
+		deleteQueueIfExists(service.getPath(), queue);
+		deleteQueueIfExists(service.getPath(), deadLetterQueue);
+		try{
+			service.createQueue(queue);
+			service.createQueue(deadLetterQueue);
+			service.setRedrivePolicy(queue, deadLetterQueue, 2);
+			service.push(queue, "poison");
+			
+			// The first expiry puts the message back, the second one moves it away
+			Message msg1 = service.pull(queue);
+			assertEquals("1", msg1.getAttributes().get("ApproximateReceiveCount"));
+			service.new VisibilityTask(queue, msg1).run();
+			Message msg2 = service.pull(queue);
+			assertEquals("2", msg2.getAttributes().get("ApproximateReceiveCount"));
+			service.new VisibilityTask(queue, msg2).run();
+			
+			assertNull(service.pull(queue));
+			Message deadLetter = service.pull(deadLetterQueue);
+			assertEquals("poison", deadLetter.getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+			deleteQueueIfExists(service.getPath(), deadLetterQueue);
+		}
+	}
+	
+	@Test
+	public void queueAttributes() throws IOException {
+		String queue = "queueAttributes";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "one");
+			service.push(queue, "two");
+			service.push(queue, "three", 60000L);
+			Message msg = service.pull(queue);
+			
+			QueueAttributes attributes = service.getQueueAttributes(queue);
+			assertEquals(1L, attributes.getApproximateNumberOfMessages());
+			assertEquals(1L, attributes.getApproximateNumberOfMessagesNotVisible());
+			assertEquals(1L, attributes.getApproximateNumberOfMessagesDelayed());
+			assertTrue(attributes.getApproximateAgeOfOldestMessage() >= 0L);
+			
+			service.delete(queue, msg.getReceiptHandle());
+			assertEquals(0L, service.getQueueAttributes(queue).getApproximateNumberOfMessagesNotVisible());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
 	@Test
 	public void pullFromEmptyQueue() throws IOException {
 		String queue = "pullFromEmptyQueue";
@@ -118,6 +250,251 @@ public class FileQueueServiceTest {
 		}
 	}
 
+	@Test
+	public void partitionedKeyOrder() throws IOException {
+		String queue = "partitionedKeyOrder";
+		PartitionedFileQueueService partitioned = new PartitionedFileQueueService(30000L, Arrays.asList(service.getPath()), 3);
+		for (int i = 0; i < 3; ++i) {
+			deleteQueueIfExists(service.getPath(), queue + "@" + i);
+		}
+		try{
+			partitioned.createQueue(queue);
+			partitioned.push(queue, "first", "customer");
+			partitioned.push(queue, "other");
+			partitioned.push(queue, "second", "customer");
+			
+			List<String> bodies = new ArrayList<String>();
+			Message msg;
+			while ((msg = partitioned.pull(queue)) != null) {
+				bodies.add(msg.getBody());
+				partitioned.delete(queue, msg.getReceiptHandle());
+			}
+			assertEquals(3, bodies.size());
+			assertTrue(bodies.indexOf("first") < bodies.indexOf("second"));
+		} finally {
+			for (int i = 0; i < 3; ++i) {
+				deleteQueueIfExists(service.getPath(), queue + "@" + i);
+			}
+		}
+	}
+	
+	@Test
+	public void partitionCountKept() throws IOException {
+		String queue = "partitionCountKept";
+		for (int i = 0; i < 3; ++i) {
+			deleteQueueIfExists(service.getPath(), queue + "@" + i);
+		}
+		try{
+			new PartitionedFileQueueService(30000L, Arrays.asList(service.getPath()), 3).createQueue(queue);
+			new PartitionedFileQueueService(30000L, Arrays.asList(service.getPath()), 3).createQueue(queue);
+			try {
+				new PartitionedFileQueueService(30000L, Arrays.asList(service.getPath()), 2).createQueue(queue);
+				fail();
+			} catch (IllegalArgumentException e) {
+				//the messages of partition 2 would be stranded
+			}
+		} finally {
+			for (int i = 0; i < 3; ++i) {
+				deleteQueueIfExists(service.getPath(), queue + "@" + i);
+			}
+		}
+	}
+	
+	@Test
+	public void sharedControlBlock() throws IOException {
+		String queue = "sharedControlBlock";
+		FileImpl other = new FileImpl(30000L, service.getPath());
+		other.setVisibilityCollaborator(mockVisibilityCollaborator);
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "first");
+			service.push(queue, "second");
+
+			Message msg = other.pull(queue);
+			assertEquals("first", msg.getBody());
+			other.delete(queue, msg.getReceiptHandle());
+			assertEquals("second", service.pull(queue).getBody());
+			assertNull(other.pull(queue));
+
+			QueueAttributes attributes = other.getQueueAttributes(queue);
+			assertEquals(0L, attributes.getApproximateNumberOfMessages());
+			assertEquals(1L, attributes.getApproximateNumberOfMessagesNotVisible());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+
+	@Test
+	public void recreatedByAnotherInstance() throws IOException {
+		String queue = "recreatedByAnotherInstance";
+		FileImpl other = new FileImpl(30000L, service.getPath());
+		other.setVisibilityCollaborator(mockVisibilityCollaborator);
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "first");
+			service.push(queue, "second");
+			assertEquals("first", other.pull(queue).getBody());
+
+			//other still has the old control file mapped
+			deleteQueueIfExists(service.getPath(), queue);
+			service.createQueue(queue);
+			service.push(queue, "third");
+
+			QueueAttributes attributes = other.getQueueAttributes(queue);
+			assertEquals(1L, attributes.getApproximateNumberOfMessages());
+			assertEquals(0L, attributes.getApproximateNumberOfMessagesNotVisible());
+			assertEquals("third", other.pull(queue).getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+
+	@Test
+	public void priorityLevels() throws IOException {
+		String queue = "priorityLevels";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "low", Priority.LOW);
+			service.push(queue, "normal");
+			service.push(queue, "high", Priority.HIGH);
+			service.push(queue, "high again", Priority.HIGH);
+			
+			// Each level has its own file
+			File directory = new File(service.getPath(), queue);
+			assertTrue(new File(directory, "messages_high").length() > 0L);
+			assertTrue(new File(directory, "messages").length() > 0L);
+			assertTrue(new File(directory, "messages_low").length() > 0L);
+			
+			// STRICT drains the higher levels first, moving only the head of the level pulled from
+			long highLength = new File(directory, "messages_high").length();
+			assertEquals("high", service.pull(queue).getBody());
+			ControlBlock control = new ControlBlock(new File(directory, "control"));
+			long head = control.getHead(Priority.HIGH);
+			assertTrue(head > 0L && head < highLength);
+			assertEquals(highLength, new File(directory, "messages_high").length());
+			assertEquals(0L, control.getHead(Priority.NORMAL));
+			assertEquals(0L, control.getHead(Priority.LOW));
+			
+			assertEquals("high again", service.pull(queue).getBody());
+			assertEquals("normal", service.pull(queue).getBody());
+			assertEquals("low", service.pull(queue).getBody());
+			assertNull(service.pull(queue));
+			
+			// A level pulled to its end is emptied
+			assertEquals(0L, new File(directory, "messages_high").length());
+			assertEquals(0L, control.getHead(Priority.HIGH));
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
+	@Test
+	public void weightedPriorityPolicy() throws IOException {
+		String queue = "weightedPriorityPolicy";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			for (int i = 0; i < 7; ++i) {
+				service.push(queue, "high", Priority.HIGH);
+				service.push(queue, "normal", Priority.NORMAL);
+				service.push(queue, "low", Priority.LOW);
+			}
+			service.setPriorityPolicy(queue, Priority.Policy.WEIGHTED);
+			
+			// 7 pulls share the levels 4:2:1
+			List<String> bodies = new ArrayList<String>();
+			for (int i = 0; i < 7; ++i) {
+				bodies.add(service.pull(queue).getBody());
+			}
+			assertEquals(4, Collections.frequency(bodies, "high"));
+			assertEquals(2, Collections.frequency(bodies, "normal"));
+			assertEquals(1, Collections.frequency(bodies, "low"));
+			
+			// Back to STRICT, the remaining high messages come first
+			service.setPriorityPolicy(queue, Priority.Policy.STRICT);
+			for (int i = 0; i < 3; ++i) {
+				assertEquals("high", service.pull(queue).getBody());
+			}
+			assertEquals("normal", service.pull(queue).getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
+	@Test
+	public void expiredMessageKeepsPriority() throws IOException {
+		String queue = "expiredMessageKeepsPriority";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, "low", Priority.LOW);
+			Message low = service.pull(queue);
+			service.push(queue, "high", Priority.HIGH);
+			Message high = service.pull(queue);
+			service.push(queue, "normal");
+			
+			// Expired, each message goes back to the file of its own level
+			service.new VisibilityTask(queue, low).run();
+			service.new VisibilityTask(queue, high).run();
+			File directory = new File(service.getPath(), queue);
+			assertTrue(new String(Files.readAllBytes(new File(directory, "messages_low").toPath()), Charset.forName("UTF-8")).contains("low"));
+			assertTrue(new String(Files.readAllBytes(new File(directory, "messages_high").toPath()), Charset.forName("UTF-8")).contains("high"));
+			
+			Message again = service.pull(queue);
+			assertEquals("high", again.getBody());
+			assertTrue(again.getReceiptHandle().endsWith("#HIGH"));
+			assertEquals("normal", service.pull(queue).getBody());
+			assertEquals("low", service.pull(queue).getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+	
+	@Test
+	public void binaryBody() throws IOException {
+		String queue = "binaryBody";
+		ByteBuffer body = ByteBuffer.wrap(new byte[] { 0, '\n', '|', (byte) 0xff, '\r', '\n' });
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			service.push(queue, body);
+			service.push(queue, "text");
+
+			Message msg = service.pull(queue);
+			ByteBuffer pulled = BinaryMessage.toByteBuffer(msg);
+			assertTrue(pulled.isReadOnly());
+			assertEquals(body, pulled);
+			service.new VisibilityTask(queue, msg).run();
+			assertEquals(body, ((BinaryMessage) service.pull(queue)).getBodyAsByteBuffer());
+			assertEquals("text", service.pull(queue).getBody());
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+
+	@Test
+	public void legacyRecords() throws IOException {
+		String queue = "legacyRecords";
+		deleteQueueIfExists(service.getPath(), queue);
+		try{
+			service.createQueue(queue);
+			//written by the first version, and by the one which added receive counts
+			Files.write(Paths.get(service.getPath(), queue, "messages"), Arrays.asList("1000| |baseline", "2000| |3|with count"), Charset.defaultCharset());
+
+			Message msg = service.pull(queue);
+			assertEquals("baseline", msg.getBody());
+			assertEquals("1", msg.getAttributes().get("ApproximateReceiveCount"));
+			msg = service.pull(queue);
+			assertEquals("with count", msg.getBody());
+			assertEquals("4", msg.getAttributes().get("ApproximateReceiveCount"));
+		} finally {
+			deleteQueueIfExists(service.getPath(), queue);
+		}
+	}
+
 	@Test
 	public void deleteFromEmptyQueue() throws IOException {
 		String queue = "deleteFromEmptyQueue";
@@ -297,7 +674,7 @@ public class FileQueueServiceTest {
 		deleteQueueIfExists(service.getPath(), queue);
 		try {
 			service.createQueue(queue);
-			service.push(queue, null);
+			service.push(queue, (String) null);
 		} finally {
 			deleteQueueIfExists(service.getPath(), queue);
 		}
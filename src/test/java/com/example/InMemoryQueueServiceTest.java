@@ -2,8 +2,12 @@ package com.example;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -14,6 +18,7 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
@@ -64,6 +69,138 @@ public class InMemoryQueueServiceTest {
 		assertNotEquals(msg1.getReceiptHandle(),msg2.getReceiptHandle());
 	}
 	
+	@Test
+	public void extendVisibility() {
+		String queue = "extendVisibility";
+		service.createQueue(queue);
+		service.push(queue, "slow job");
+		Message msg1 = service.pull(queue);
+		
+		ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+		verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+		
+		service.changeVisibility(queue, msg1.getReceiptHandle(), 60000L);
+		
+		// The task fires at the old deadline, finds the new one and schedules itself again
+		task.getValue().run();
+		verify(mockVisibilityCollaborator, times(2)).makeMessageVisibleAsynchronously(same(task.getValue()), anyLong());
+		assertNull(service.pull(queue));
+	}
+	
+	@Test
+	public void shortenVisibility() {
+		String queue = "shortenVisibility";
+		service.createQueue(queue);
+		service.push(queue, "retry me");
+		Message msg1 = service.pull(queue);
+		
+		ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+		verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+		
+		service.changeVisibility(queue, msg1.getReceiptHandle(), 0L);
+		verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(same(task.getValue()), eq(0L));
+		
+		task.getValue().run();
+		Message msg2 = service.pull(queue);
+		assertEquals(msg1.getBody(), msg2.getBody());
+	}
+	
+	@Test
+	public void deleteCancelsVisibilityTask() {
+		String queue = "deleteCancelsVisibilityTask";
+		service.createQueue(queue);
+		service.push(queue, "done quickly");
+		Message msg = service.pull(queue);
+		
+		ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+		verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+		
+		service.delete(queue, msg.getReceiptHandle());
+		verify(mockVisibilityCollaborator).cancel(same(task.getValue()));
+	}
+	
+	@Test
+	public void delayedPush() {
+		String queue = "delayedPush";
+		service.createQueue(queue);
+		service.push(queue, "later", 60000L);
+		assertNull(service.pull(queue));
+		
+		ArgumentCaptor<TimerTask> task = ArgumentCaptor.forClass(TimerTask.class);
+		verify(mockVisibilityCollaborator).makeMessageVisibleAsynchronously(task.capture(), anyLong());
+		
+		// Run synchronously the task scheduled for the delay
+		task.getValue().run();
+		Message msg = service.pull(queue);
+		assertEquals("later", msg.getBody());
+	}
+	
+	@Test
+	public void deadLetterQueue() {
+		String queue = "deadLetterSource";
+		String deadLetterQueue = "deadLetterQueue";
+		service.createQueue(queue);
+		service.createQueue(deadLetterQueue);
+		service.setRedrivePolicy(queue, deadLetterQueue, 2);
+		service.push(queue, "poison");
+		
+		// The first expiry puts the message back, the second one moves it away
+		Message msg1 = service.pull(queue);
+		assertEquals("1", msg1.getAttributes().get("ApproximateReceiveCount"));
+		service.new VisibilityTask(queue, msg1).run();
+		Message msg2 = service.pull(queue);
+		assertEquals("2", msg2.getAttributes().get("ApproximateReceiveCount"));
+		service.new VisibilityTask(queue, msg2).run();
+		
+		assertNull(service.pull(queue));
+		Message deadLetter = service.pull(deadLetterQueue);
+		assertEquals("poison", deadLetter.getBody());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void deadLetterQueueOfItself() {
+		String queue = "deadLetterQueueOfItself";
+		service.createQueue(queue);
+		service.setRedrivePolicy(queue, queue, 2);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void fifoDeadLetterQueueOfStandardQueue() {
+		String queue = "fifoDeadLetterSource";
+		String deadLetterQueue = "fifoDeadLetterQueue.fifo";
+		service.createQueue(queue);
+		service.createQueue(deadLetterQueue);
+		service.setRedrivePolicy(queue, deadLetterQueue, 2);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void standardDeadLetterQueueOfFifoQueue() {
+		String queue = "standardDeadLetterSource.fifo";
+		String deadLetterQueue = "standardDeadLetterQueue";
+		service.createQueue(queue);
+		service.createQueue(deadLetterQueue);
+		service.setRedrivePolicy(queue, deadLetterQueue, 2);
+	}
+	
+	@Test
+	public void queueAttributes() {
+		String queue = "queueAttributes";
+		service.createQueue(queue);
+		service.push(queue, "one");
+		service.push(queue, "two");
+		service.push(queue, "three", 60000L);
+		Message msg = service.pull(queue);
+		
+		QueueAttributes attributes = service.getQueueAttributes(queue);
+		assertEquals(1L, attributes.getApproximateNumberOfMessages());
+		assertEquals(1L, attributes.getApproximateNumberOfMessagesNotVisible());
+		assertEquals(1L, attributes.getApproximateNumberOfMessagesDelayed());
+		assertTrue(attributes.getApproximateAgeOfOldestMessage() >= 0L);
+		
+		service.delete(queue, msg.getReceiptHandle());
+		assertEquals(0L, service.getQueueAttributes(queue).getApproximateNumberOfMessagesNotVisible());
+	}
+	
 	@Test
 	public void pullFromEmptyQueue() {
 		String queue = "pullFromEmptyQueue";
@@ -92,6 +229,106 @@ public class InMemoryQueueServiceTest {
 		assertNotEquals(msg1.getBody(),msg2.getBody());
 	}
 	
+	@Test
+	public void largeMessage() {
+		String queue = "largeMessage";
+		service.createQueue(queue);
+		FileBlobStore blobStore = new FileBlobStore("s3");
+		LargeMessageQueueService largeMessages = new LargeMessageQueueService(service, blobStore, "largeMessages", 4);
+		largeMessages.push(queue, "large body");
+		assertEquals(1, blobStore.list("largeMessages", null, null, 10).size());
+		
+		Message msg = largeMessages.pull(queue);
+		assertEquals("large body", msg.getBody());
+		largeMessages.delete(queue, msg.getReceiptHandle());
+		assertTrue(blobStore.list("largeMessages", null, null, 10).isEmpty());
+	}
+	
+	@Test
+	public void smallBodiesLikePointers() {
+		String queue = "smallBodiesLikePointers";
+		service.createQueue(queue);
+		FileBlobStore blobStore = new FileBlobStore("s3");
+		LargeMessageQueueService largeMessages = new LargeMessageQueueService(service, blobStore, "pointerLikeMessages", 100);
+		String[] bodies = {"blob-pointer:no separator", "blob-pointer:pointerLikeMessages/key", "binary-blob-pointer:x", "escaped:blob-pointer:x"};
+		for (String body : bodies) {
+			largeMessages.push(queue, body);
+		}
+		assertTrue(blobStore.list("pointerLikeMessages", null, null, 10).isEmpty());
+		
+		for (String body : bodies) {
+			Message msg = largeMessages.pull(queue);
+			assertEquals(body, msg.getBody());
+			largeMessages.delete(queue, msg.getReceiptHandle());
+		}
+		assertNull(largeMessages.pull(queue));
+	}
+	
+	@Test
+	public void fifoGroups() {
+		String queue = "fifoGroups.fifo";
+		service.createQueue(queue);
+		service.push(queue, "a1", "A", "1");
+		service.push(queue, "a2", "A", "2");
+		service.push(queue, "b1", "B", "3");
+		service.push(queue, "a1", "A", "1");
+		
+		Message msg1 = service.pull(queue);
+		Message msg2 = service.pull(queue);
+		assertEquals("a1", msg1.getBody());
+		assertEquals("b1", msg2.getBody());
+		assertNull(service.pull(queue));
+		
+		service.delete(queue, msg1.getReceiptHandle());
+		assertEquals("a2", service.pull(queue).getBody());
+		assertNull(service.pull(queue));
+	}
+
+	@Test
+	public void priorityLevels() {
+		String queue = "priorityLevels";
+		service.createQueue(queue);
+		service.push(queue, "low", Priority.LOW);
+		service.push(queue, "normal");
+		service.push(queue, "high", Priority.HIGH);
+
+		Message msg1 = service.pull(queue);
+		assertEquals("high", msg1.getBody());
+		service.new VisibilityTask(queue, msg1).run();
+		assertEquals("high", service.pull(queue).getBody());
+		assertEquals("normal", service.pull(queue).getBody());
+		assertEquals("low", service.pull(queue).getBody());
+
+		service.setPriorityPolicy(queue, Priority.Policy.WEIGHTED);
+		for (int i = 0; i < 4; ++i) {
+			service.push(queue, "high", Priority.HIGH);
+			service.push(queue, "low", Priority.LOW);
+		}
+		int low = 0;
+		for (int i = 0; i < 5; ++i) {
+			if (service.pull(queue).getBody().equals("low"))
+				++low;
+		}
+		assertEquals(1, low);
+	}
+	
+	@Test
+	public void tracing() {
+		String queue = "tracing";
+		service.createQueue(queue);
+		TracingStats stats = new TracingStats();
+		Tracing.setTracer(stats);
+		try {
+			service.push(queue, "one");
+			service.pull(queue);
+		} finally {
+			Tracing.setTracer(null);
+		}
+		service.push(queue, "two");
+
+		assertEquals(Long.valueOf(2L), stats.getCounts().get(Tracing.Event.LOCK_WAIT.name()));
+	}
+
 	@Test
 	public void deleteFromEmptyQueue() {
 		String queue = "deleteFromEmptyQueue";
@@ -215,7 +452,7 @@ public class InMemoryQueueServiceTest {
 	public void pushNull() {
 		String queue = "pushNull";
 		service.createQueue(queue);
-		service.push(queue, null);
+		service.push(queue, (String) null);
 	}
 	
 	@Test(expected=IllegalArgumentException.class)
@@ -0,0 +1,117 @@
+package com.example;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class MemoryCachingBlobStoreTest {
+
+	private static final String BUCKET = "memoryCachedBucket";
+
+	private FileBlobStore backend;
+	private MemoryCachingBlobStore blobStore;
+
+	@Before
+	public void setUp() throws Exception {
+		backend = new FileBlobStore("s3");
+		blobStore = new MemoryCachingBlobStore(backend, 2500, 1000);
+	}
+
+	@Test
+	public void hitsAndMisses() {
+		byte[] data = new byte[]{1, 2, 3};
+		backend.put(BUCKET, "counted", ByteBuffer.wrap(data));
+
+		long misses = blobStore.getMissCount();
+		long hits = blobStore.getHitCount();
+		assertEquals(ByteBuffer.wrap(data), blobStore.getByteBuffer(BUCKET, "counted"));
+		assertEquals(ByteBuffer.wrap(data), blobStore.getByteBuffer(BUCKET, "counted"));
+		assertEquals(misses + 1, blobStore.getMissCount());
+		assertEquals(hits + 1, blobStore.getHitCount());
+	}
+
+	@Test
+	public void readOnlyViews() {
+		byte[] data = new byte[]{1, 2, 3, 4, 5};
+		backend.put(BUCKET, "viewed", ByteBuffer.wrap(data));
+
+		assertTrue(blobStore.getByteBuffer(BUCKET, "viewed").isReadOnly());
+		long hits = blobStore.getHitCount();
+		ByteBuffer range = blobStore.getByteBuffer(BUCKET, "viewed", 1, 3);
+		assertEquals(hits + 1, blobStore.getHitCount());
+		assertTrue(range.isReadOnly());
+		assertEquals(ByteBuffer.wrap(data, 1, 3), range);
+		//a range past the end is cut short, as the backend does
+		assertEquals(ByteBuffer.wrap(data, 4, 1), blobStore.getByteBuffer(BUCKET, "viewed", 4, 10));
+	}
+
+	@Test
+	public void invalidatedByPut() {
+		blobStore.put(BUCKET, "rewritten", ByteBuffer.wrap(new byte[]{1}));
+		blobStore.getByteBuffer(BUCKET, "rewritten");
+
+		blobStore.put(BUCKET, "rewritten", ByteBuffer.wrap(new byte[]{2}));
+		long misses = blobStore.getMissCount();
+		assertEquals(ByteBuffer.wrap(new byte[]{2}), blobStore.getByteBuffer(BUCKET, "rewritten"));
+		assertEquals(misses + 1, blobStore.getMissCount());
+	}
+
+	@Test
+	public void invalidatedByDelete() {
+		blobStore.put(BUCKET, "deleted", ByteBuffer.wrap(new byte[]{1, 2}));
+		blobStore.getByteBuffer(BUCKET, "deleted");
+		assertEquals(2, blobStore.getCachedBytes());
+
+		blobStore.delete(BUCKET, "deleted");
+		assertEquals(0, blobStore.getCachedBytes());
+		assertFalse(backend.list(BUCKET, "deleted", null, 1).contains("deleted"));
+	}
+
+	@Test
+	public void evictedOverCapacity() {
+		for (int i = 0; i < 5; ++i) {
+			backend.put(BUCKET, "evicted" + i, ByteBuffer.wrap(new byte[1000]));
+		}
+		for (int i = 0; i < 5; ++i) {
+			assertEquals(1000, blobStore.getByteBuffer(BUCKET, "evicted" + i).remaining());
+		}
+		assertFalse(blobStore.getCachedBytes() > 2500);
+	}
+
+	@Test
+	public void largeObjectNotCached() {
+		backend.put(BUCKET, "large", ByteBuffer.wrap(new byte[1001]));
+
+		assertEquals(1001, blobStore.getByteBuffer(BUCKET, "large").remaining());
+		assertEquals(0, blobStore.getCachedBytes());
+	}
+
+	@Test
+	public void putDuringLoad() {
+		//the backend sees a put through the cache while it returns the old content
+		MemoryCachingBlobStore[] cache = new MemoryCachingBlobStore[1];
+		FileBlobStore racingBackend = new FileBlobStore("s3") {
+			private boolean raced;
+
+			@Override
+			public ByteBuffer getByteBuffer(String bucket, String key) {
+				ByteBuffer read = super.getByteBuffer(bucket, key);
+				if (!raced) {
+					raced = true;
+					cache[0].put(bucket, key, ByteBuffer.wrap(new byte[]{2}));
+				}
+				return read;
+			}
+		};
+		cache[0] = new MemoryCachingBlobStore(racingBackend, 2500, 1000);
+		racingBackend.put(BUCKET, "raced", ByteBuffer.wrap(new byte[]{1}));
+
+		assertEquals(ByteBuffer.wrap(new byte[]{1}), cache[0].getByteBuffer(BUCKET, "raced"));
+		assertEquals(ByteBuffer.wrap(new byte[]{2}), cache[0].getByteBuffer(BUCKET, "raced"));
+	}
+}
@@ -0,0 +1,149 @@
+package com.example;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+
+public class S3BlobStoreTest {
+
+	private static final long PART_SIZE = 5L * 1024 * 1024;
+
+	@Mock
+	AmazonS3 s3Client;
+
+	private S3BlobStore blobStore;
+	/*two full parts and a short one*/
+	private byte[] data;
+
+	@Before
+	public void setUp() throws Exception {
+		MockitoAnnotations.initMocks(this);
+		blobStore = new S3BlobStore(s3Client, PART_SIZE, 2);
+		data = new byte[(int) (2 * PART_SIZE + 1000)];
+		new Random(1L).nextBytes(data);
+	}
+
+	@Test
+	public void multipartUpload() {
+		InitiateMultipartUploadResult initiated = new InitiateMultipartUploadResult();
+		initiated.setUploadId("upload");
+		when(s3Client.initiateMultipartUpload(any(InitiateMultipartUploadRequest.class))).thenReturn(initiated);
+		when(s3Client.uploadPart(any(UploadPartRequest.class))).thenAnswer(invocation -> {
+			UploadPartRequest request = (UploadPartRequest) invocation.getArguments()[0];
+			UploadPartResult result = new UploadPartResult();
+			result.setPartNumber(request.getPartNumber());
+			result.setETag("part" + request.getPartNumber());
+			return result;
+		});
+
+		blobStore.put("bucket", "key", ByteBuffer.wrap(data));
+
+		ArgumentCaptor<UploadPartRequest> parts = ArgumentCaptor.forClass(UploadPartRequest.class);
+		verify(s3Client, times(3)).uploadPart(parts.capture());
+		long uploaded = 0L;
+		for (UploadPartRequest part : parts.getAllValues()) {
+			uploaded += part.getPartSize();
+		}
+		assertEquals(data.length, uploaded);
+
+		ArgumentCaptor<CompleteMultipartUploadRequest> complete = ArgumentCaptor.forClass(CompleteMultipartUploadRequest.class);
+		verify(s3Client).completeMultipartUpload(complete.capture());
+		assertEquals(3, complete.getValue().getPartETags().size());
+	}
+
+	@Test
+	public void rangedDownload() throws IOException {
+		when(s3Client.getObjectMetadata("bucket", "key")).thenReturn(metadata("v1"));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> getRange((GetObjectRequest) invocation.getArguments()[0], "v1"));
+
+		File file = blobStore.get("bucket", "key");
+		try {
+			assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+			verify(s3Client, times(3)).getObject(any(GetObjectRequest.class));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void overwrittenDuringDownload() throws IOException {
+		//the ranges of the first attempt ask for v1, which S3 answers with null once v2 has replaced it
+		when(s3Client.getObjectMetadata("bucket", "key")).thenReturn(metadata("v1"), metadata("v2"));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> getRange((GetObjectRequest) invocation.getArguments()[0], "v2"));
+
+		File file = blobStore.get("bucket", "key");
+		try {
+			assertArrayEquals(data, Files.readAllBytes(file.toPath()));
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test(expected=ConcurrentModificationException.class)
+	public void alwaysOverwrittenDuringDownload() {
+		when(s3Client.getObjectMetadata("bucket", "key")).thenReturn(metadata("v1"));
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenReturn(null);
+
+		blobStore.get("bucket", "key");
+	}
+
+	@Test
+	public void rangedGet() {
+		when(s3Client.getObject(any(GetObjectRequest.class))).thenAnswer(invocation -> getRange((GetObjectRequest) invocation.getArguments()[0], null));
+
+		assertEquals(ByteBuffer.wrap(data, 1000, 5000), blobStore.getByteBuffer("bucket", "key", 1000, 5000));
+		assertEquals(ByteBuffer.wrap(data, data.length - 10, 10), blobStore.getByteBuffer("bucket", "key", data.length - 10, 100));
+		verify(s3Client, times(2)).getObject(any(GetObjectRequest.class));
+	}
+
+	private ObjectMetadata metadata(String etag) {
+		ObjectMetadata metadata = new ObjectMetadata();
+		metadata.setContentLength(data.length);
+		metadata.setHeader("ETag", etag);
+		return metadata;
+	}
+
+	/**
+	 * @return the range of <code>data</code> asked for, null if the request only matches another etag than <code>etag</code>
+	 */
+	private S3Object getRange(GetObjectRequest request, String etag) {
+		List<String> etags = request.getMatchingETagConstraints();
+		if ((etag != null) && !etags.isEmpty() && !etags.contains(etag)) {
+			return null;
+		}
+		int from = (int) request.getRange()[0];
+		int to = (int) Math.min(request.getRange()[1], data.length - 1);
+		S3Object s3object = new S3Object();
+		s3object.getObjectMetadata().setContentLength(to - from + 1);
+		s3object.setObjectContent(new ByteArrayInputStream(data, from, to - from + 1));
+		return s3object;
+	}
+}